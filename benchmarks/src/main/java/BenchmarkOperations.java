@@ -0,0 +1,75 @@
+import benchmarks.Operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Gives the benchmarks in the benchmarks package access to the application, which lives in the default package. */
+public class BenchmarkOperations implements Operations {
+
+    @Override
+    public String sha256(File file) throws Exception {
+        return Utils.sha256(file);
+    }
+
+    @Override
+    public String sha256(InputStream in) throws Exception {
+        return Utils.sha256(in);
+    }
+
+    @Override
+    public String hash(String algorithm, File file) throws IOException {
+        return HashAlgorithm.parse(algorithm).hash(file);
+    }
+
+    @Override
+    public void copy(File source, File target) throws IOException {
+        Utils.copy(source, target);
+    }
+
+    @Override
+    public void copy(String strategy, File source, File target) throws IOException {
+        new CopyEngine(null, CopyEngine.Strategy.valueOf(strategy.toUpperCase())).copy(source, target);
+    }
+
+    @Override
+    public String copyAndSha256(File source, File target) throws Exception {
+        return Utils.copyAndSha256(source, target);
+    }
+
+    @Override
+    public void writeSnapshot(File snapshotFile, boolean binary, List<String> paths, List<String> hashes) throws IOException {
+        try (SnapshotWriter writer = SnapshotWriter.create(snapshotFile, binary)) {
+            for (int i = 0; i < paths.size(); i++) {
+                writer.write(new SnapshotEntry(paths.get(i), hashes.get(i), i, i));
+            }
+        }
+    }
+
+    @Override
+    public Map<String, String> loadSnapshotMap(File snapshotFile) throws IOException {
+        return Core.loadSnapshotMap(snapshotFile);
+    }
+
+    @Override
+    public int collectAllFilesFromTargetPath(Path targetPath) throws IOException {
+        Set<BackupTargetFile> allTargets = new HashSet<>();
+        Core.collectAllFilesFromTargetPath(targetPath, allTargets, new AtomicLong());
+        return allTargets.size();
+    }
+
+    @Override
+    public int countElements(List<String> hashes) {
+        ElementCounter counter = new ElementCounter();
+        for (String hash : hashes) {
+            counter.add(hash);
+        }
+        return counter.size();
+    }
+}
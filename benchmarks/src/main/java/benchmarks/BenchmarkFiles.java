@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Synthetic input files for the benchmarks. Content is random, so it is incompressible and never deduplicated. */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory("sbpp-bench-" + prefix);
+    }
+
+    static File randomFile(Path dir, String name, long sizeBytes, long seed) throws IOException {
+        File file = dir.resolve(name).toFile();
+        Random random = new Random(seed);
+        byte[] buffer = new byte[65536];
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (long written = 0; written < sizeBytes; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, sizeBytes - written));
+            }
+        }
+        return file;
+    }
+
+    /** A random 64-character hex string, like the hashes in snapshots. */
+    static String randomHash(Random random) {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < 64; i++) {
+            sb.append("0123456789ABCDEF".charAt(random.nextInt(16)));
+        }
+        return sb.toString();
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utils.copy (Files.copy with attributes) against Utils.copyAndSha256, which hashes while it copies, and against
+ * the copy engine's transferTo and direct buffer strategies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"4096", "1048576", "67108864"})
+    long fileSizeBytes;
+
+    Operations operations;
+    Path dir;
+    File source;
+    File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        operations = Operations.load();
+        dir = BenchmarkFiles.tempDir("copy");
+        source = BenchmarkFiles.randomFile(dir, "source.bin", fileSizeBytes, fileSizeBytes);
+        target = dir.resolve("target.bin").toFile();
+    }
+
+    // Both copy variants refuse to overwrite, so the target is removed after every call.
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws Exception {
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void copy() throws Exception {
+        operations.copy(source, target);
+    }
+
+    @Benchmark
+    public String copyAndSha256() throws Exception {
+        return operations.copyAndSha256(source, target);
+    }
+
+    @Benchmark
+    public void transfer() throws Exception {
+        operations.copy("transfer", source, target);
+    }
+
+    @Benchmark
+    public void buffered() throws Exception {
+        operations.copy("buffered", source, target);
+    }
+}
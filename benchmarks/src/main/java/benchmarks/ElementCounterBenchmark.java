@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** ElementCounter counting hashes of a snapshot, where some fraction of files are duplicates. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ElementCounterBenchmark {
+
+    @Param({"100000", "1000000"})
+    int elements;
+
+    @Param({"0.0", "0.5"})
+    double duplicateFraction;
+
+    Operations operations;
+    List<String> hashes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        operations = Operations.load();
+        Random random = new Random(elements);
+        hashes = new ArrayList<>(elements);
+        for (int i = 0; i < elements; i++) {
+            if (i > 0 && random.nextDouble() < duplicateFraction) {
+                hashes.add(hashes.get(random.nextInt(i)));
+            } else {
+                hashes.add(BenchmarkFiles.randomHash(random));
+            }
+        }
+    }
+
+    @Benchmark
+    public int countElements() {
+        return operations.countElements(hashes);
+    }
+}
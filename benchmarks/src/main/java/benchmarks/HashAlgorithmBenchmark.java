@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The repository hash algorithms over files of different sizes. Files of 16 MiB and up are hashed in parallel
+ * with blake3 and sha256-tree, so on a multi-core machine the largest size shows the parallel speedup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashAlgorithmBenchmark {
+
+    @Param({"sha256", "blake3", "sha256-tree"})
+    String algorithm;
+
+    @Param({"1048576", "268435456"})
+    long fileSizeBytes;
+
+    Operations operations;
+    Path dir;
+    File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        operations = Operations.load();
+        dir = BenchmarkFiles.tempDir("hash-algorithm");
+        file = BenchmarkFiles.randomFile(dir, "input.bin", fileSizeBytes, fileSizeBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String hashFile() throws Exception {
+        return operations.hash(algorithm, file);
+    }
+}
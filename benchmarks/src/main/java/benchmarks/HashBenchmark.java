@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utils.sha256 over files of different sizes, and over streams read with different buffer sizes. Files are read
+ * through the page cache after the first iteration, so this measures hashing and copying overhead, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"4096", "1048576", "67108864"})
+    long fileSizeBytes;
+
+    Operations operations;
+    Path dir;
+    File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        operations = Operations.load();
+        dir = BenchmarkFiles.tempDir("hash");
+        file = BenchmarkFiles.randomFile(dir, "input.bin", fileSizeBytes, fileSizeBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String sha256File() throws Exception {
+        return operations.sha256(file);
+    }
+
+    @Benchmark
+    public String sha256BufferedStream(Buffer buffer) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), buffer.bufferSizeBytes)) {
+            return operations.sha256(in);
+        }
+    }
+
+    // Only sha256BufferedStream uses this, so the other benchmarks don't repeat for every buffer size.
+    @State(Scope.Benchmark)
+    public static class Buffer {
+        @Param({"8192", "65536", "1048576"})
+        int bufferSizeBytes;
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The benchmarked operations of the application. JMH does not allow benchmarks in the default package, and code
+ * in a named package can't refer to classes in the default package, so the benchmarks call the application
+ * through this interface. It is implemented by BenchmarkOperations in the default package.
+ */
+public interface Operations {
+
+    static Operations load() {
+        try {
+            return (Operations) Class.forName("BenchmarkOperations").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("BenchmarkOperations is missing from the classpath", ex);
+        }
+    }
+
+    String sha256(File file) throws Exception;
+
+    String sha256(InputStream in) throws Exception;
+
+    /** Hashes a file with one of the repository hash algorithms, by id (sha256, blake3, sha256-tree). */
+    String hash(String algorithm, File file) throws IOException;
+
+    void copy(File source, File target) throws IOException;
+
+    /** Copies a file like a backup does, with one of the copy engine's strategies (transfer, buffered). */
+    void copy(String strategy, File source, File target) throws IOException;
+
+    String copyAndSha256(File source, File target) throws Exception;
+
+    /** Writes a snapshot with the given paths and hashes, in the text or binary format. */
+    void writeSnapshot(File snapshotFile, boolean binary, List<String> paths, List<String> hashes) throws IOException;
+
+    Map<String, String> loadSnapshotMap(File snapshotFile) throws IOException;
+
+    /** Returns the number of files found. */
+    int collectAllFilesFromTargetPath(Path targetPath) throws IOException;
+
+    /** Counts the hashes with an ElementCounter and returns the number of distinct ones. */
+    int countElements(List<String> hashes);
+}
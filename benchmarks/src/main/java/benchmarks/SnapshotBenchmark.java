@@ -0,0 +1,58 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Core.loadSnapshotMap on large synthetic snapshots, in both snapshot formats. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SnapshotBenchmark {
+
+    @Param({"100000", "1000000"})
+    int entries;
+
+    @Param({"false", "true"})
+    boolean binary;
+
+    Operations operations;
+    Path dir;
+    File snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        operations = Operations.load();
+        dir = BenchmarkFiles.tempDir("snapshot");
+        // Paths look like a real photo library: a few levels of folders and distinct file names.
+        Random random = new Random(entries);
+        List<String> paths = new ArrayList<>(entries);
+        List<String> hashes = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            paths.add(String.format("/home/user/pictures/%04d/%02d/%08d-IMG_%d.jpg", 2000 + i % 20, i % 12 + 1, i, random.nextInt(100000)));
+            hashes.add(BenchmarkFiles.randomHash(random));
+        }
+        paths.sort(null);
+        snapshot = dir.resolve(binary ? "snapshot.bin" : "snapshot.txt").toFile();
+        operations.writeSnapshot(snapshot, binary, paths, hashes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Map<String, String> loadSnapshotMap() throws Exception {
+        return operations.loadSnapshotMap(snapshot);
+    }
+}
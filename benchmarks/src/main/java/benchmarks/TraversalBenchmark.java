@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Core.collectAllFilesFromTargetPath over a synthetic tree of small files. After the first iteration the tree is
+ * in the file system cache, so this measures the scanner rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TraversalBenchmark {
+
+    @Param({"10", "100"})
+    int filesPerDirectory;
+
+    // Directories per level; the tree is three levels deep.
+    @Param({"10"})
+    int fanOut;
+
+    Operations operations;
+    Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        operations = Operations.load();
+        dir = BenchmarkFiles.tempDir("traversal");
+        for (int a = 0; a < fanOut; a++) {
+            for (int b = 0; b < fanOut; b++) {
+                for (int c = 0; c < fanOut; c++) {
+                    Path leaf = Files.createDirectories(dir.resolve("d" + a).resolve("d" + b).resolve("d" + c));
+                    for (int f = 0; f < filesPerDirectory; f++) {
+                        Files.write(leaf.resolve("f" + f + ".txt"), new byte[] { (byte) f });
+                    }
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int collectAllFilesFromTargetPath() throws Exception {
+        return operations.collectAllFilesFromTargetPath(dir);
+    }
+}
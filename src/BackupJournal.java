@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint journal of a backup in progress, in backup-journal.bin next to filepath-snapshots. Every file which
+ * has been stored and written to the snapshot is appended to the journal with its attributes and hash; with a
+ * durability policy, only once its content is on disk (see Durability). The
+ * journal is deleted when the backup finishes, so if it exists when a backup starts, the previous run was
+ * interrupted: the new run resumes it under the same timestamp and snapshot name, and files whose journal
+ * entry still matches their attributes are not read again.
+ *
+ * The journal starts with a header (magic, version, timestamp of the run, snapshot format). Each record is
+ * length-prefixed and followed by a CRC32, so a record torn by a crash is detected and ignored along with
+ * anything after it.
+ */
+class BackupJournal implements Closeable {
+
+    static final String FILE_NAME = "backup-journal.bin";
+    static final int MAGIC = 0x53424A52; // "SBJR"
+    // Version 1 stored paths with writeUTF, which is limited to 64 KB. It is still read.
+    static final int VERSION = 2;
+    // Appends are flushed to the operating system at most this often. Losing the last second of the journal
+    // only means those files are hashed again when resuming.
+    static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final File file;
+    final String timestamp;
+    final boolean binarySnapshots;
+    final Map<String, MetadataCache.Entry> completed; // From the interrupted run, empty for a fresh run.
+    DataOutputStream out;
+    FileOutputStream fileOut; // Underneath out, for sync.
+    long lastFlushNanos = System.nanoTime();
+
+    BackupJournal(File file, String timestamp, boolean binarySnapshots, Map<String, MetadataCache.Entry> completed) {
+        this.file = file;
+        this.timestamp = timestamp;
+        this.binarySnapshots = binarySnapshots;
+        this.completed = completed;
+    }
+
+    static File fileOf(String repositoryPath) {
+        return new File(repositoryPath + File.separator + FILE_NAME);
+    }
+
+    /** Returns the journal of an interrupted backup, or null if the previous backup finished. */
+    static BackupJournal load(String repositoryPath) throws IOException {
+        File file = fileOf(repositoryPath);
+        if (!file.exists()) return null;
+        Map<String, MetadataCache.Entry> completed = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unrecognized header in backup journal " + file.getAbsolutePath());
+            }
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of backup journal " + file.getAbsolutePath());
+            }
+            String timestamp = in.readUTF();
+            boolean binarySnapshots = in.readBoolean();
+            if (Utils.parseTimestamp(timestamp) < 0) {
+                throw new IOException("Malformed timestamp in backup journal " + file.getAbsolutePath() + ": " + timestamp);
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > 1 << 20) break;
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) break;
+                } catch (EOFException ex) {
+                    // Torn write at the end of the journal.
+                    break;
+                }
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                String path = MetadataCache.readString(fields, version, record.length);
+                long size = fields.readLong();
+                long lastModifiedNanos = fields.readLong();
+                String fileKey = MetadataCache.readString(fields, version, record.length);
+                byte[] hash = new byte[DigestMap.DIGEST_BYTES];
+                fields.readFully(hash);
+                completed.put(path, new MetadataCache.Entry(size, lastModifiedNanos, fileKey.isEmpty() ? null : fileKey, Utils.bytesToHex(hash)));
+            }
+            return new BackupJournal(file, timestamp, binarySnapshots, completed);
+        }
+    }
+
+    /** Starts a new journal for a fresh backup run. */
+    static BackupJournal start(String repositoryPath, String timestamp, boolean binarySnapshots) throws IOException {
+        BackupJournal journal = new BackupJournal(fileOf(repositoryPath), timestamp, binarySnapshots, new HashMap<>());
+        journal.fileOut = new FileOutputStream(journal.file);
+        journal.out = new DataOutputStream(new BufferedOutputStream(journal.fileOut, 65536));
+        journal.writeHeader();
+        journal.out.flush();
+        return journal;
+    }
+
+    /**
+     * Continues appending to the journal of an interrupted run. The valid records are rewritten first, so that
+     * a torn record at the end doesn't hide the records appended after it.
+     */
+    void resume() throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream rewritten = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out = rewritten;
+            writeHeader();
+            for (Map.Entry<String, MetadataCache.Entry> e : completed.entrySet()) {
+                writeRecord(e.getKey(), e.getValue());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+    }
+
+    void writeHeader() throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(timestamp);
+        out.writeBoolean(binarySnapshots);
+    }
+
+    /** Returns the hash recorded by the interrupted run if the file appears unchanged since, otherwise null. */
+    String lookup(BackupTargetFile btf) {
+        MetadataCache.Entry entry = completed.get(btf.originPath.toString());
+        if (entry == null) return null;
+        return MetadataCache.matches(entry, btf, TimeUnit.MILLISECONDS.toNanos(Utils.parseTimestamp(timestamp))) ? entry.hash : null;
+    }
+
+    /** Records a file which is stored and written to the snapshot. Called from the snapshot writer thread only. */
+    void record(BackupTargetFile btf, String hash) throws IOException {
+        writeRecord(btf.originPath.toString(), new MetadataCache.Entry(btf.sizeBytes, btf.lastModifiedNanos, btf.fileKey, hash));
+        long now = System.nanoTime();
+        if (now - lastFlushNanos > FLUSH_INTERVAL_NANOS) {
+            out.flush();
+            lastFlushNanos = now;
+        }
+    }
+
+    /** Flushes the records appended so far and forces them to disk. */
+    void sync() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+        lastFlushNanos = System.nanoTime();
+    }
+
+    void writeRecord(String path, MetadataCache.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream fields = new DataOutputStream(bytes);
+        MetadataCache.writeString(fields, path);
+        fields.writeLong(entry.size);
+        fields.writeLong(entry.lastModifiedNanos);
+        MetadataCache.writeString(fields, entry.fileKey == null ? "" : entry.fileKey);
+        fields.write(Utils.hexToBytes(entry.hash));
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** Called once the backup has finished and its snapshot is complete. */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+}
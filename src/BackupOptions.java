@@ -0,0 +1,130 @@
+/** Tunables for a backup run. Defaults are safe for a single desktop machine. */
+class BackupOptions {
+    // Number of threads listing directories during discovery.
+    int scanThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    FileTreeScanner.SymlinkPolicy symlinkPolicy = FileTreeScanner.SymlinkPolicy.FOLLOW_FILES;
+    // Number of workers reading and hashing checklist files.
+    int hashThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // Number of workers copying new files into the repository.
+    int copyThreads = 2;
+    // Read each device with threads of its own: hashThreads for solid state (and unknown) devices, hddThreads
+    // for spinning disks, where files are read in inode order. Copy workers then read from the same threads, so
+    // copyThreads is not used. The snapshot is still written in sorted order, using an external sort.
+    boolean deviceScheduling = false;
+    int hddThreads = 1;
+    // Maximum number of files in flight between discovery and the snapshot writer.
+    int queueCapacity = 1024;
+    // Read each file once, copying it to a temp file in the repository while hashing. Saves read I/O
+    // when most files are new, but costs write I/O for files which turn out to be already backed up.
+    boolean singlePass = false;
+    // Re-hash every file even if its size, last-modified time and file key match the metadata cache.
+    boolean paranoid = false;
+    // Start hashing files while discovery is still running, instead of first collecting and sorting the whole
+    // catalog. The snapshot is still written in sorted order, using an external sort.
+    boolean streaming = false;
+    // Store files of at least chunkingThresholdBytes in content-defined chunks, so that a small change to a large
+    // file only stores the chunks around the change instead of the whole file again.
+    boolean chunking = false;
+    long chunkingThresholdBytes = 16L * 1024 * 1024;
+    // Compress new blobs, except those which look incompressible (media, archives) from a sample.
+    boolean compression = false;
+    // Append files smaller than packThresholdBytes to pack files instead of storing each as a file of its own.
+    boolean packing = false;
+    long packThresholdBytes = 16 * 1024;
+    // Write the new snapshot in the compact binary format instead of the human-readable text format.
+    boolean binarySnapshots = false;
+    // Hash algorithm of a new repository (sha256, blake3 or sha256-tree). An existing repository keeps its own;
+    // null means whatever the repository already uses, or sha256 for a new one.
+    HashAlgorithm hashAlgorithm = null;
+    // When new blobs and the snapshot are forced to disk (see Durability). With batched, snapshot entries are
+    // committed every commitFiles files or commitMillis milliseconds.
+    Durability.Policy durability = Durability.Policy.BATCHED;
+    int commitFiles = 1000;
+    int commitMillis = 1000;
+
+    /** Parses optional flags such as "--hash-threads=8" starting from the given index. */
+    static BackupOptions parse(String[] args, int from) {
+        BackupOptions options = new BackupOptions();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "--scan-threads":
+                    options.scanThreads = parsePositiveInt(key, value);
+                    break;
+                case "--symlinks":
+                    options.symlinkPolicy = FileTreeScanner.SymlinkPolicy.parse(value);
+                    break;
+                case "--hash-threads":
+                    options.hashThreads = parsePositiveInt(key, value);
+                    break;
+                case "--copy-threads":
+                    options.copyThreads = parsePositiveInt(key, value);
+                    break;
+                case "--schedule-by-device":
+                    options.deviceScheduling = true;
+                    break;
+                case "--hdd-threads":
+                    options.hddThreads = parsePositiveInt(key, value);
+                    break;
+                case "--queue-capacity":
+                    options.queueCapacity = parsePositiveInt(key, value);
+                    break;
+                case "--single-pass":
+                    options.singlePass = true;
+                    break;
+                case "--paranoid":
+                    options.paranoid = true;
+                    break;
+                case "--streaming":
+                    options.streaming = true;
+                    break;
+                case "--chunking":
+                    options.chunking = true;
+                    break;
+                case "--chunking-threshold-mib":
+                    options.chunkingThresholdBytes = parsePositiveInt(key, value) * 1024L * 1024;
+                    break;
+                case "--compress":
+                    options.compression = true;
+                    break;
+                case "--pack-small-files":
+                    options.packing = true;
+                    break;
+                case "--pack-threshold-kib":
+                    options.packThresholdBytes = parsePositiveInt(key, value) * 1024L;
+                    break;
+                case "--binary-snapshots":
+                    options.binarySnapshots = true;
+                    break;
+                case "--hash":
+                    options.hashAlgorithm = HashAlgorithm.parse(value);
+                    break;
+                case "--durability":
+                    options.durability = Durability.Policy.parse(value);
+                    break;
+                case "--commit-files":
+                    options.commitFiles = parsePositiveInt(key, value);
+                    break;
+                case "--commit-millis":
+                    options.commitMillis = parsePositiveInt(key, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    static int parsePositiveInt(String key, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) return parsed;
+        } catch (NumberFormatException ex) {
+            // Fall through to the error below.
+        }
+        throw new IllegalArgumentException("Option " + key + " expects a positive integer, got: '" + value + "'");
+    }
+}
@@ -0,0 +1,465 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.rmi.UnexpectedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged backup pipeline: hash workers read checklist files, copy workers store new content in the repository,
+ * and a single snapshot writer (the calling thread) appends results in the same order the targets were given.
+ * At most queueCapacity files are in flight at any time, so memory use stays bounded regardless of job size.
+ * In single-pass mode the hash workers copy each file to a temp file while hashing it, and the temp file is
+ * either stored under its hash or deleted if that hash is already in the repository.
+ * With chunking enabled, new large files are split into content-defined chunks which are stored as separate
+ * blobs, followed by a manifest listing the chunks of the file.
+ * With compression enabled, copy workers compress blobs which look compressible (see BlobCompression).
+ * With packing enabled, small files are appended to pack files instead of becoming blobs of their own.
+ * All hashing uses the repository's hash algorithm; in tree mode the leaf hashes are stored along with new content.
+ * Snapshot entries are held back until the content they reference is on disk, and then committed in groups as
+ * the durability policy says (see Durability).
+ * Every stage reports its time and bytes to RunMetrics.
+ */
+class BackupPipeline {
+
+    final BlobStore blobStore;
+    final DigestMap existing; // Shared between workers, so always accessed through isKnown and markKnown.
+    final String timestamp;
+    final BackupOptions options;
+    final MetadataCache metadataCache;
+    final RunMetrics metrics;
+    final BackupJournal journal;
+    final Durability durability;
+
+    // Hashes which some copy worker is currently storing. Other workers which find the same new hash
+    // wait for that copy instead of starting a second one, so each new hash is copied exactly once.
+    final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    final AtomicLong tempSequence = new AtomicLong();
+    CopyEngine copyEngine = new CopyEngine(null, CopyEngine.Strategy.TRANSFER);
+
+    // Results which are stored but not yet committed to the snapshot. Only touched by the snapshot writer thread.
+    final List<Pending> uncommitted = new ArrayList<>();
+    long lastCommitNanos = System.nanoTime();
+
+    BackupPipeline(BlobStore blobStore, DigestMap existing, String timestamp, BackupOptions options, MetadataCache metadataCache, RunMetrics metrics, BackupJournal journal) {
+        this.blobStore = blobStore;
+        this.existing = existing;
+        this.timestamp = timestamp;
+        this.options = options;
+        this.metadataCache = metadataCache;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.durability = blobStore.durability;
+    }
+
+    /** Backs up all targets, writing snapshot lines in target order. Returns the targets which failed. */
+    List<BackupTargetFile> run(Iterator<BackupTargetFile> targets, SnapshotWriter snapshotWriter, ProgressIndicator progressIndicator) throws IOException {
+        List<BackupTargetFile> failedTargets = new ArrayList<>();
+        ExecutorService hashPool = Executors.newFixedThreadPool(options.hashThreads);
+        ExecutorService copyPool = Executors.newFixedThreadPool(options.copyThreads);
+        try {
+            ArrayDeque<Pending> window = new ArrayDeque<>();
+            while (targets.hasNext()) {
+                BackupTargetFile btf = targets.next();
+                if (window.size() >= options.queueCapacity) {
+                    writeResult(window.poll(), snapshotWriter, failedTargets, progressIndicator);
+                }
+                CompletableFuture<String> result = CompletableFuture
+                        .supplyAsync(() -> hash(btf), hashPool)
+                        .thenCompose(hashed -> store(btf, hashed, copyPool));
+                window.add(new Pending(btf, result));
+            }
+            while (!window.isEmpty()) {
+                writeResult(window.poll(), snapshotWriter, failedTargets, progressIndicator);
+            }
+            commit(snapshotWriter);
+        } finally {
+            hashPool.shutdownNow();
+            copyPool.shutdownNow();
+        }
+        return failedTargets;
+    }
+
+    /**
+     * Backs up all targets with one thread pool per device, so that several disks are read at once (see
+     * IoScheduler). Both reads of a file, for hashing and for copying, happen on its device's threads. Up to
+     * lookahead targets are taken from the iterator ahead of time to be queued by device. Snapshot entries are
+     * written in the order files finish, so the snapshot writer must sort. Returns the targets which failed.
+     */
+    List<BackupTargetFile> runScheduled(Iterator<BackupTargetFile> targets, int lookahead, DeviceExecutors devices, SnapshotWriter snapshotWriter, ProgressIndicator progressIndicator) throws IOException {
+        List<BackupTargetFile> failedTargets = new ArrayList<>();
+        IoScheduler scheduler = new IoScheduler(devices);
+        LinkedBlockingQueue<Pending> finished = new LinkedBlockingQueue<>();
+        int inFlight = 0;
+        while (true) {
+            while (scheduler.waiting < lookahead && targets.hasNext()) {
+                scheduler.add(targets.next());
+            }
+            IoScheduler.DeviceQueue queue;
+            while ((queue = scheduler.nextReady()) != null) {
+                BackupTargetFile btf = scheduler.take(queue);
+                ExecutorService executor = devices.forDevice(queue.device);
+                CompletableFuture<String> result = CompletableFuture
+                        .supplyAsync(() -> hash(btf), executor)
+                        .thenCompose(hashed -> store(btf, hashed, executor));
+                Pending pending = new Pending(btf, result);
+                pending.queue = queue;
+                result.whenComplete((hash, ex) -> finished.add(pending));
+                inFlight++;
+            }
+            if (inFlight == 0) break;
+            Pending pending;
+            try {
+                pending = finished.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Backup was interrupted");
+            }
+            inFlight--;
+            scheduler.done(pending.queue);
+            writeResult(pending, snapshotWriter, failedTargets, progressIndicator);
+        }
+        commit(snapshotWriter);
+        return failedTargets;
+    }
+
+    void writeResult(Pending pending, SnapshotWriter snapshotWriter, List<BackupTargetFile> failedTargets, ProgressIndicator progressIndicator) throws IOException {
+        BackupTargetFile btf = pending.btf;
+        try {
+            String hash = pending.result.join();
+            // Now that file exists in backup repository, its path/hash pair can go into the current snapshot.
+            metadataCache.record(btf, hash);
+            uncommitted.add(pending);
+            metrics.processed(btf.sizeBytes, false);
+        } catch (CompletionException | CancellationException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            metrics.processed(btf.sizeBytes, true);
+            failedTargets.add(btf);
+            System.err.println("Unable to copy file " + btf.originPath.toAbsolutePath().toString() + " because of error " + cause.getMessage());
+            cause.printStackTrace();
+        }
+        progressIndicator.tick(btf.sizeBytes);
+        if (durability.commitDue(uncommitted.size(), lastCommitNanos)) {
+            commit(snapshotWriter);
+        }
+    }
+
+    /**
+     * Appends the uncommitted results to the snapshot and the journal. With a durability policy, the directory
+     * entries of new content and the open pack are forced to disk first, and the snapshot and journal after.
+     */
+    void commit(SnapshotWriter snapshotWriter) throws IOException {
+        if (uncommitted.isEmpty()) return;
+        long start = System.nanoTime();
+        if (durability.syncs()) {
+            durability.syncDirectories();
+            blobStore.packs.sync();
+            metrics.record(RunMetrics.Stage.SYNCING, start, 0);
+            start = System.nanoTime();
+        }
+        for (Pending pending : uncommitted) {
+            BackupTargetFile btf = pending.btf;
+            String hash = pending.result.join();
+            snapshotWriter.write(new SnapshotEntry(btf.originPath.toString(), hash, btf.sizeBytes, btf.lastModifiedNanos / 1000000));
+            journal.record(btf, hash);
+        }
+        metrics.record(RunMetrics.Stage.SNAPSHOT_WRITING, start, 0);
+        if (durability.syncs()) {
+            start = System.nanoTime();
+            snapshotWriter.sync();
+            journal.sync();
+            metrics.record(RunMetrics.Stage.SYNCING, start, 0);
+        }
+        uncommitted.clear();
+        lastCommitNanos = System.nanoTime();
+    }
+
+    /**
+     * Hash stage. Files whose metadata matches the cache, or the journal of an interrupted run which we are
+     * resuming, are not read at all (unless we are paranoid).
+     * In single-pass mode the file is streamed into a temp file in the repository while hashing it.
+     */
+    Hashed hash(BackupTargetFile btf) {
+        // TODO file (write-)lock from beginning of SHA to the end of copy?
+        try {
+            MetadataCache.stat(btf);
+            if (!options.paranoid) {
+                String cachedHash = journal.lookup(btf);
+                if (cachedHash == null) cachedHash = metadataCache.lookup(btf);
+                // A hash whose blob was lost in the interruption (e.g. in an unsealed pack) is not known.
+                if (cachedHash != null && isKnown(cachedHash)) {
+                    metrics.metadataCacheHits.incrementAndGet();
+                    return new Hashed(cachedHash, null, null);
+                }
+            }
+            long start = System.nanoTime();
+            // Chunked files are always read twice: chunks are only worth storing if the file turns out to be new.
+            // Packed files are small, so reading them twice costs less than writing a temp file for each.
+            if (options.singlePass && !isChunked(btf) && !isPacked(btf)) {
+                File copyOfFile = new File(blobStore.repoFilesDir, "temp-" + tempSequence.incrementAndGet() + "-" + timestamp + ".tmp");
+                if (copyOfFile.exists()) {
+                    throw new UnexpectedException("We were about to copy a file to a temporary path, but the path already has an existing file." +
+                            "As a precaution we do not overwrite the path: " + copyOfFile.getAbsolutePath());
+                }
+                // The copy is raw: compression is left to the copy stage, which only sees new content.
+                Hasher hasher = blobStore.hashAlgorithm.newHasher();
+                HashAlgorithm.Digest digest = Utils.copyAndHash(btf.originPath.toFile(), copyOfFile, hasher);
+                metrics.record(RunMetrics.Stage.HASHING, start, btf.sizeBytes);
+                metrics.read(btf.sizeBytes);
+                metrics.written(copyOfFile.length());
+                return new Hashed(digest.hash, copyOfFile, digest.leaves);
+            }
+            HashAlgorithm.Digest digest = blobStore.hashAlgorithm.digest(btf.originPath.toFile());
+            metrics.record(RunMetrics.Stage.HASHING, start, btf.sizeBytes);
+            metrics.read(btf.sizeBytes);
+            return new Hashed(digest.hash, null, digest.leaves);
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /** Copy stage. Completes once the hashed content is present in the repository. */
+    CompletableFuture<String> store(BackupTargetFile btf, Hashed hashed, Executor copyPool) {
+        String hash = hashed.hash;
+        if (hashed.temp != null) {
+            // Without compression, storing the temp copy is only a rename, which isn't worth a hop to the copy pool.
+            return ensureStored(hash, options.compression ? copyPool : Runnable::run,
+                    counted(btf, hashed, () -> storeTempCopy(hashed.temp, hash)),
+                    () -> Files.delete(hashed.temp.toPath()));
+        }
+        if (isPacked(btf)) {
+            return ensureStored(hash, copyPool,
+                    counted(btf, hashed, () -> packIntoRepository(btf, hash)),
+                    () -> {});
+        }
+        if (isChunked(btf)) {
+            return ensureStored(hash, copyPool,
+                    counted(btf, hashed, () -> chunkToRepository(btf, hash)),
+                    () -> {});
+        }
+        return ensureStored(hash, copyPool,
+                counted(btf, hashed, () -> copyToRepository(btf, hash)),
+                () -> {});
+    }
+
+    /** Stores the hash tree (if any) and counts the file as new content once the store action has succeeded. */
+    IOAction counted(BackupTargetFile btf, Hashed hashed, IOAction store) {
+        return () -> {
+            store.run();
+            blobStore.writeTree(hashed.hash, hashed.leaves);
+            metrics.stored(btf.sizeBytes);
+        };
+    }
+
+    boolean isPacked(BackupTargetFile btf) {
+        return options.packing && btf.sizeBytes < options.packThresholdBytes;
+    }
+
+    boolean isChunked(BackupTargetFile btf) {
+        return options.chunking && btf.sizeBytes >= options.chunkingThresholdBytes;
+    }
+
+    /**
+     * Completes once a blob with the given hash is present in the repository. If this caller is the first to
+     * claim a new hash, store is run on the given executor; otherwise discard is run to drop our redundant copy.
+     */
+    CompletableFuture<String> ensureStored(String hash, Executor executor, IOAction store, IOAction discard) {
+        if (isKnown(hash)) {
+            return discarded(hash, discard);
+        }
+        CompletableFuture<Void> stored = new CompletableFuture<>();
+        CompletableFuture<Void> other = inFlight.putIfAbsent(hash, stored);
+        if (other != null) {
+            // Another worker is already storing identical content.
+            return other.thenCompose(v -> discarded(hash, discard));
+        }
+        // A copy of the same hash may have finished between our first check and claiming the hash.
+        // Storers add to existing before releasing their claim, so this second check is sufficient.
+        if (isKnown(hash)) {
+            inFlight.remove(hash);
+            stored.complete(null);
+            return discarded(hash, discard);
+        }
+        executor.execute(() -> {
+            try {
+                store.run();
+                markKnown(hash);
+                stored.complete(null);
+            } catch (Throwable ex) {
+                stored.completeExceptionally(ex);
+            } finally {
+                inFlight.remove(hash);
+            }
+        });
+        return stored.thenApply(v -> hash);
+    }
+
+    boolean isKnown(String hash) {
+        synchronized (existing) {
+            return existing.contains(hash);
+        }
+    }
+
+    void markKnown(String hash) {
+        synchronized (existing) {
+            existing.add(hash);
+        }
+    }
+
+    static CompletableFuture<String> discarded(String hash, IOAction discard) {
+        try {
+            discard.run();
+        } catch (IOException ex) {
+            // The blob is safely in the repository, so a leftover temp file is only clutter.
+            System.err.println("Warning! Unable to remove redundant temp file: " + ex.getMessage());
+        }
+        return CompletableFuture.completedFuture(hash);
+    }
+
+    void copyToRepository(BackupTargetFile btf, String hash) throws IOException {
+        // File does not already exist in backup repository, so we need to copy it.
+        // We want to copy the file under a temp name first, because the copy might fail and in that case
+        // we want the file name to indicate that this partial/failed copy is not a proper copy of the file.
+        File originalFile = btf.originPath.toFile();
+        File copyOfFile = new File(blobStore.repoFilesDir.getAbsolutePath() + File.separator + "temp-" + hash + "-" + timestamp + ".tmp");
+        if (copyOfFile.exists()) {
+            throw new UnexpectedException("We were about to copy a file to a temporary path, but the path already has an existing file." +
+                    "As a precaution we do not overwrite the path: " + copyOfFile.getAbsolutePath() +
+                    "\nThis error might occur if the clock in your computer is not operating normally or if this software has a bug.");
+        }
+        long start = System.nanoTime();
+        boolean compressed = shouldCompress(originalFile);
+        if (compressed) {
+            BlobCompression.compress(originalFile, copyOfFile);
+        } else {
+            copyEngine.copy(originalFile, copyOfFile);
+        }
+        metrics.record(RunMetrics.Stage.COPYING, start, btf.sizeBytes);
+        metrics.read(btf.sizeBytes);
+        metrics.written(copyOfFile.length());
+        moveToRepository(copyOfFile, hash, compressed);
+    }
+
+    /** Stores a single-pass temp copy, compressing it first if it looks compressible. */
+    void storeTempCopy(File temp, String hash) throws IOException {
+        if (!shouldCompress(temp)) {
+            moveToRepository(temp, hash, false);
+            return;
+        }
+        long start = System.nanoTime();
+        File compressedCopy = new File(blobStore.repoFilesDir, "temp-" + tempSequence.incrementAndGet() + "-" + timestamp + ".tmp");
+        BlobCompression.compress(temp, compressedCopy);
+        metrics.record(RunMetrics.Stage.COPYING, start, temp.length());
+        metrics.read(temp.length());
+        metrics.written(compressedCopy.length());
+        Files.delete(temp.toPath());
+        moveToRepository(compressedCopy, hash, true);
+    }
+
+    void moveToRepository(File copyOfFile, String hash, boolean compressed) throws IOException {
+        // Once copy has finished successfully, attempt to rename the file to just the hash (no extension).
+        long start = System.nanoTime();
+        blobStore.moveIntoPlace(copyOfFile, hash, compressed);
+        metrics.record(RunMetrics.Stage.RENAMING, start, 0);
+    }
+
+    boolean shouldCompress(File originalFile) throws IOException {
+        return options.compression && BlobCompression.isWorthCompressing(originalFile);
+    }
+
+    void packIntoRepository(BackupTargetFile btf, String hash) throws IOException {
+        long start = System.nanoTime();
+        byte[] content = Files.readAllBytes(btf.originPath);
+        // The content is in memory anyway, so make sure it is what we hashed earlier.
+        if (!blobStore.hashAlgorithm.hash(content, 0, content.length).equals(hash)) {
+            throw new IOException("File was modified while it was being backed up: " + btf.originPath.toAbsolutePath());
+        }
+        long lastModifiedMillis = Files.getLastModifiedTime(btf.originPath).toMillis();
+        blobStore.appendToPack(hash, content, lastModifiedMillis);
+        metrics.record(RunMetrics.Stage.COPYING, start, content.length);
+        metrics.read(content.length);
+        metrics.written(PackStore.RECORD_HEADER_SIZE + content.length);
+    }
+
+    void chunkToRepository(BackupTargetFile btf, String hash) throws IOException {
+        long start = System.nanoTime();
+        List<BlobStore.ChunkRef> chunks = new ArrayList<>();
+        HashAlgorithm algorithm = blobStore.hashAlgorithm;
+        Hasher hasher = algorithm.newHasher();
+        try (InputStream in = new FileInputStream(btf.originPath.toFile())) {
+            Chunker.split(in, (buffer, offset, length) -> {
+                hasher.update(buffer, offset, length);
+                String chunkHash = algorithm.hash(buffer, offset, length);
+                storeChunk(chunkHash, buffer, offset, length);
+                chunks.add(new BlobStore.ChunkRef(chunkHash, length));
+            });
+        }
+        metrics.record(RunMetrics.Stage.COPYING, start, btf.sizeBytes);
+        metrics.read(btf.sizeBytes);
+        // The manifest must describe exactly the content we hashed earlier.
+        if (!hasher.finish().hash.equals(hash)) {
+            throw new IOException("File was modified while it was being backed up: " + btf.originPath.toAbsolutePath());
+        }
+        long lastModifiedMillis = Files.getLastModifiedTime(btf.originPath).toMillis();
+        // A file without any cut points (e.g. very repetitive content) is a single chunk, which is the file's own blob.
+        if (chunks.size() == 1 && chunks.get(0).hash.equals(hash)) {
+            Files.setLastModifiedTime(blobStore.require(hash).toPath(), FileTime.fromMillis(lastModifiedMillis));
+            return;
+        }
+        blobStore.writeManifest(hash, chunks, lastModifiedMillis);
+    }
+
+    void storeChunk(String chunkHash, byte[] buffer, int offset, int length) throws IOException {
+        // Chunks are not claimed like files: waiting for another worker's claim from inside a copy worker could
+        // deadlock the copy pool. If two workers store the same chunk at once, moveIntoPlace keeps one copy.
+        if (isKnown(chunkHash)) return;
+        writeChunk(chunkHash, buffer, offset, length);
+        markKnown(chunkHash);
+    }
+
+    void writeChunk(String chunkHash, byte[] buffer, int offset, int length) throws IOException {
+        File copyOfChunk = new File(blobStore.repoFilesDir, "temp-" + tempSequence.incrementAndGet() + "-" + timestamp + ".tmp");
+        boolean compressed = options.compression && BlobCompression.isWorthCompressing(buffer, offset, length);
+        if (compressed) {
+            BlobCompression.compress(new ByteArrayInputStream(buffer, offset, length), copyOfChunk);
+        } else {
+            try (OutputStream out = Files.newOutputStream(copyOfChunk.toPath(), StandardOpenOption.CREATE_NEW)) {
+                out.write(buffer, offset, length);
+            }
+        }
+        metrics.written(copyOfChunk.length());
+        moveToRepository(copyOfChunk, chunkHash, compressed);
+    }
+
+    interface IOAction {
+        void run() throws IOException;
+    }
+
+    static class Hashed {
+        final String hash;
+        final File temp; // Raw single-pass copy of the content, or null if the content has not been copied yet.
+        final List<byte[]> leaves; // Leaf hashes in tree mode, or null if the content was not read.
+
+        Hashed(String hash, File temp, List<byte[]> leaves) {
+            this.hash = hash;
+            this.temp = temp;
+            this.leaves = leaves;
+        }
+    }
+
+    static class Pending {
+        final BackupTargetFile btf;
+        final CompletableFuture<String> result;
+        IoScheduler.DeviceQueue queue; // In runScheduled, the queue the target came from.
+
+        Pending(BackupTargetFile btf, CompletableFuture<String> result) {
+            this.btf = btf;
+            this.result = result;
+        }
+    }
+}
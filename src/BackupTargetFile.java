@@ -4,6 +4,8 @@ import java.nio.file.Path;
 class BackupTargetFile implements Comparable<BackupTargetFile> {
     Path originPath;
     long sizeBytes; // It's ok if size is not always 100% accurate, we use it to measure progress etc.
+    long lastModifiedNanos = -1; // Epoch nanos, or -1 if attributes have not been read yet.
+    String fileKey; // Inode or similar, null if not supported by the file system.
 
     public BackupTargetFile(Path originPath, long sizeBytes) {
         this.originPath = originPath;
@@ -0,0 +1,254 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * BLAKE3 with the default 32-byte output, in unkeyed hashing mode. Follows the structure of the reference
+ * implementation: the input is split into 1 KiB chunks of 64-byte blocks, and the chaining values of complete
+ * chunks are merged into a binary tree on a stack as soon as both children are known. The compression function
+ * works on local variables and full blocks are read straight from the caller's buffer, so nothing is allocated
+ * per block.
+ */
+class Blake3 implements Hasher {
+
+    static final int BLOCK_LEN = 64;
+    static final int CHUNK_LEN = 1024;
+    static final int CHUNK_START = 1;
+    static final int CHUNK_END = 1 << 1;
+    static final int PARENT = 1 << 2;
+    static final int ROOT = 1 << 3;
+    // Large files are hashed in parallel in subtrees of this many chunks, one per block of parallel hashing.
+    static final int SUBTREE_CHUNKS = HashAlgorithm.PARALLEL_BLOCK_BYTES / CHUNK_LEN;
+    static final VarHandle LITTLE_ENDIAN_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    final ArrayDeque<int[]> cvStack = new ArrayDeque<>();
+    final ChunkState chunk = new ChunkState();
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            if (chunk.length() == CHUNK_LEN) {
+                // The chunk is complete, and more input follows, so it is not the root.
+                int[] chunkCv = chunk.chainingValue();
+                long totalChunks = chunk.chunkCounter + 1;
+                addChunkChainingValue(chunkCv, totalChunks);
+                chunk.reset(totalChunks);
+            }
+            int take = Math.min(CHUNK_LEN - chunk.length(), length);
+            chunk.update(buffer, offset, take);
+            offset += take;
+            length -= take;
+        }
+    }
+
+    /** Merges completed subtrees: one merge for each trailing zero bit of the chunk count. */
+    void addChunkChainingValue(int[] cv, long totalChunks) {
+        while ((totalChunks & 1) == 0) {
+            cv = parentChainingValue(cvStack.pop(), cv, 0);
+            totalChunks >>= 1;
+        }
+        cvStack.push(cv);
+    }
+
+    @Override
+    public HashAlgorithm.Digest finish() {
+        int[] words;
+        if (cvStack.isEmpty()) {
+            words = chunk.output(ROOT);
+        } else {
+            // The stack iterates from its top, i.e. from the most recent (rightmost) subtree.
+            int[] right = chunk.output(0);
+            int remaining = cvStack.size();
+            for (int[] left : cvStack) {
+                right = parentChainingValue(left, right, --remaining == 0 ? ROOT : 0);
+            }
+            words = right;
+        }
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            hash[4 * i] = (byte) words[i];
+            hash[4 * i + 1] = (byte) (words[i] >>> 8);
+            hash[4 * i + 2] = (byte) (words[i] >>> 16);
+            hash[4 * i + 3] = (byte) (words[i] >>> 24);
+        }
+        return new HashAlgorithm.Digest(Utils.bytesToHex(hash), null);
+    }
+
+    /**
+     * Hashes complete subtrees of the file on the common fork-join pool. Their chaining values go on the stack
+     * exactly as if the chunks had been added one by one, and the rest of the file is hashed sequentially. The
+     * last subtree always goes the sequential way, since only the end of the input knows which node is the root.
+     */
+    static HashAlgorithm.Digest digestInParallel(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long subtrees = (size - 1) / HashAlgorithm.PARALLEL_BLOCK_BYTES;
+            List<int[]> chainingValues = HashAlgorithm.mapBlocksInParallel(channel, subtrees,
+                    (index, buffer, length) -> subtreeChainingValue(index * SUBTREE_CHUNKS, buffer, length));
+            Blake3 hasher = new Blake3();
+            for (int i = 0; i < chainingValues.size(); i++) {
+                // Every entry on the stack is a whole subtree here, so subtrees merge like chunks do.
+                hasher.addChunkChainingValue(chainingValues.get(i), i + 1);
+            }
+            hasher.chunk.reset(subtrees * SUBTREE_CHUNKS);
+            byte[] buffer = HashAlgorithm.READ_BUFFER.get();
+            for (long position = subtrees * HashAlgorithm.PARALLEL_BLOCK_BYTES; position < size; position += buffer.length) {
+                int length = (int) Math.min(buffer.length, size - position);
+                HashAlgorithm.readFully(channel, position, buffer, length);
+                hasher.update(buffer, 0, length);
+            }
+            if (channel.size() != size) {
+                throw new IOException("File was modified while it was being hashed: " + file.getAbsolutePath());
+            }
+            return hasher.finish();
+        }
+    }
+
+    /** Chaining value of the subtree of complete chunks in buffer, which starts at the given chunk. */
+    static int[] subtreeChainingValue(long firstChunk, byte[] buffer, int length) {
+        Blake3 hasher = new Blake3();
+        hasher.chunk.reset(firstChunk);
+        hasher.update(buffer, 0, length);
+        int[] right = hasher.chunk.chainingValue();
+        for (int[] left : hasher.cvStack) {
+            right = parentChainingValue(left, right, 0);
+        }
+        return right;
+    }
+
+    static int[] parentChainingValue(int[] left, int[] right, int rootFlag) {
+        int[] block = new int[16];
+        System.arraycopy(left, 0, block, 0, 8);
+        System.arraycopy(right, 0, block, 8, 8);
+        int[] cv = IV.clone();
+        compress(cv, block, 0, BLOCK_LEN, PARENT | rootFlag);
+        return cv;
+    }
+
+    /**
+     * Compresses one block into the chaining value cv, in place. Only the first 8 words of the output are
+     * computed, which is all that chaining values and a 32-byte root hash need.
+     */
+    static void compress(int[] cv, int[] m, long counter, int blockLen, int flags) {
+        int v0 = cv[0], v1 = cv[1], v2 = cv[2], v3 = cv[3], v4 = cv[4], v5 = cv[5], v6 = cv[6], v7 = cv[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        int v12 = (int) counter, v13 = (int) (counter >>> 32), v14 = blockLen, v15 = flags;
+        int m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3], m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        int m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11], m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+        for (int r = 0; r < 7; r++) {
+            // Columns.
+            v0 += v4 + m0; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+            v0 += v4 + m1; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+            v1 += v5 + m2; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+            v1 += v5 + m3; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+            v2 += v6 + m4; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+            v2 += v6 + m5; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+            v3 += v7 + m6; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+            v3 += v7 + m7; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+            // Diagonals.
+            v0 += v5 + m8; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+            v0 += v5 + m9; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+            v1 += v6 + m10; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+            v1 += v6 + m11; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+            v2 += v7 + m12; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+            v2 += v7 + m13; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+            v3 += v4 + m14; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+            v3 += v4 + m15; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+            // Permute the message words for the next round: m[i] = m[{2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8}[i]].
+            int t0 = m0, t1 = m1, t4 = m4, t5 = m5, t8 = m8;
+            m0 = m2; m1 = m6; m2 = m3; m3 = m10; m4 = m7; m5 = t0; m6 = t4; m7 = m13;
+            m8 = t1; m10 = m12; m12 = m9; m9 = m11; m11 = t5; m13 = m14; m14 = m15; m15 = t8;
+        }
+        cv[0] = v0 ^ v8;
+        cv[1] = v1 ^ v9;
+        cv[2] = v2 ^ v10;
+        cv[3] = v3 ^ v11;
+        cv[4] = v4 ^ v12;
+        cv[5] = v5 ^ v13;
+        cv[6] = v6 ^ v14;
+        cv[7] = v7 ^ v15;
+    }
+
+    /** Reads 64 bytes as 16 little-endian words. */
+    static void loadWords(byte[] buffer, int offset, int[] words) {
+        for (int i = 0; i < 16; i++) {
+            words[i] = (int) LITTLE_ENDIAN_INT.get(buffer, offset + 4 * i);
+        }
+    }
+
+    static class ChunkState {
+        final int[] cv = new int[8];
+        final int[] words = new int[16];
+        final byte[] block = new byte[BLOCK_LEN];
+        long chunkCounter;
+        int blockLen;
+        int blocksCompressed;
+
+        ChunkState() {
+            reset(0);
+        }
+
+        void reset(long chunkCounter) {
+            System.arraycopy(IV, 0, cv, 0, 8);
+            this.chunkCounter = chunkCounter;
+            blockLen = 0;
+            blocksCompressed = 0;
+        }
+
+        int length() {
+            return BLOCK_LEN * blocksCompressed + blockLen;
+        }
+
+        int startFlag() {
+            return blocksCompressed == 0 ? CHUNK_START : 0;
+        }
+
+        void update(byte[] buffer, int offset, int length) {
+            while (length > 0) {
+                if (blockLen == BLOCK_LEN) {
+                    // The block is full and more input follows, so it is not the last block of the chunk.
+                    loadWords(block, 0, words);
+                    compress(cv, words, chunkCounter, BLOCK_LEN, startFlag());
+                    blocksCompressed++;
+                    blockLen = 0;
+                }
+                // Full blocks which are followed by more input are compressed without copying them first.
+                while (blockLen == 0 && length > BLOCK_LEN) {
+                    loadWords(buffer, offset, words);
+                    compress(cv, words, chunkCounter, BLOCK_LEN, startFlag());
+                    blocksCompressed++;
+                    offset += BLOCK_LEN;
+                    length -= BLOCK_LEN;
+                }
+                int take = Math.min(BLOCK_LEN - blockLen, length);
+                System.arraycopy(buffer, offset, block, blockLen, take);
+                blockLen += take;
+                offset += take;
+                length -= take;
+            }
+        }
+
+        /** Compresses the last block of a complete chunk which is not the root. */
+        int[] chainingValue() {
+            return output(0);
+        }
+
+        int[] output(int rootFlag) {
+            // The last block is zero padded.
+            for (int i = blockLen; i < BLOCK_LEN; i++) block[i] = 0;
+            loadWords(block, 0, words);
+            int[] out = cv.clone();
+            compress(out, words, rootFlag == 0 ? chunkCounter : 0, blockLen, startFlag() | CHUNK_END | rootFlag);
+            return out;
+        }
+    }
+}
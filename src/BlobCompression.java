@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed blobs. A compressed blob is stored next to where the raw blob would be, with the suffix ".z",
+ * and starts with a header: magic "SBPZ", one byte codec and the original length as 8 bytes. The blob is still
+ * named by the hash of its original content, so compression is invisible to snapshots and deduplication.
+ *
+ * Before compressing, a sample from the start of the content is checked: formats which are compressed already
+ * (JPEG, MP4, ZIP and so on) are recognized from their magic bytes, and anything else which doesn't shrink
+ * noticeably when the sample is compressed is stored raw as well.
+ */
+class BlobCompression {
+
+    static final String SUFFIX = ".z";
+    static final byte[] MAGIC = "SBPZ".getBytes(StandardCharsets.US_ASCII);
+    static final int CODEC_DEFLATE = 1;
+    static final int LEVEL = 6;
+
+    // Tiny files gain nothing worth the header and the CPU.
+    static final int MIN_SIZE = 1024;
+    static final int SAMPLE_SIZE = 64 * 1024;
+    // Store raw unless the sample compresses to at most this fraction of its size.
+    static final double MAX_RATIO = 0.9;
+
+    // Magic bytes of formats which are already compressed. Offsets are from the start of the content.
+    static final byte[][] COMPRESSED_MAGICS = {
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},                   // JPEG
+            {(byte) 0x89, 'P', 'N', 'G'},                              // PNG
+            {'G', 'I', 'F', '8'},                                      // GIF
+            {'P', 'K', 3, 4},                                          // ZIP, also docx, jar, apk etc.
+            {0x1F, (byte) 0x8B},                                       // gzip
+            {'7', 'z', (byte) 0xBC, (byte) 0xAF},                      // 7-Zip
+            {'R', 'a', 'r', '!'},                                      // RAR
+            {(byte) 0xFD, '7', 'z', 'X', 'Z'},                         // xz
+            {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD},                    // zstd
+            {'B', 'Z', 'h'},                                           // bzip2
+            {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3},                    // Matroska, WebM
+            {'I', 'D', '3'},                                           // MP3 with ID3 tag
+            {'f', 'L', 'a', 'C'},                                      // FLAC
+            {'O', 'g', 'g', 'S'},                                      // Ogg
+    };
+    static final byte[] FTYP = {'f', 't', 'y', 'p'};                   // MP4, MOV, HEIC at offset 4
+
+    static boolean isCompressedBlob(File blob) {
+        return blob.getName().endsWith(SUFFIX);
+    }
+
+    static boolean isWorthCompressing(File file) throws IOException {
+        if (file.length() < MIN_SIZE) return false;
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            while (length < sample.length) {
+                int count = in.read(sample, length, sample.length - length);
+                if (count < 0) break;
+                length += count;
+            }
+        }
+        return isWorthCompressing(sample, 0, length);
+    }
+
+    static boolean isWorthCompressing(byte[] buffer, int offset, int length) {
+        if (length < MIN_SIZE) return false;
+        if (hasCompressedMagic(buffer, offset, length)) return false;
+        int sampleLength = Math.min(length, SAMPLE_SIZE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(buffer, offset, sampleLength);
+            deflater.finish();
+            byte[] out = new byte[sampleLength];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+                if (compressed > sampleLength * MAX_RATIO) return false;
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static boolean hasCompressedMagic(byte[] buffer, int offset, int length) {
+        for (byte[] magic : COMPRESSED_MAGICS) {
+            if (startsWith(buffer, offset, length, magic)) return true;
+        }
+        return length >= 8 && startsWith(buffer, offset + 4, length - 4, FTYP);
+    }
+
+    static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        return Arrays.equals(buffer, offset, offset + prefix.length, prefix, 0, prefix.length);
+    }
+
+    /** Writes a compressed blob with the content of in. Like Utils.copy, this fails if the target exists. */
+    static void compress(InputStream in, File target) throws IOException {
+        long originalLength = 0;
+        Deflater deflater = new Deflater(LEVEL);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target.toPath(), StandardOpenOption.CREATE_NEW), 65536)) {
+            out.write(MAGIC);
+            out.write(CODEC_DEFLATE);
+            // The length is patched in below, once we know how much was actually read.
+            out.write(new byte[8]);
+            DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, 65536);
+            byte[] buffer = new byte[65536];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                deflating.write(buffer, 0, count);
+                originalLength += count;
+            }
+            deflating.finish();
+        } finally {
+            deflater.end();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.seek(MAGIC.length + 1);
+            file.writeLong(originalLength);
+        }
+    }
+
+    static void compress(File source, File target) throws IOException {
+        try (InputStream in = new FileInputStream(source)) {
+            compress(in, target);
+        }
+        Files.setLastModifiedTime(target.toPath(), Files.getLastModifiedTime(source.toPath()));
+    }
+
+    /** Opens a compressed blob for reading its original content. */
+    static InputStream open(File blob) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(blob), 65536));
+        try {
+            readHeader(in, blob);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, 65536) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Only the default inflater is released by InflaterInputStream itself.
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    static long originalSize(File blob) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(blob))) {
+            return readHeader(in, blob);
+        }
+    }
+
+    /** Reads and checks the header, returning the original length. */
+    static long readHeader(DataInputStream in, File blob) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a compressed blob: " + blob.getAbsolutePath());
+        }
+        int codec = in.readUnsignedByte();
+        if (codec != CODEC_DEFLATE) {
+            throw new IOException("Unsupported compression codec " + codec + " in blob " + blob.getAbsolutePath());
+        }
+        return in.readLong();
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Blobs in the files folder of a repository. New blobs are stored in a fan-out layout files/ab/cd/[hash]
+ * so that no single directory grows huge. Blobs in the legacy flat layout files/[hash] are still found,
+ * and migrateToShardedLayout moves them into the fan-out layout in place.
+ *
+ * The set of known hashes is kept in an append-only index file next to the files folder. Each backup appends
+ * an "#open" marker, one line per new blob, and a "#close" marker when it finishes. If the index doesn't end
+ * with a close marker, a backup was interrupted (possibly between storing a blob and indexing it), so the index
+ * is considered stale and rebuilt by walking the files folder.
+ *
+ * Large files may be stored in chunks (see Chunker). Each chunk is an ordinary blob, and the file itself is
+ * represented by a manifest manifests/ab/cd/[hash] which lists its chunks in order. A hash is in the repository
+ * if either a blob or a manifest exists for it, and open() reads both kinds the same way.
+ *
+ * Blobs may also be compressed (see BlobCompression), in which case their file name has a ".z" suffix,
+ * and small blobs may be stored in pack files instead of files of their own (see PackStore).
+ *
+ * Content is named by the hash algorithm of the repository (see RepositoryConfig). In tree mode the leaf hashes
+ * of content larger than one leaf are kept in trees/ab/cd/[hash], so that verifyRange can check part of the
+ * content without reading all of it. Trees are not content: a missing tree only means the whole content is read.
+ */
+class BlobStore {
+
+    static final String INDEX_FILE_NAME = "blob-index.txt";
+    static final String OPEN_MARKER = "#open ";
+    static final String CLOSE_MARKER = "#close ";
+    static final String MANIFESTS_DIR_NAME = "manifests";
+    static final String PACKS_DIR_NAME = "packs";
+    static final String MANIFEST_HEADER = "#chunks v1";
+    static final String TREES_DIR_NAME = "trees";
+    static final String TREE_HEADER = "#tree v1 " + TreeHasher.LEAF_SIZE;
+
+    final File repoFilesDir;
+    final File manifestsDir;
+    final File treesDir;
+    final HashAlgorithm hashAlgorithm;
+    final PackStore packs;
+    final File indexFile;
+    FileOutputStream indexOut; // Underneath indexWriter, for sync.
+    Writer indexWriter;
+    Durability durability = Durability.NONE;
+
+    BlobStore(File repoFilesDir) throws IOException {
+        this.repoFilesDir = repoFilesDir;
+        this.manifestsDir = new File(repoFilesDir.getParentFile(), MANIFESTS_DIR_NAME);
+        this.treesDir = new File(repoFilesDir.getParentFile(), TREES_DIR_NAME);
+        this.hashAlgorithm = RepositoryConfig.load(repoFilesDir.getParentFile()).hashAlgorithm;
+        this.packs = new PackStore(new File(repoFilesDir.getParentFile(), PACKS_DIR_NAME), hashAlgorithm);
+        this.indexFile = new File(repoFilesDir.getParentFile(), INDEX_FILE_NAME);
+    }
+
+    /** The hash a blob file is named by, ignoring the compression suffix. */
+    static String hashOfBlobName(String name) {
+        return name.endsWith(BlobCompression.SUFFIX) ? name.substring(0, name.length() - BlobCompression.SUFFIX.length()) : name;
+    }
+
+    static boolean looksLikeHash(String name) {
+        if (name.length() != 64) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    File shardedFile(String hash) {
+        return new File(repoFilesDir, hash.substring(0, 2) + File.separator + hash.substring(2, 4) + File.separator + hash);
+    }
+
+    File compressedFile(String hash) {
+        return new File(shardedFile(hash).getPath() + BlobCompression.SUFFIX);
+    }
+
+    File legacyFile(String hash) {
+        return new File(repoFilesDir, hash);
+    }
+
+    File manifestFile(String hash) {
+        return new File(manifestsDir, hash.substring(0, 2) + File.separator + hash.substring(2, 4) + File.separator + hash);
+    }
+
+    File treeFile(String hash) {
+        return new File(treesDir, hash.substring(0, 2) + File.separator + hash.substring(2, 4) + File.separator + hash);
+    }
+
+    /** Returns the file which holds the blob, or null if the blob is not in the repository. */
+    File locate(String hash) {
+        File sharded = shardedFile(hash);
+        if (sharded.isFile()) return sharded;
+        File compressed = compressedFile(hash);
+        if (compressed.isFile()) return compressed;
+        File legacy = legacyFile(hash);
+        if (legacy.isFile()) return legacy;
+        return null;
+    }
+
+    /** Returns the chunk manifest of a chunked file, or null if the file is not stored in chunks. */
+    File locateManifest(String hash) {
+        File manifest = manifestFile(hash);
+        return manifest.isFile() ? manifest : null;
+    }
+
+    /** True if the content is in the repository, as a blob, a packed blob or a chunk manifest. */
+    boolean contains(String hash) throws IOException {
+        return locate(hash) != null || packs.contains(hash) || locateManifest(hash) != null;
+    }
+
+    /** Returns the size of the content, or -1 if it is not in the repository. */
+    long size(String hash) throws IOException {
+        File blob = locate(hash);
+        if (blob != null) return BlobCompression.isCompressedBlob(blob) ? BlobCompression.originalSize(blob) : blob.length();
+        long packedSize = packs.size(hash);
+        if (packedSize >= 0) return packedSize;
+        File manifest = locateManifest(hash);
+        if (manifest == null) return -1;
+        long sizeBytes = 0;
+        for (ChunkRef chunk : readManifest(manifest)) {
+            sizeBytes += chunk.length;
+        }
+        return sizeBytes;
+    }
+
+    /** Like locate, but a missing blob is an error. */
+    File require(String hash) throws FileNotFoundException {
+        File blob = locate(hash);
+        if (blob == null) {
+            throw new FileNotFoundException("Blob " + hash + " not found from repository " + repoFilesDir.getAbsolutePath());
+        }
+        return blob;
+    }
+
+    /** Opens the content for reading. Chunked content is read as the concatenation of its chunks. */
+    InputStream open(String hash) throws IOException {
+        File blob = locate(hash);
+        if (blob != null) return BlobCompression.isCompressedBlob(blob) ? BlobCompression.open(blob) : new FileInputStream(blob);
+        PackStore.Record packed = packs.read(hash);
+        if (packed != null) return new ByteArrayInputStream(packed.content);
+        File manifest = locateManifest(hash);
+        if (manifest == null) return new FileInputStream(require(hash));
+        List<ChunkRef> chunkRefs = readManifest(manifest);
+        for (ChunkRef chunk : chunkRefs) {
+            // Fail now rather than halfway through reading if a chunk is missing.
+            if (!packs.contains(chunk.hash)) require(chunk.hash);
+        }
+        Iterator<ChunkRef> chunks = chunkRefs.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return open(chunks.next().hash);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        });
+    }
+
+    /** Writes the content to target, which must not exist yet. */
+    void copyTo(String hash, File target) throws IOException {
+        File blob = locate(hash);
+        if (blob != null && !BlobCompression.isCompressedBlob(blob)) {
+            Utils.copy(blob, target);
+            return;
+        }
+        PackStore.Record packed = blob == null ? packs.read(hash) : null;
+        if (packed != null) {
+            Files.write(target.toPath(), packed.content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            Files.setLastModifiedTime(target.toPath(), FileTime.fromMillis(packed.lastModifiedMillis));
+            return;
+        }
+        try (InputStream in = open(hash)) {
+            Files.copy(in, target.toPath());
+        }
+        // Compressed blobs and manifests carry the last-modified time of the original, like raw copies do.
+        File carrier = blob != null ? blob : locateManifest(hash);
+        if (carrier != null) {
+            Files.setLastModifiedTime(target.toPath(), Files.getLastModifiedTime(carrier.toPath()));
+        }
+    }
+
+    /** Renames a complete temp copy to its final place in the fan-out layout and records it in the index. */
+    void moveIntoPlace(File tempCopy, String hash) throws IOException {
+        moveIntoPlace(tempCopy, hash, false);
+    }
+
+    void moveIntoPlace(File tempCopy, String hash, boolean compressed) throws IOException {
+        File target = compressed ? compressedFile(hash) : shardedFile(hash);
+        target.getParentFile().mkdirs();
+        // TODO verify that originalFilePath != copyOfFilePath != siblingPath
+        durability.syncFile(tempCopy);
+        try {
+            Files.move(tempCopy.toPath(), target.toPath());
+        } catch (FileAlreadyExistsException ex) {
+            // Identical content was stored at the same time, e.g. as a chunk of another file. Keep the existing blob.
+            Files.delete(tempCopy.toPath());
+            durability.created(target, repoFilesDir);
+            return;
+        }
+        durability.created(target, repoFilesDir);
+        appendToIndex(hash);
+    }
+
+    /**
+     * Appends a small blob to the current pack. Its hash is added to the index when the pack is sealed, which
+     * happens when the pack is full or when the index is closed.
+     */
+    void appendToPack(String hash, byte[] content, long lastModifiedMillis) throws IOException {
+        for (String sealed : packs.append(hash, content, lastModifiedMillis)) {
+            appendToIndex(sealed);
+        }
+    }
+
+    /**
+     * Writes the manifest of a chunked file and records it in the index. All chunks must already be stored.
+     * The manifest gets the last-modified time of the file, which copyTo gives the restored file.
+     */
+    void writeManifest(String hash, List<ChunkRef> chunks, long lastModifiedMillis) throws IOException {
+        File target = manifestFile(hash);
+        target.getParentFile().mkdirs();
+        File tmp = new File(manifestsDir, "temp-" + hash + "-" + Utils.timestamp() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath(), StandardOpenOption.CREATE_NEW), StandardCharsets.UTF_8))) {
+            writer.write(MANIFEST_HEADER + "\n");
+            for (ChunkRef chunk : chunks) {
+                writer.write(chunk.hash + " " + chunk.length + "\n");
+            }
+        }
+        Files.setLastModifiedTime(tmp.toPath(), FileTime.fromMillis(lastModifiedMillis));
+        durability.syncFile(tmp);
+        Files.move(tmp.toPath(), target.toPath());
+        durability.created(target, manifestsDir);
+        appendToIndex(hash);
+    }
+
+    static List<ChunkRef> readManifest(File manifest) throws IOException {
+        List<ChunkRef> chunks = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String header = br.readLine();
+            if (!MANIFEST_HEADER.equals(header)) {
+                throw new IOException("Not a chunk manifest: " + manifest.getAbsolutePath());
+            }
+            while (true) {
+                String line = br.readLine();
+                if (line == null) break;
+                String[] parts = line.split(" ");
+                if (parts.length != 2 || !looksLikeHash(parts[0]) || !parts[1].matches("[0-9]+")) {
+                    throw new IOException("Malformed line in chunk manifest " + manifest.getAbsolutePath() + ": " + line);
+                }
+                chunks.add(new ChunkRef(parts[0], Long.parseLong(parts[1])));
+            }
+        }
+        return chunks;
+    }
+
+    /** Writes the leaf hashes of tree-hashed content. Content of a single leaf needs no tree. */
+    void writeTree(String hash, List<byte[]> leaves) throws IOException {
+        if (leaves == null || leaves.size() <= 1) return;
+        File target = treeFile(hash);
+        if (target.exists()) return;
+        target.getParentFile().mkdirs();
+        File tmp = new File(treesDir, "temp-" + hash + "-" + Utils.timestamp() + "-" + Thread.currentThread().getId() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath(), StandardOpenOption.CREATE_NEW), StandardCharsets.UTF_8))) {
+            writer.write(TREE_HEADER + "\n");
+            for (byte[] leaf : leaves) {
+                writer.write(Utils.bytesToHex(leaf) + "\n");
+            }
+        }
+        durability.syncFile(tmp);
+        try {
+            Files.move(tmp.toPath(), target.toPath());
+        } catch (FileAlreadyExistsException ex) {
+            Files.delete(tmp.toPath());
+            return;
+        }
+        durability.created(target, treesDir);
+    }
+
+    /** Returns the leaf hashes of the content, or null if it has no tree. */
+    List<byte[]> readTree(String hash) throws IOException {
+        File tree = treeFile(hash);
+        if (!tree.isFile()) return null;
+        List<byte[]> leaves = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(tree), StandardCharsets.UTF_8))) {
+            if (!TREE_HEADER.equals(br.readLine())) {
+                throw new IOException("Not a hash tree: " + tree.getAbsolutePath());
+            }
+            while (true) {
+                String line = br.readLine();
+                if (line == null) break;
+                if (!looksLikeHash(line)) {
+                    throw new IOException("Malformed line in hash tree " + tree.getAbsolutePath() + ": " + line);
+                }
+                leaves.add(Utils.hexToBytes(line));
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Checks the content between offset and offset + length against its hash. With a hash tree only the leaves
+     * which overlap the range are read, after checking that the tree adds up to the hash; without one the whole
+     * content is re-hashed. Returns false if the content (or its tree) is corrupted.
+     */
+    boolean verifyRange(String hash, long offset, long length) throws IOException {
+        List<byte[]> leaves = hashAlgorithm == HashAlgorithm.SHA256_TREE ? readTree(hash) : null;
+        if (leaves == null) {
+            try (InputStream in = open(hash)) {
+                return hashAlgorithm.hash(in).equalsIgnoreCase(hash);
+            }
+        }
+        if (!TreeHasher.root(leaves).equalsIgnoreCase(hash)) return false;
+        long first = offset / TreeHasher.LEAF_SIZE;
+        long last = Math.min(leaves.size() - 1, (offset + Math.max(1, length) - 1) / TreeHasher.LEAF_SIZE);
+        if (offset < 0 || first >= leaves.size()) {
+            throw new IllegalArgumentException("Range starting at " + offset + " is outside of content " + hash);
+        }
+        byte[] buffer = HashAlgorithm.BLOCK_BUFFER.get();
+        try (InputStream in = open(hash)) {
+            skipFully(in, first * TreeHasher.LEAF_SIZE);
+            for (long i = first; i <= last; i++) {
+                int n = in.readNBytes(buffer, 0, TreeHasher.LEAF_SIZE);
+                if (!Arrays.equals(TreeHasher.hashLeaf(buffer, n), leaves.get((int) i))) return false;
+            }
+        }
+        return true;
+    }
+
+    static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                // skip may stop early, e.g. at the end of a chunk; read a byte to tell that apart from the end.
+                if (in.read() < 0) throw new EOFException("Content ended before the range to verify");
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    DigestMap loadKnownHashes() throws IOException {
+        if (indexFile.exists()) {
+            DigestMap indexed = readIndex();
+            if (indexed != null) return indexed;
+            System.out.println("Blob index " + indexFile.getAbsolutePath() + " was not closed cleanly, rebuilding it from the files folder...");
+        } else {
+            System.out.println("Blob index not found, building it from the files folder...");
+        }
+        DigestMap existing = walkKnownHashes();
+        rewriteIndex(existing);
+        return existing;
+    }
+
+    /** Returns the indexed hashes, or null if the index is stale. */
+    DigestMap readIndex() throws IOException {
+        DigestMap existing = DigestMap.newSet();
+        boolean closed = false;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            while (true) {
+                String line = br.readLine();
+                if (line == null) break;
+                if (line.startsWith(CLOSE_MARKER)) {
+                    closed = true;
+                } else if (line.startsWith(OPEN_MARKER)) {
+                    closed = false;
+                } else if (looksLikeHash(line)) {
+                    existing.add(line);
+                    closed = false;
+                } else {
+                    // A torn write at the end of the file, for example.
+                    return null;
+                }
+            }
+        }
+        return closed ? existing : null;
+    }
+
+    DigestMap walkKnownHashes() throws IOException {
+        // TODO progress indicator here
+        DigestMap existing = DigestMap.newSet();
+        packs.packedBlobs().forEach((hash, location) -> existing.add(hash));
+        for (File dir : new File[]{repoFilesDir, manifestsDir}) {
+            if (!dir.exists()) continue;
+            try (Stream<Path> pathStream = Files.walk(dir.toPath())) {
+                pathStream
+                        .map(path -> hashOfBlobName(path.getFileName().toString()))
+                        .filter(BlobStore::looksLikeHash) // Filters out broken .tmp copies and directories.
+                        .forEach(existing::add);
+            }
+        }
+        return existing;
+    }
+
+    void rewriteIndex(DigestMap existing) throws IOException {
+        File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            existing.<IOException>forEach((hash, value) -> writer.write(hash + "\n"));
+            writer.write(CLOSE_MARKER + Utils.timestamp() + "\n");
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Marks the index as stale before blobs are removed, so that an interrupted removal can't leave an index which
+     * lists removed blobs. The index is valid again once rewritten.
+     */
+    synchronized void invalidateIndex() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(indexFile, true)) {
+            out.write((OPEN_MARKER + Utils.timestamp() + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /** Marks the index as being modified. Until closeIndex is called, the index is considered stale. */
+    synchronized void openIndex() throws IOException {
+        indexOut = new FileOutputStream(indexFile, true);
+        indexWriter = new BufferedWriter(new OutputStreamWriter(indexOut, StandardCharsets.UTF_8));
+        indexWriter.write(OPEN_MARKER + Utils.timestamp() + "\n");
+        indexWriter.flush();
+    }
+
+    synchronized void appendToIndex(String hash) throws IOException {
+        if (indexWriter == null) {
+            throw new IllegalStateException("Blob index is not open for writing");
+        }
+        indexWriter.write(hash + "\n");
+    }
+
+    synchronized void closeIndex() throws IOException {
+        if (indexWriter == null) return;
+        for (String sealed : packs.seal()) {
+            appendToIndex(sealed);
+        }
+        if (durability.syncs()) {
+            // Otherwise the close marker could reach the disk without the lines above, and those blobs would be forgotten.
+            indexWriter.flush();
+            indexOut.getFD().sync();
+        }
+        indexWriter.write(CLOSE_MARKER + Utils.timestamp() + "\n");
+        indexWriter.close();
+        indexWriter = null;
+        indexOut = null;
+    }
+
+    /**
+     * Deals with temp files left behind by an interrupted backup. A temp file named after a hash
+     * (temp-HASH-timestamp.tmp) whose content turns out to be complete is moved into place, so it doesn't need to
+     * be copied again; all other temp files are deleted. Must not run while another backup uses the repository,
+     * and the index must be open. Returns the hashes which were recovered.
+     */
+    List<String> recoverTempFiles() throws IOException {
+        List<String> recovered = new ArrayList<>();
+        int deleted = 0;
+        for (File dir : new File[] { repoFilesDir, manifestsDir, treesDir }) {
+            File[] temps = dir.listFiles((d, name) -> name.startsWith("temp-") && name.endsWith(".tmp"));
+            if (temps == null) continue;
+            for (File temp : temps) {
+                String hash = dir == repoFilesDir ? hashOfTempName(temp.getName()) : null;
+                if (hash != null && !contains(hash)) {
+                    Boolean compressed = completeTempCopy(temp, hash, hashAlgorithm);
+                    if (compressed != null) {
+                        moveIntoPlace(temp, hash, compressed);
+                        recovered.add(hash);
+                        continue;
+                    }
+                }
+                Files.deleteIfExists(temp.toPath());
+                deleted++;
+            }
+        }
+        if (!recovered.isEmpty() || deleted > 0) {
+            System.out.println("Recovered " + recovered.size() + " complete temp files from an interrupted backup, deleted " + deleted + " incomplete ones.");
+        }
+        return recovered;
+    }
+
+    static String hashOfTempName(String name) {
+        String[] parts = name.split("-", 3);
+        return parts.length == 3 && looksLikeHash(parts[1]) ? parts[1].toUpperCase() : null;
+    }
+
+    /** Returns whether the temp file is a compressed or plain copy of the given hash, or null if it is neither. */
+    static Boolean completeTempCopy(File temp, String hash, HashAlgorithm hashAlgorithm) {
+        try {
+            byte[] magic = new byte[BlobCompression.MAGIC.length];
+            boolean compressed;
+            try (DataInputStream in = new DataInputStream(new FileInputStream(temp))) {
+                in.readFully(magic);
+                compressed = Arrays.equals(magic, BlobCompression.MAGIC);
+            } catch (EOFException ex) {
+                compressed = false;
+            }
+            String actual;
+            try (InputStream in = compressed ? BlobCompression.open(temp) : new FileInputStream(temp)) {
+                actual = hashAlgorithm.hash(in);
+            }
+            return actual.equalsIgnoreCase(hash) ? compressed : null;
+        } catch (IOException ex) {
+            // Truncated compressed stream or unreadable file: not a usable copy.
+            return null;
+        }
+    }
+
+    /** Moves blobs from the legacy flat layout into the fan-out layout. Safe to interrupt and run again. */
+    void migrateToShardedLayout() throws IOException {
+        List<Path> legacyBlobs;
+        try (Stream<Path> pathStream = Files.list(repoFilesDir.toPath())) {
+            legacyBlobs = pathStream
+                    .filter(path -> looksLikeHash(path.getFileName().toString()))
+                    .filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+                    .collect(Collectors.toList());
+        }
+        System.out.println("Number of blobs to migrate into the fan-out layout: " + legacyBlobs.size());
+        long totalBytes = 0;
+        for (Path path : legacyBlobs) {
+            totalBytes += Files.readAttributes(path, BasicFileAttributes.class).size();
+        }
+        ProgressIndicator progressIndicator = new ProgressIndicator(totalBytes, legacyBlobs.size(), "blobs migrated");
+        int skipped = 0;
+        for (Path path : legacyBlobs) {
+            String hash = path.getFileName().toString();
+            long sizeBytes = Files.size(path);
+            File target = shardedFile(hash);
+            if (target.exists()) {
+                // As a precaution we never delete blobs here, even if they look like duplicates.
+                System.out.println("Warning! Not migrating " + path + " because " + target.getAbsolutePath() + " already exists.");
+                skipped++;
+            } else {
+                target.getParentFile().mkdirs();
+                // Renaming within the same folder tree is atomic, so an interruption can't lose a blob.
+                Files.move(path, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            progressIndicator.tick(sizeBytes);
+        }
+        progressIndicator.done();
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " blobs which exist in both layouts; please inspect them manually.");
+        }
+    }
+
+    static class ChunkRef {
+        final String hash;
+        final long length;
+
+        ChunkRef(String hash, long length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+}
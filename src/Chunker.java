@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content-defined chunking in the style of FastCDC. A rolling "gear" hash is computed over the content and a
+ * chunk ends wherever the hash matches a mask, so boundaries depend on the content around them rather than on
+ * file offsets. Inserting or deleting bytes only changes the chunks near the edit; the rest of the file still
+ * splits into the same chunks as before, which are then deduplicated like any other blob.
+ *
+ * Chunk sizes are kept between MIN_SIZE and MAX_SIZE. Normalized chunking (a stricter mask before AVG_SIZE and
+ * a looser one after it) keeps most chunks close to the average size.
+ */
+class Chunker {
+
+    static final int MIN_SIZE = 256 * 1024;
+    static final int AVG_SIZE = 1024 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    // AVG_SIZE is 2^20, so the masks use 2 bits more and 2 bits less than that. High bits are used because
+    // with the gear hash they depend on a wider window of preceding bytes than low bits do.
+    static final long MASK_SMALL = -1L << (64 - 22);
+    static final long MASK_LARGE = -1L << (64 - 18);
+
+    // Changing the table would change every chunk boundary and ruin deduplication against existing backups.
+    // java.util.Random's sequence is fully specified, so a fixed seed gives the same table on every JVM.
+    static final long[] GEAR = gearTable(0x5B5FC0DEL);
+
+    interface ChunkConsumer {
+        /** The buffer is reused after the call returns. */
+        void accept(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    static long[] gearTable(long seed) {
+        Random random = new Random(seed);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+
+    /** Splits the remaining content of the stream into chunks, passing them to consumer in order. */
+    static void split(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[2 * MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (true) {
+            // Keep at least one maximum size chunk buffered, unless the stream ends before that.
+            if (!eof && end - start < MAX_SIZE) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                while (end < buffer.length) {
+                    int count = in.read(buffer, end, buffer.length - end);
+                    if (count < 0) {
+                        eof = true;
+                        break;
+                    }
+                    end += count;
+                }
+            }
+            if (start == end) return;
+            int length = cutPoint(buffer, start, end - start);
+            consumer.accept(buffer, start, length);
+            start += length;
+        }
+    }
+
+    /** Returns the length of the chunk which starts at offset, given that length bytes are available. */
+    static int cutPoint(byte[] buffer, int offset, int length) {
+        if (length <= MIN_SIZE) return length;
+        int limit = Math.min(length, MAX_SIZE);
+        int normal = Math.min(limit, AVG_SIZE);
+        long fingerprint = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[offset + i] & 0xFF];
+            if ((fingerprint & MASK_SMALL) == 0) return i + 1;
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[offset + i] & 0xFF];
+            if ((fingerprint & MASK_LARGE) == 0) return i + 1;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Verification step 2: re-hashes blobs in the repository against their names, and re-hashes files in the
+ * checklist against the hashes recorded in the latest snapshot. Work is spread over one thread pool per device.
+ *
+ * In fast mode only a random sample is verified. Files are sampled with probability proportional to their size,
+ * so the sample says something about the bytes in the backup rather than about the number of files: with
+ * FAST_SAMPLE_SIZE = 299 samples, if 1% or more of the bytes were corrupted, the sample would hit corrupted
+ * bytes with 95% probability (0.99^299 < 0.05). In tree mode only one leaf is read from each sampled blob: the
+ * leaf around a uniformly random offset, which gives the same guarantee since the sampled bytes are still uniform
+ * over the whole backup.
+ *
+ * A checklist file whose size differs from the size in the snapshot is not read at all, since its content can't
+ * match.
+ */
+class ContentVerifier {
+
+    static final int DEFAULT_THREADS_PER_DEVICE = 2;
+    static final int FAST_SAMPLE_SIZE = 299;
+    static final int MAX_TASKS_IN_FLIGHT = 4096;
+
+    final BlobStore blobStore;
+    final int threadsPerDevice;
+    final Random random;
+
+    final AtomicLong blobsOk = new AtomicLong();
+    final AtomicLong blobsCorrupted = new AtomicLong();
+    final AtomicLong blobsMissing = new AtomicLong();
+    final AtomicLong filesOk = new AtomicLong();
+    final AtomicLong filesChanged = new AtomicLong();
+    final AtomicLong filesCorrupted = new AtomicLong();
+    final AtomicLong filesUnreadable = new AtomicLong();
+    final AtomicLong bytesVerified = new AtomicLong();
+
+    ContentVerifier(BlobStore blobStore, int threadsPerDevice, Random random) {
+        this.blobStore = blobStore;
+        this.threadsPerDevice = threadsPerDevice;
+        this.random = random;
+    }
+
+    /**
+     * @param existing       all blobs in the repository
+     * @param latestSnapshot latest snapshot, keyed by path
+     * @param snapshotMillis when the latest snapshot was started, to tell changed files apart from corrupted ones
+     * @param targets        files currently found from checklist paths
+     */
+    void verify(DigestMap existing, Map<String, SnapshotEntry> latestSnapshot, long snapshotMillis,
+                List<BackupTargetFile> targets, boolean fast) throws IOException {
+        long startTime = System.nanoTime();
+
+        // Checklist files which are in the latest snapshot, and the size of each blob as far as we know it.
+        List<BackupTargetFile> backedUpTargets = new ArrayList<>();
+        Map<String, Long> blobSizes = new HashMap<>();
+        for (BackupTargetFile btf : targets) {
+            SnapshotEntry entry = latestSnapshot.get(btf.originPath.toString());
+            if (entry == null) continue;
+            backedUpTargets.add(btf);
+            blobSizes.put(entry.hash, entry.sizeBytes >= 0 ? entry.sizeBytes : btf.sizeBytes);
+        }
+
+        List<BackupTargetFile> files;
+        long blobCount;
+        long totalBytes = 0;
+        List<String> sampledBlobs = null;
+        boolean sampleLeaves = fast && blobStore.hashAlgorithm == HashAlgorithm.SHA256_TREE;
+        if (fast) {
+            // Sample blobs referenced by the latest snapshot; those are the ones a restore would need.
+            sampledBlobs = sample(blobSizes.keySet(), blobSizes::get, FAST_SAMPLE_SIZE, random);
+            files = sample(backedUpTargets, btf -> btf.sizeBytes, FAST_SAMPLE_SIZE, random);
+            blobCount = sampledBlobs.size();
+            for (String hash : sampledBlobs) totalBytes += sampleLeaves ? Math.min(TreeHasher.LEAF_SIZE, blobSizes.get(hash)) : blobSizes.get(hash);
+        } else {
+            files = backedUpTargets;
+            blobCount = existing.size();
+            // Only metadata, record headers of packed blobs and chunk manifests are read here, which is cheap
+            // compared to reading all content afterwards.
+            long[] blobBytes = new long[1];
+            existing.<IOException>forEach((hash, value) -> blobBytes[0] += Math.max(0, blobStore.size(hash)));
+            totalBytes += blobBytes[0];
+        }
+        for (BackupTargetFile btf : files) {
+            SnapshotEntry entry = latestSnapshot.get(btf.originPath.toString());
+            if (!sizeDiffers(btf, entry)) totalBytes += btf.sizeBytes;
+        }
+        System.out.println("Re-hashing " + blobCount + " blobs from repository and " + files.size() + " files from checklist, totaling "
+                + Utils.formatSize(totalBytes) + (fast ? " (random sample weighted by size)" : "") + "...");
+        ProgressIndicator progressIndicator = new ProgressIndicator(totalBytes, blobCount + files.size(), "files verified");
+
+        // Submission is bounded, so that verifying millions of blobs doesn't queue millions of tasks.
+        Semaphore inFlight = new Semaphore(MAX_TASKS_IN_FLIGHT);
+        try (DeviceExecutors executors = new DeviceExecutors(threadsPerDevice)) {
+            // The value is the offset of the leaf to verify, or -1 to verify the whole blob.
+            DigestMap.EntryConsumer<IOException> verifyBlob = (hash, leafOffset) -> {
+                // Chunked files are verified by reading them through their manifest, in addition to their chunks.
+                if (!blobStore.contains(hash)) {
+                    blobsMissing.incrementAndGet();
+                    System.out.println("Warning! Blob is listed in the repository but not found from files folder: " + hash);
+                    progressIndicator.tick(0);
+                    return;
+                }
+                // Blobs, packs and manifests are all in the repository, so they share the repository's device.
+                submit(inFlight, executors.forPath(blobStore.repoFilesDir.toPath()), () -> verifyBlob(hash, leafOffset, progressIndicator));
+            };
+            if (fast) {
+                for (String hash : sampledBlobs) {
+                    verifyBlob.accept(hash, sampleLeaves ? (long) (random.nextDouble() * blobSizes.get(hash)) : -1);
+                }
+            } else {
+                existing.<IOException>forEach((hash, value) -> verifyBlob.accept(hash, -1));
+            }
+            for (BackupTargetFile btf : files) {
+                SnapshotEntry entry = latestSnapshot.get(btf.originPath.toString());
+                submit(inFlight, executors.forPath(btf.originPath), () -> verifyFile(btf, entry, snapshotMillis, progressIndicator));
+            }
+            // Wait until every task has returned its permit.
+            inFlight.acquireUninterruptibly(MAX_TASKS_IN_FLIGHT);
+            System.out.println("Verified files on " + executors.deviceCount() + " device(s) with up to " + threadsPerDevice + " concurrent reads per device.");
+        }
+        progressIndicator.done();
+        printSummary(fast, System.nanoTime() - startTime);
+    }
+
+    static void submit(Semaphore inFlight, Executor executor, Runnable task) {
+        inFlight.acquireUninterruptibly();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    void verifyBlob(String hash, long leafOffset, ProgressIndicator progressIndicator) {
+        long bytes = 0;
+        try {
+            if (leafOffset >= 0) {
+                bytes = Math.min(TreeHasher.LEAF_SIZE, blobStore.size(hash));
+                if (blobStore.verifyRange(hash, leafOffset, 1)) {
+                    blobsOk.incrementAndGet();
+                } else {
+                    blobsCorrupted.incrementAndGet();
+                    System.out.println("ERROR! Blob content does not match its name (corrupted backup): " + hash + " differs around offset " + leafOffset);
+                }
+            } else {
+                CountingHash result;
+                try (InputStream in = blobStore.open(hash)) {
+                    result = CountingHash.of(in, blobStore.hashAlgorithm);
+                }
+                bytes = result.bytes;
+                if (result.hash.equalsIgnoreCase(hash)) {
+                    blobsOk.incrementAndGet();
+                } else {
+                    blobsCorrupted.incrementAndGet();
+                    System.out.println("ERROR! Blob content does not match its name (corrupted backup): " + hash + " has content with hash " + result.hash);
+                }
+            }
+        } catch (Exception ex) {
+            blobsCorrupted.incrementAndGet();
+            System.out.println("ERROR! Unable to read blob " + hash + " because of error " + ex.getMessage());
+        }
+        bytesVerified.addAndGet(bytes);
+        progressIndicator.tick(bytes);
+    }
+
+    void verifyFile(BackupTargetFile btf, SnapshotEntry entry, long snapshotMillis, ProgressIndicator progressIndicator) {
+        String fp = btf.originPath.toString();
+        long bytes = 0;
+        try {
+            boolean identical = false;
+            if (!sizeDiffers(btf, entry)) {
+                identical = blobStore.hashAlgorithm.hash(btf.originPath.toFile()).equalsIgnoreCase(entry.hash);
+                bytes = btf.sizeBytes;
+            }
+            long lastModifiedMillis = TimeUnit.NANOSECONDS.toMillis(btf.lastModifiedNanos);
+            if (identical) {
+                filesOk.incrementAndGet();
+            } else if (entry.lastModifiedMillis >= 0 ? lastModifiedMillis != entry.lastModifiedMillis : lastModifiedMillis >= snapshotMillis) {
+                filesChanged.incrementAndGet();
+                System.out.println("Note: file has been modified after latest backup: " + fp);
+            } else {
+                filesCorrupted.incrementAndGet();
+                System.out.println("ERROR! File content differs from latest snapshot although the file has not been modified since (corrupted original or backup?): " + fp);
+            }
+        } catch (Exception ex) {
+            filesUnreadable.incrementAndGet();
+            System.out.println("Warning! Unable to read checklist file " + fp + " because of error " + ex.getMessage());
+        }
+        bytesVerified.addAndGet(bytes);
+        progressIndicator.tick(bytes);
+    }
+
+    /** True if the snapshot records a size for the file and it is not the file's current size. */
+    static boolean sizeDiffers(BackupTargetFile btf, SnapshotEntry entry) {
+        return entry.sizeBytes >= 0 && entry.sizeBytes != btf.sizeBytes;
+    }
+
+    void printSummary(boolean fast, long elapsedNanos) {
+        double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+        System.out.println("Verification summary" + (fast ? " (fast mode, random sample)" : "") + ":");
+        System.out.println("    Repository blobs: " + blobsOk.get() + " ok, " + blobsCorrupted.get() + " corrupted or unreadable, " + blobsMissing.get() + " missing");
+        System.out.println("    Checklist files:  " + filesOk.get() + " ok, " + filesChanged.get() + " modified after backup, " + filesCorrupted.get() + " differ without modification, " + filesUnreadable.get() + " unreadable");
+        System.out.println("    Verified " + Utils.formatSize(bytesVerified.get()) + " in " + Utils.round2(seconds) + " s (" + Utils.formatSize(bytesVerified.get() / seconds) + "/s)");
+        if (blobsCorrupted.get() + blobsMissing.get() + filesCorrupted.get() == 0) {
+            System.out.println("SUCCESS! No corruption was found" + (fast ? " in the sample. With 95% confidence, less than 1% of the backed up bytes are corrupted." : "."));
+        } else {
+            System.out.println("WARNING! Corruption was found, see errors above.");
+        }
+    }
+
+    /**
+     * Weighted random sampling without replacement (Efraimidis-Spirakis): each item gets the key log(u)/weight
+     * for uniform random u, and the items with the largest keys are chosen. Zero-size items get the smallest weight.
+     */
+    static <T> List<T> sample(Collection<T> items, ToLongFunction<T> weight, int n, Random random) {
+        PriorityQueue<Map.Entry<Double, T>> top = new PriorityQueue<>(Map.Entry.comparingByKey());
+        for (T item : items) {
+            double key = Math.log(1.0 - random.nextDouble()) / Math.max(1, weight.applyAsLong(item));
+            if (top.size() < n) {
+                top.add(new AbstractMap.SimpleEntry<>(key, item));
+            } else if (key > top.peek().getKey()) {
+                top.poll();
+                top.add(new AbstractMap.SimpleEntry<>(key, item));
+            }
+        }
+        List<T> sampled = new ArrayList<>(top.size());
+        for (Map.Entry<Double, T> entry : top) sampled.add(entry.getValue());
+        return sampled;
+    }
+
+    static class CountingHash {
+        final String hash;
+        final long bytes;
+
+        CountingHash(String hash, long bytes) {
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+
+        static CountingHash of(InputStream in, HashAlgorithm hashAlgorithm) throws IOException {
+            long[] count = new long[1];
+            InputStream counting = new FilterInputStream(in) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) count[0] += n;
+                    return n;
+                }
+            };
+            String hash = hashAlgorithm.hash(counting);
+            return new CountingHash(hash, count[0]);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies whole files into the repository with the cheapest strategy which works there. The repository's file
+ * system is probed once per run:
+ *   REFLINK clones the file's extents with "cp --reflink=always" when the source is on the same copy-on-write
+ *   file system (btrfs, XFS, ...) as the repository, so no data is copied at all. Such a copy shares its blocks
+ *   with the original, but a backup on the same file system never had blocks of its own to lose anyway.
+ *   TRANSFER uses FileChannel.transferTo, which the kernel performs without copying through the JVM heap
+ *   (copy_file_range or sendfile on Linux, a mapped source elsewhere).
+ *   BUFFERED reads and writes through a large direct buffer, for file systems where transferTo fails.
+ * Like Utils.copy, the target must not exist, and the last-modified time and permissions are copied.
+ */
+class CopyEngine {
+
+    enum Strategy { REFLINK, TRANSFER, BUFFERED }
+
+    // Cloning starts a process, which costs more than copying a small file.
+    static final long REFLINK_THRESHOLD = 4L * 1024 * 1024;
+    static final int BUFFER_BYTES = 1024 * 1024;
+    static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_BYTES));
+    // Named like other temp files, so that recoverTempFiles cleans up after an interrupted probe.
+    static final String PROBE_PREFIX = "temp-copy-probe-";
+
+    final Object repositoryStore; // File store of the repository, if reflinks work there, otherwise null.
+    final Strategy strategy; // Used for everything which isn't cloned.
+    final Map<Strategy, AtomicLong> filesCopied = new EnumMap<>(Strategy.class);
+    // Looking up the file store is relatively expensive, so it is cached per directory.
+    final ConcurrentHashMap<Path, Object> storeOfDirectory = new ConcurrentHashMap<>();
+
+    CopyEngine(Object repositoryStore, Strategy strategy) {
+        this.repositoryStore = repositoryStore;
+        this.strategy = strategy;
+        for (Strategy s : Strategy.values()) {
+            filesCopied.put(s, new AtomicLong());
+        }
+    }
+
+    /** Finds out which strategies work in the directory, by copying a small probe file there. */
+    static CopyEngine probe(File dir) throws IOException {
+        long id = System.nanoTime();
+        File probe = new File(dir, PROBE_PREFIX + id + ".tmp");
+        File clone = new File(dir, PROBE_PREFIX + id + "-copy.tmp");
+        try {
+            Files.write(probe.toPath(), "probe".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE_NEW);
+            Object store = reflink(probe, clone) ? Files.getFileStore(dir.toPath()) : null;
+            Files.deleteIfExists(clone.toPath());
+            Strategy strategy = Strategy.TRANSFER;
+            try {
+                transfer(probe, clone);
+            } catch (IOException ex) {
+                strategy = Strategy.BUFFERED;
+            }
+            return new CopyEngine(store, strategy);
+        } finally {
+            Files.deleteIfExists(clone.toPath());
+            Files.deleteIfExists(probe.toPath());
+        }
+    }
+
+    String describe() {
+        String fallback = strategy.name().toLowerCase();
+        return repositoryStore == null ? fallback : "reflink within " + repositoryStore + ", otherwise " + fallback;
+    }
+
+    void copy(File source, File target) throws IOException {
+        if (source.length() >= REFLINK_THRESHOLD && sameStore(source) && !target.exists() && reflink(source, target)) {
+            copyAttributes(source, target);
+            filesCopied.get(Strategy.REFLINK).incrementAndGet();
+            return;
+        }
+        if (strategy == Strategy.TRANSFER) {
+            transfer(source, target);
+        } else {
+            buffered(source, target);
+        }
+        copyAttributes(source, target);
+        filesCopied.get(strategy).incrementAndGet();
+    }
+
+    boolean sameStore(File source) {
+        if (repositoryStore == null) return false;
+        Path dir = source.toPath().toAbsolutePath().getParent();
+        return repositoryStore.equals(storeOfDirectory.computeIfAbsent(dir, d -> {
+            try {
+                return Files.getFileStore(d);
+            } catch (IOException ex) {
+                return DeviceExecutors.UNKNOWN_DEVICE;
+            }
+        }));
+    }
+
+    /** Returns false, leaving no target behind, if the file system can't clone the source. */
+    static boolean reflink(File source, File target) throws IOException {
+        if (!System.getProperty("os.name").toLowerCase().contains("linux")) return false;
+        Process process = new ProcessBuilder("cp", "--reflink=always", "--", source.getAbsolutePath(), target.getAbsolutePath())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            if (process.waitFor(1, TimeUnit.MINUTES) && process.exitValue() == 0) return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            process.destroy();
+        }
+        Files.deleteIfExists(target.toPath());
+        return false;
+    }
+
+    static void transfer(File source, File target) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long count;
+            while ((count = in.transferTo(position, Long.MAX_VALUE - position, out)) > 0) {
+                position += count;
+            }
+        }
+    }
+
+    static void buffered(File source, File target) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            buffer.clear();
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    static void copyAttributes(File source, File target) throws IOException {
+        Files.setLastModifiedTime(target.toPath(), Files.getLastModifiedTime(source.toPath()));
+        PosixFileAttributeView view = Files.getFileAttributeView(target.toPath(), PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(Files.getPosixFilePermissions(source.toPath()));
+        }
+    }
+}
@@ -1,91 +1,264 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.rmi.UnexpectedException;
 import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class Core {
 
     static void createBackup(String checkListFilePath, String repositoryPath) throws IOException, NoSuchAlgorithmException {
+        createBackup(checkListFilePath, repositoryPath, new BackupOptions());
+    }
+
+    static void createBackup(String checkListFilePath, String repositoryPath, BackupOptions options) throws IOException, NoSuchAlgorithmException {
+        createIncrementalBackup(checkListFilePath, repositoryPath, options, null, null);
+    }
+
+    /**
+     * Backs up only the changed paths (files or directory trees, including ones which no longer exist) and carries
+     * all other entries over from the previous snapshot, so that the result is again a complete snapshot of the
+     * checklist. Without a previous snapshot, the whole checklist is backed up. Returns the targets which failed,
+     * which are missing from the snapshot.
+     */
+    @SuppressWarnings("try")
+    static List<BackupTargetFile> createIncrementalBackup(String checkListFilePath, String repositoryPath, BackupOptions options, File previousSnapshot, Set<String> changedPaths) throws IOException, NoSuchAlgorithmException {
+        try (RepositoryLock lock = RepositoryLock.acquire(new File(repositoryPath), "backup")) {
+            return runBackup(checkListFilePath, repositoryPath, options, previousSnapshot, changedPaths);
+        }
+    }
+
+    /**
+     * Like above, against the latest snapshot. It is looked up once the repository is locked, so that a backup
+     * which completes in the meantime can't be left out of the carried over entries.
+     */
+    @SuppressWarnings("try")
+    static List<BackupTargetFile> createIncrementalBackup(String checkListFilePath, String repositoryPath, BackupOptions options, Set<String> changedPaths) throws IOException, NoSuchAlgorithmException {
+        try (RepositoryLock lock = RepositoryLock.acquire(new File(repositoryPath), "backup")) {
+            File previousSnapshot = getLatestSnapshotFile(getOrCreateRepoFilesDir(repositoryPath));
+            return runBackup(checkListFilePath, repositoryPath, options, previousSnapshot, changedPaths);
+        }
+    }
+
+    static List<BackupTargetFile> runBackup(String checkListFilePath, String repositoryPath, BackupOptions options, File previousSnapshot, Set<String> changedPaths) throws IOException, NoSuchAlgorithmException {
         // TODO validate parameters correspond to valid-looking file and folder
-        String timestampAtStart = Utils.timestamp();
-        Set<String> targetPathStrings = getTargetPathStringsFromCheckList(checkListFilePath);
-        List<BackupTargetFile> allTargets = collectAllFilesFromCheckListTargetPaths(targetPathStrings);
-        List<BackupTargetFile> failedTargets = new ArrayList<>();
-        Pair job = calculateJobSize(allTargets);
-        System.out.println("Number of target files to backup: " + job.count + ", totaling " + Utils.formatSize(job.size));
-        File snapshotFile = initializeNewSnapshotFile(repositoryPath, timestampAtStart);
         File repoFilesDir = getOrCreateRepoFilesDir(repositoryPath);
-        Set<String> existing = loadKnownSetOfAlreadyBackupedUpFilesHashes(repoFilesDir);
-        // TODO make a copy of checklist into backup location, with timestamp
-        try (FileWriter snapshotWriter = new FileWriter(snapshotFile, StandardCharsets.UTF_8)) {
-            ProgressIndicator progressIndicator = new ProgressIndicator(job.size, job.count, "files from checklist are backed up to repository");
-            for (BackupTargetFile btf : allTargets) {
-                // TODO file (write-)lock from beginning of SHA to the end of copy?
+        // Before anything is written, so that a backup with the wrong hash algorithm leaves no trace.
+        RepositoryConfig config = RepositoryConfig.forBackup(repoFilesDir.getParentFile(), options.hashAlgorithm);
+        if (config.hashAlgorithm != HashAlgorithm.SHA256) {
+            System.out.println("Repository content is hashed with " + config.hashAlgorithm.id + ".");
+        }
+        BackupJournal journal = loadJournal(repositoryPath);
+        String timestampAtStart = Utils.timestamp();
+        if (journal != null) {
+            // Carry on with the interrupted run's snapshot. Its partial snapshot file is rewritten from scratch.
+            System.out.println("Resuming interrupted backup " + journal.timestamp + ", " + journal.completed.size() + " files were already backed up.");
+            timestampAtStart = journal.timestamp;
+            if (options.binarySnapshots != journal.binarySnapshots) {
+                System.out.println("Warning! Keeping the snapshot format of the interrupted backup.");
+                options.binarySnapshots = journal.binarySnapshots;
+            }
+            deleteSnapshotFiles(repositoryPath, timestampAtStart);
+            // The journal doesn't know which paths the interrupted run was given, so it is resumed as a full backup.
+            previousSnapshot = null;
+        }
+        long startMillis = System.currentTimeMillis();
+        Set<String> targetPathStrings;
+        if (previousSnapshot == null) {
+            targetPathStrings = getTargetPathStringsFromCheckList(checkListFilePath);
+        } else {
+            targetPathStrings = new HashSet<>();
+            for (String changedPath : changedPaths) {
+                // Deleted paths have no targets, merging leaves them out of the snapshot.
+                if (Files.exists(new File(changedPath).toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                    targetPathStrings.add(changedPath);
+                }
+            }
+            System.out.println("Backing up " + changedPaths.size() + " changed paths, everything else is carried over from " + previousSnapshot.getName());
+        }
+        FileTreeScanner scanner = new FileTreeScanner(options.symlinkPolicy, options.scanThreads);
+        RunMetrics metrics = new RunMetrics();
+        Iterator<BackupTargetFile> targets;
+        ProgressIndicator progressIndicator;
+        FileTreeScanner.DiscoveryStream discovery = null;
+        String explainer = "files from checklist are backed up to repository";
+        if (options.streaming) {
+            // Files are passed to the pipeline as soon as they are discovered. Totals are estimated along the way.
+            progressIndicator = ProgressIndicator.estimating(explainer);
+            long traversalStart = System.nanoTime();
+            FileTreeScanner.DiscoveryStream discovered = scanner.stream(toPaths(targetPathStrings), options.queueCapacity);
+            discovery = discovered;
+            targets = new Iterator<>() {
+                public boolean hasNext() {
+                    boolean hasNext = discovered.hasNext();
+                    if (!hasNext && progressIndicator.estimating) {
+                        progressIndicator.totalKnown();
+                        // Discovery overlaps with the other stages, so this is its wall time rather than busy time.
+                        metrics.record(RunMetrics.Stage.TRAVERSAL, traversalStart, progressIndicator.size);
+                    }
+                    return hasNext;
+                }
+
+                public BackupTargetFile next() {
+                    BackupTargetFile btf = discovered.next();
+                    progressIndicator.addToTotal(btf.sizeBytes);
+                    return btf;
+                }
+            };
+        } else {
+            long traversalStart = System.nanoTime();
+            List<BackupTargetFile> allTargets = collectAllFilesFromCheckListTargetPaths(targetPathStrings, scanner);
+            Pair job = calculateJobSize(allTargets);
+            metrics.record(RunMetrics.Stage.TRAVERSAL, traversalStart, job.size);
+            System.out.println("Number of target files to backup: " + job.count + ", totaling " + Utils.formatSize(job.size));
+            progressIndicator = new ProgressIndicator(job.size, job.count, explainer);
+            targets = allTargets.iterator();
+        }
+        try {
+            progressIndicator.metrics = metrics;
+            List<BackupTargetFile> failedTargets;
+            File snapshotFile = initializeNewSnapshotFile(repositoryPath, timestampAtStart, SnapshotWriter.extension(options.binarySnapshots));
+            BlobStore blobStore = new BlobStore(repoFilesDir);
+            Durability durability = Durability.of(options);
+            blobStore.durability = durability;
+            DigestMap existing = blobStore.loadKnownHashes();
+            MetadataCache metadataCache = MetadataCache.load(repositoryPath);
+            // TODO make a copy of checklist into backup location, with timestamp
+            blobStore.openIndex();
+            for (String recovered : blobStore.recoverTempFiles()) {
+                existing.add(recovered);
+            }
+            CopyEngine copyEngine = CopyEngine.probe(repoFilesDir);
+            metrics.copyEngine = copyEngine;
+            System.out.println("Copying new files with " + copyEngine.describe() + ".");
+            if (journal != null) {
+                journal.resume();
+            } else {
+                journal = BackupJournal.start(repositoryPath, timestampAtStart, options.binarySnapshots);
+            }
+            SnapshotWriter snapshotWriter = SnapshotWriter.create(snapshotFile, options.binarySnapshots);
+            MergingSnapshotWriter merging = null;
+            if (previousSnapshot != null) {
                 try {
-                    String hash = Utils.sha256(btf.originPath.toFile());
-                    if (!existing.contains(hash)) {
-                        // File does not already exist in backup repository, so we need to copy it.
-                        // We want to copy the file under a temp name first, because the copy might fail and in that case
-                        // we want the file name to indicate that this partial/failed copy is not a proper copy of the file.
-                        File originalFile = btf.originPath.toFile();
-                        File copyOfFile = new File(repoFilesDir.getAbsolutePath() + File.separator + "temp-" + hash + "-" + timestampAtStart + ".tmp");
-                        if (copyOfFile.exists()) {
-                            throw new UnexpectedException("We were about to copy a file to a temporary path, but the path already has an existing file." +
-                                    "As a precaution we do not overwrite the path: " + copyOfFile.getAbsolutePath() +
-                                    "\nThis error might occur if the clock in your computer is not operating normally or if this software has a bug.");
+                    snapshotWriter = merging = new MergingSnapshotWriter(snapshotWriter, previousSnapshot, changedPaths);
+                } catch (IOException ex) {
+                    snapshotWriter.close();
+                    throw ex;
+                }
+            }
+            if (options.streaming || options.deviceScheduling) {
+                // Discovery order and completion order are arbitrary, so the snapshot is sorted before it is written out.
+                snapshotWriter = new SortingSnapshotWriter(snapshotWriter, snapshotFile, SortingSnapshotWriter.DEFAULT_BATCH_SIZE);
+            }
+            try (SnapshotWriter writer = snapshotWriter) {
+                BackupPipeline pipeline = new BackupPipeline(blobStore, existing, timestampAtStart, options, metadataCache, metrics, journal);
+                pipeline.copyEngine = copyEngine;
+                if (options.deviceScheduling) {
+                    try (DeviceExecutors devices = new DeviceExecutors(options.hashThreads, options.hddThreads)) {
+                        // A collected catalog is queued by device all at once, a streamed one as it is discovered.
+                        int lookahead = options.streaming ? options.queueCapacity : Integer.MAX_VALUE;
+                        failedTargets = pipeline.runScheduled(targets, lookahead, devices, writer, progressIndicator);
+                        progressIndicator.done();
+                        for (String device : devices.describe()) {
+                            System.out.println("    Read from " + device);
                         }
-                        Utils.copy(originalFile, copyOfFile);
-                        // Once copy has finished successfully, attempt to rename the file to just the hash (no extension).
-                        // TODO verify that originalFilePath != copyOfFilePath != siblingPath
-                        Files.move(copyOfFile.toPath(), copyOfFile.toPath().resolveSibling(hash));
-                        existing.add(hash);
                     }
-
-                    // Now that file exists in backup repository, append path/hash pair to current snapshot.
-                    snapshotWriter.write(btf.originPath.toString() + Utils.SEPARATOR_BETWEEN_PATH_AND_HASH + hash + "\n");
-                    snapshotWriter.flush();
-                } catch (Exception ex) {
-                    failedTargets.add(btf);
-                    System.err.println("Unable to copy file " + btf.originPath.toAbsolutePath().toString() + " because of error " + ex.getMessage());
-                    ex.printStackTrace();
+                } else {
+                    failedTargets = pipeline.run(targets, writer, progressIndicator);
+                    progressIndicator.done();
                 }
-                progressIndicator.tick(btf.sizeBytes);
+                // Only a backup which got this far writes a complete snapshot. A failed one is closed unfinished.
+                writer.finish();
             }
-            progressIndicator.done();
-        }
-        if (!failedTargets.isEmpty()) {
-            System.out.println("Failed to copy " + failedTargets.size() + " targets:");
-            for (BackupTargetFile btf : failedTargets) {
-                // TODO write failures to checklist-failures.txt
-                System.out.println(btf.originPath.toAbsolutePath().toString());
+            // The complete snapshot must be on disk before the journal, which could still resume it, is deleted.
+            durability.syncFile(snapshotFile);
+            durability.created(snapshotFile, snapshotFile.getParentFile());
+            durability.syncDirectories();
+            // Reading the snapshot back for the catalog also checks that it is complete.
+            SnapshotCatalog catalog = SnapshotCatalog.load(repoFilesDir.getParentFile());
+            catalog.add(SnapshotCatalog.describe(snapshotFile));
+            catalog.save(durability);
+            blobStore.closeIndex();
+            if (merging != null) {
+                System.out.println("Carried over " + merging.carriedOver + " unchanged files from the previous snapshot.");
+                metadataCache.carryOver(path -> MergingSnapshotWriter.isChanged(path, changedPaths));
+            }
+            metadataCache.save(startMillis);
+            // The snapshot is complete, so there is nothing left to resume.
+            journal.delete();
+            metrics.printReport();
+            try {
+                File report = metrics.writeReport(repositoryPath, timestampAtStart, options);
+                System.out.println("Run report was written to " + report.getAbsolutePath());
+            } catch (IOException ex) {
+                // The backup itself is complete, a missing report is not worth failing it for.
+                System.out.println("Warning! Unable to write run report: " + ex.getMessage());
             }
+            if (!failedTargets.isEmpty()) {
+                System.out.println("Failed to copy " + failedTargets.size() + " targets:");
+                for (BackupTargetFile btf : failedTargets) {
+                    // TODO write failures to checklist-failures.txt
+                    System.out.println(btf.originPath.toAbsolutePath().toString());
+                }
+            }
+            return failedTargets;
+        } finally {
+            // A failed backup stops reading targets, which would leave discovery waiting forever.
+            if (discovery != null) discovery.close();
+        }
+    }
+
+    static BackupJournal loadJournal(String repositoryPath) {
+        try {
+            return BackupJournal.load(repositoryPath);
+        } catch (IOException ex) {
+            // Resuming is only an optimization, the backup can always start over.
+            System.out.println("Warning! Ignoring unreadable backup journal (" + ex.getMessage() + "), starting a new backup.");
+            return null;
+        }
+    }
+
+    /** Deletes the snapshot files of the timestamp in any format, including spill files of a sorting writer. */
+    static void deleteSnapshotFiles(String repositoryPath, String timestamp) throws IOException {
+        File snapshotsDir = new File(repositoryPath + File.separator + "filepath-snapshots");
+        String prefix = "snapshot-" + timestamp;
+        File[] partial = snapshotsDir.listFiles((dir, name) -> name.startsWith(prefix));
+        if (partial == null) return;
+        for (File file : partial) {
+            Files.delete(file.toPath());
         }
     }
 
     static void verifyBackup(String checkListFilePath, String repositoryPath, boolean fast) throws IOException {
+        verifyBackup(checkListFilePath, repositoryPath, fast, ContentVerifier.DEFAULT_THREADS_PER_DEVICE);
+    }
+
+    static void verifyBackup(String checkListFilePath, String repositoryPath, boolean fast, int threadsPerDevice) throws IOException {
         System.out.println("Verification step 1: verifying that files from checklist are found in backup repository's snapshot and files folder... (file contents will not be verified yet)");
         Set<String> targetPathStrings = getTargetPathStringsFromCheckList(checkListFilePath);
         List<BackupTargetFile> allTargets = collectAllFilesFromCheckListTargetPaths(targetPathStrings);
         File repoFilesDir = getOrCreateRepoFilesDir(repositoryPath);
-        Set<String> existing = loadKnownSetOfAlreadyBackupedUpFilesHashes(repoFilesDir);
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        DigestMap existing = blobStore.loadKnownHashes();
         File latestSnapshotFile = getLatestSnapshotFile(repoFilesDir);
-        HashMap<String, String> latestSnapshot = loadSnapshotMap(latestSnapshotFile);
+        HashMap<String, SnapshotEntry> latestSnapshot = loadSnapshotEntries(latestSnapshotFile);
         int[] count = new int[2];
         final int FOUND = 1;
         final int NOT_FOUND = 0;
         for (BackupTargetFile btf : allTargets) {
             String fp = btf.originPath.toString();
-            String hash = latestSnapshot.get(fp);
+            SnapshotEntry entry = latestSnapshot.get(fp);
+            String hash = entry == null ? null : entry.hash;
             if (hash == null) {
                 System.out.println("Warning! File found from checklist path but not from backup repository's latest snapshot: " + fp);
                 count[NOT_FOUND]++;
-            } else if (!existing.contains(hash)) {
+            } else if (!existing.contains(hash) || !blobStore.contains(hash)) {
+                // The index is checked against the files folder too, in case blobs were removed by hand.
                 System.out.println("Warning! File found from checklist path and from snapshot but not from backup repository's files folder: " + fp);
                 count[NOT_FOUND]++;
             } else {
@@ -101,184 +274,266 @@ public class Core {
 
 
         System.out.println("Verification step 2: verifying file contents...");
-        // TODO if fast then take a small sample of files for step2
-        // TODO Recalculate SHA256 for all files in "files" folder and compare against SHA256 in filename
-        // TODO Recalculate SHA256 for all files in checklist (compare against known set + verify that file is listed with correct hash in latest snapshot)
+        long snapshotMillis = Utils.parseTimestamp(snapshotTimestamp(latestSnapshotFile));
+        ContentVerifier verifier = new ContentVerifier(blobStore, threadsPerDevice, new Random());
+        verifier.verify(existing, latestSnapshot, snapshotMillis, allTargets, fast);
+    }
+
+    @SuppressWarnings("try")
+    static void pruneRepository(String repositoryPath, PruneOptions options) throws IOException {
+        File repoFilesDir = getOrCreateRepoFilesDir(repositoryPath);
+        try (RepositoryLock lock = RepositoryLock.acquire(repoFilesDir.getParentFile(), "prune")) {
+            new Pruner(repoFilesDir, options).prune(LocalDateTime.now());
+        }
+    }
 
-        // TODO summary of results
+    @SuppressWarnings("try")
+    static void migrateRepositoryLayout(String repositoryPath) throws IOException {
+        File repoFilesDir = getOrCreateRepoFilesDir(repositoryPath);
+        try (RepositoryLock lock = RepositoryLock.acquire(repoFilesDir.getParentFile(), "migration")) {
+            System.out.println("Migrating blobs from the flat files folder into the fan-out layout (files/ab/cd/hash)...");
+            new BlobStore(repoFilesDir).migrateToShardedLayout();
+        }
     }
 
     static void detectDuplicates(String repositoryPath, int mbThreshold) throws IOException {
         System.out.println("Detecting duplicates based on latest snapshot file...");
         File repoFilesDir = getOrCreateRepoFilesDir(repositoryPath);
         File latestSnapshotFile = getLatestSnapshotFile(repoFilesDir);
-        HashMap<String, String> latestSnapshot = loadSnapshotMap(latestSnapshotFile);
-
-        // Count duplicates
-        ElementCounter reverseSnapshot = new ElementCounter();
-        for (String hash : latestSnapshot.values()) {
-            reverseSnapshot.add(hash);
-        }
-        long totalC = latestSnapshot.size();
-        long uniqueC = reverseSnapshot.size();
-        long duplicateC = totalC - uniqueC;
-
-        // Collect file paths for large duplicates
-        long byteThreshold = 1000000L * mbThreshold;
-        Map<String, ArrayList<String>> duplicateFilePaths = new HashMap<>();
-        Map<String, Long> duplicateBytes = new TreeMap<>();
-        for (String fp : latestSnapshot.keySet()) {
-            String hash = latestSnapshot.get(fp);
-            if (reverseSnapshot.get(hash) > 1) {
-                // If we are here, then this file is a duplicate
-                long bytes = new File(fp).length();
-                if (bytes < byteThreshold) {
-                    // We don't care about small duplicates
-                    continue;
-                }
-                // Write down size (possibly overwriting identical value)
-                duplicateBytes.put(hash, bytes);
-                if (!duplicateFilePaths.containsKey(hash)) {
-                    // First instance of this duplicate file in this loop, so initialize list of paths
-                    duplicateFilePaths.put(hash, new ArrayList<>());
-                }
-                // Add this path to list of file paths for this hash
-                duplicateFilePaths.get(hash).add(fp);
-            }
-        }
-
-        // Print file paths for large duplicates
-        List<Map.Entry<String, Long>> entries = new ArrayList<>(duplicateBytes.entrySet());
-        entries.sort(Map.Entry.comparingByValue());
-        for (Map.Entry<String, Long> entry : entries) {
-            String hash = entry.getKey();
-            // Verify that more than 1 path was found (in cases where a file is deleted after creating snapshot, it's possible
-            // that we find duplicates in snapshot but then don't locate all the versions of the actual file, in which
-            // case there would be just one (or zero) filepaths in duplicateFilePaths
-            if (duplicateFilePaths.size() < 2) {
-                continue;
-            }
-            System.out.println();
-            System.out.println(Utils.formatSize(duplicateBytes.get(hash)));
-            for (String fp : duplicateFilePaths.get(hash)) {
-                System.out.println("    " + fp);
-            }
-        }
+        DuplicateFinder finder = new DuplicateFinder(1000000L * mbThreshold, ContentVerifier.DEFAULT_THREADS_PER_DEVICE);
+        finder.print(finder.fromSnapshot(latestSnapshotFile, new BlobStore(repoFilesDir)));
+    }
 
-        // Print total duplicate count, including small files
-        System.out.println("Total files in snapshot: " + totalC + " (" + uniqueC + " unique) (" + duplicateC + " duplicate).");
+    /** Finds duplicates among the files in a checklist by reading the files themselves, no backup needed. */
+    static void detectDuplicatesInCheckList(String checkListFilePath, int mbThreshold) throws IOException {
+        System.out.println("Detecting duplicates among files in checklist...");
+        List<BackupTargetFile> allTargets = collectAllFilesFromCheckListTargetPaths(getTargetPathStringsFromCheckList(checkListFilePath));
+        DuplicateFinder finder = new DuplicateFinder(1000000L * mbThreshold, ContentVerifier.DEFAULT_THREADS_PER_DEVICE);
+        finder.print(finder.fromFiles(allTargets));
     }
 
     static void compareSnapshots(String snapshot1PathString, String snapshot2PathString) throws IOException {
+        File snapshot1 = new File(snapshot1PathString).getAbsoluteFile();
+        File snapshot2 = new File(snapshot2PathString).getAbsoluteFile();
+        File output = new File(snapshot2.getParentFile(), "diff-" + baseName(snapshot1) + "-to-" + baseName(snapshot2) + ".tsv");
+        compareSnapshots(snapshot1, snapshot2, output);
+    }
+
+    /** Writes the differences from snapshot1 to snapshot2 into output, and prints a summary. */
+    static void compareSnapshots(File snapshot1, File snapshot2, File output) throws IOException {
         System.out.println("Comparing snapshots...");
-        HashMap<String, String> hashToPath1 = loadReverseSnapshotMap(new File(snapshot1PathString));
-        HashMap<String, String> hashToPath2 = loadReverseSnapshotMap(new File(snapshot2PathString));
-        List<String> discrepancies = new ArrayList<>();
-        for (String hash : hashToPath1.keySet()) {
-            if (hashToPath2.containsKey(hash)) {
-                continue;
-            }
-            discrepancies.add("Hash from snapshot1 not found in snapshot2: " + hashToPath1.get(hash));
-        }
-        for (String hash : hashToPath2.keySet()) {
-            if (hashToPath1.containsKey(hash)) {
-                continue;
-            }
-            discrepancies.add("Hash from snapshot2 not found in snapshot1: " + hashToPath2.get(hash));
-        }
-        Collections.sort(discrepancies);
-        for (String s : discrepancies) {
-            System.out.println(s);
-        }
+        // Snapshots in a repository can look up sizes which text snapshots don't record.
+        File repoFilesDir = new File(snapshot2.getAbsoluteFile().getParentFile().getParentFile(), "files");
+        BlobStore blobStore = repoFilesDir.isDirectory() ? new BlobStore(repoFilesDir) : null;
+        new SnapshotDiff(blobStore).diff(snapshot1, snapshot2, output);
+    }
+
+    static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
     }
 
     static void restoreBackup(String repositoryPath, String restoreLocation) throws IOException {
-        // Get latest snapshot
+        restoreBackup(repositoryPath, restoreLocation, new RestoreOptions());
+    }
+
+    static void restoreBackup(String repositoryPath, String restoreLocation, RestoreOptions options) throws IOException {
         File repoFilesDir = getOrCreateRepoFilesDir(repositoryPath);
-        File latestSnapshotFile = getLatestSnapshotFile(repoFilesDir);
-        HashMap<String, String> latestSnapshot = loadSnapshotMap(latestSnapshotFile);
-        System.out.println("Number of repo files to restore: " + latestSnapshot.size());
-
-        // Calculate total size for progress indicator
-        List<BackupTargetFile> allFiles = collectAllFilesFromCheckListTargetPaths(Set.of(repoFilesDir.toString()));
-        Pair job = calculateJobSize(allFiles);
-        ProgressIndicator progressIndicator = new ProgressIndicator(job.size, job.count, "files from backup are restored");
-
-        // Copy files
-        for (String originalFilepath : latestSnapshot.keySet()) {
-            String hash = latestSnapshot.get(originalFilepath);
-            File backupFile = new File(repoFilesDir, hash);
-
-            // Fix platform specific special characters
-            String fixedOriginalFilepath = originalFilepath
-                    .replace(":", "")
-                    .replace('\\', '/')
-                    .replace('/', File.separatorChar);
-
-            // Copy as .tmp first, rename after successful copy (because an error during copy can lead to partially copied file, we want the .tmp to indicate that)
-            File restoreDir = new File(restoreLocation);
-            File tmpCopy = new File(restoreDir, fixedOriginalFilepath + ".tmp");
-            File finalCopy = new File(restoreDir, fixedOriginalFilepath);
-            tmpCopy.getParentFile().mkdirs();
-            Utils.copy(backupFile, tmpCopy);
-            Files.move(tmpCopy.toPath(), finalCopy.toPath());
-            long sizeBytes = finalCopy.length();
-            progressIndicator.tick(sizeBytes);
-        }
-        progressIndicator.done();
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        File snapshotFile = options.snapshotTimestamp == null
+                ? getLatestSnapshotFile(repoFilesDir)
+                : getSnapshotFile(repoFilesDir, options.snapshotTimestamp);
+        new Restorer(blobStore, new File(restoreLocation), options).restore(snapshotFile);
     }
 
     static HashMap<String, String> loadSnapshotMap(File snapshotFile) throws IOException {
         HashMap<String, String> snapshotMap = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), "UTF-8"))) {
-            while (true) {
-                String line = br.readLine();
-                if (line == null) break;
-                line = line.replace("\uFEFF", ""); // Remove UTF-8 BOM
-                String[] splitted = line.split(Utils.SEPARATOR_BETWEEN_PATH_AND_HASH);
-                if (splitted.length != 2) {
-                    System.out.println("Warning! Skipping malformed line in snapshot: " + line);
-                    continue;
-                }
-                String filePath = splitted[0];
-                String hash = splitted[1];
-                snapshotMap.put(filePath, hash);
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            while (reader.hasNext()) {
+                SnapshotEntry entry = reader.next();
+                snapshotMap.put(entry.path, entry.hash);
             }
         }
         return snapshotMap;
     }
 
-    static HashMap<String, String> loadReverseSnapshotMap(File snapshotFile) throws IOException {
-        HashMap<String, String> snapshotMap = loadSnapshotMap(snapshotFile);
-        HashMap<String, String> reversed = new HashMap<>();
-        for (Map.Entry<String, String> entry : snapshotMap.entrySet()) {
-            reversed.put(entry.getValue(), entry.getKey());
+    /**
+     * Writes a binary copy of a text snapshot next to it (same name, .bin extension). Sizes are taken from the
+     * repository's blobs when available. Once the binary snapshot is on disk and reads back completely, the text
+     * snapshot is deleted, so that a timestamp never has two snapshot files.
+     */
+    @SuppressWarnings("try")
+    static File convertSnapshotToBinary(String snapshotPathString) throws IOException {
+        File textSnapshot = new File(snapshotPathString);
+        File repositoryDir = textSnapshot.getAbsoluteFile().getParentFile().getParentFile();
+        try (RepositoryLock lock = RepositoryLock.acquire(repositoryDir, "conversion")) {
+            return convertSnapshotToBinary(textSnapshot, repositoryDir);
         }
-        return reversed;
     }
 
-    /** Iterate snapshots in repo, return latest snapshot file. */
-    static File getLatestSnapshotFile(File repoFilesDir) throws IOException {
-        File snapshotsDir = new File(repoFilesDir.getParentFile().getAbsolutePath() + File.separator + "filepath-snapshots" + File.separator);
-        try (Stream<Path> pathStream = Files.walk(snapshotsDir.toPath())) {
-            // Timestamp format allows us to find the latest snapshot by simply ordering filenames in alphabetical order.
-            List<String> snapshotPathStrings = pathStream
-                    .map(path -> path.getFileName().toString())
-                    .sorted(Collections.reverseOrder())
-                    .collect(Collectors.toList());
-            if (snapshotPathStrings.isEmpty()) {
-                throw new IllegalArgumentException("No snapshot files found in repository " + repoFilesDir.getAbsolutePath());
+    static File convertSnapshotToBinary(File textSnapshot, File repositoryDir) throws IOException {
+        if (SnapshotReader.isBinary(textSnapshot)) {
+            throw new IllegalArgumentException("Snapshot is already in binary format: " + textSnapshot.getAbsolutePath());
+        }
+        String name = textSnapshot.getName();
+        String baseName = name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name;
+        File binarySnapshot = new File(textSnapshot.getParentFile(), baseName + SnapshotWriter.extension(true));
+        if (binarySnapshot.exists()) {
+            throw new IllegalArgumentException("Refusing to overwrite existing file: " + binarySnapshot.getAbsolutePath());
+        }
+        BlobStore blobStore = new BlobStore(new File(repositoryDir, "files"));
+
+        // Snapshots written by createBackup are already sorted, so usually we can stream straight through.
+        boolean sorted = true;
+        try (SnapshotReader reader = SnapshotReader.open(textSnapshot)) {
+            String previous = null;
+            while (reader.hasNext() && sorted) {
+                String path = reader.next().path;
+                sorted = previous == null || previous.compareTo(path) < 0;
+                previous = path;
+            }
+        }
+        File tmp = new File(binarySnapshot.getAbsolutePath() + ".tmp");
+        long count = 0;
+        try (SnapshotReader reader = SnapshotReader.open(textSnapshot);
+             SnapshotWriter writer = SnapshotWriter.create(tmp, true)) {
+            Iterator<SnapshotEntry> entries = reader;
+            if (!sorted) {
+                System.out.println("Snapshot is not sorted by path, sorting it in memory...");
+                TreeMap<String, SnapshotEntry> byPath = new TreeMap<>();
+                reader.forEachRemaining(entry -> byPath.put(entry.path, entry));
+                entries = byPath.values().iterator();
+            }
+            while (entries.hasNext()) {
+                SnapshotEntry entry = entries.next();
+                long sizeBytes = blobStore.size(entry.hash);
+                writer.write(new SnapshotEntry(entry.path, entry.hash, sizeBytes, -1));
+                count++;
+            }
+            writer.finish();
+        }
+        try (FileChannel channel = Durability.openForSync(tmp.toPath())) {
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), binarySnapshot.toPath());
+        Path snapshotsDir = binarySnapshot.getAbsoluteFile().getParentFile().toPath();
+        Durability.syncDirectory(snapshotsDir);
+        long readBack = 0;
+        try (SnapshotReader reader = SnapshotReader.open(binarySnapshot)) {
+            while (reader.hasNext()) {
+                reader.next();
+                readBack++;
             }
+        }
+        if (readBack != count) {
+            throw new IOException("Binary snapshot " + binarySnapshot.getAbsolutePath() + " has " + readBack + " entries instead of " + count + ", keeping the text snapshot.");
+        }
+        if (SnapshotCatalog.fileOf(repositoryDir).exists()) {
+            // The binary snapshot replaces the text one in the catalog, like it would when the catalog is rebuilt.
+            SnapshotCatalog catalog = SnapshotCatalog.load(repositoryDir);
+            catalog.add(SnapshotCatalog.describe(binarySnapshot));
+            catalog.save(Durability.NONE);
+        }
+        long textBytes = textSnapshot.length();
+        Files.delete(textSnapshot.toPath());
+        Durability.syncDirectory(snapshotsDir);
+        System.out.println("Converted " + count + " entries to " + binarySnapshot.getAbsolutePath() + " (" + Utils.formatSize(textBytes) + " -> " + Utils.formatSize(binarySnapshot.length()) + "), the text snapshot was deleted.");
+        return binarySnapshot;
+    }
+
+    static HashMap<String, SnapshotEntry> loadSnapshotEntries(File snapshotFile) throws IOException {
+        HashMap<String, SnapshotEntry> snapshotMap = new HashMap<>();
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            while (reader.hasNext()) {
+                SnapshotEntry entry = reader.next();
+                snapshotMap.put(entry.path, entry);
+            }
+        }
+        return snapshotMap;
+    }
+
+    /** Returns the timestamp part of a snapshot file name such as snapshot-2018-12-31-23-59-59.txt */
+    static String snapshotTimestamp(File snapshotFile) {
+        String name = snapshotFile.getName();
+        int dot = name.indexOf('.');
+        return name.substring("snapshot-".length(), dot < 0 ? name.length() : dot);
+    }
+
+    /** Returns the latest complete snapshot file of the repository. */
+    static File getLatestSnapshotFile(File repoFilesDir) throws IOException {
+        SnapshotCatalog catalog = SnapshotCatalog.load(repoFilesDir.getParentFile());
+        SnapshotCatalog.Entry latest = catalog.latest();
+        if (latest == null) {
+            throw new IllegalArgumentException("No snapshot files found in repository " + repoFilesDir.getAbsolutePath());
+        }
+        File latestSnapshotFile = catalog.snapshotFile(latest);
+        System.out.println("Latest snapshot appears to be " + latestSnapshotFile.getAbsolutePath());
+        return latestSnapshotFile;
+    }
+
+    /** Returns the latest snapshot whose timestamp starts with the given (full or partial) timestamp. */
+    static File getSnapshotFile(File repoFilesDir, String timestamp) throws IOException {
+        SnapshotCatalog catalog = SnapshotCatalog.load(repoFilesDir.getParentFile());
+        SnapshotCatalog.Entry entry = catalog.find(timestamp);
+        if (entry == null) {
+            throw new IllegalArgumentException("No snapshot with timestamp " + timestamp + " found in repository " + repoFilesDir.getAbsolutePath());
+        }
+        File snapshotFile = catalog.snapshotFile(entry);
+        System.out.println("Using snapshot " + snapshotFile.getAbsolutePath());
+        return snapshotFile;
+    }
+
+    static void listSnapshots(String repositoryPath) throws IOException {
+        List<SnapshotCatalog.Entry> entries = SnapshotCatalog.load(new File(repositoryPath)).list();
+        System.out.println("Repository has " + entries.size() + " snapshots:");
+        for (SnapshotCatalog.Entry entry : entries) {
+            String sizes = entry.totalBytes < 0
+                    ? "sizes not recorded"
+                    : Utils.formatSize(entry.totalBytes) + ", " + Utils.formatSize(entry.uniqueBytes) + " unique";
+            System.out.println(entry.timestamp + "  " + entry.entryCount + " files, " + sizes + "  (" + entry.fileName + ")");
+        }
+    }
 
-            String latestSnapshotPathString = snapshotsDir.getAbsolutePath() + File.separator + snapshotPathStrings.get(0);
-            System.out.println("Latest snapshot appears to be " + latestSnapshotPathString);
-            return new File(latestSnapshotPathString);
+    /** Rebuilds the snapshot catalog from the snapshot files and reports where it was out of sync. */
+    @SuppressWarnings("try")
+    static void repairSnapshotCatalog(String repositoryPath) throws IOException {
+        File repositoryDir = new File(repositoryPath);
+        try (RepositoryLock lock = RepositoryLock.acquire(repositoryDir, "catalog repair")) {
+            Map<String, SnapshotCatalog.Entry> previous = new HashMap<>();
+            if (SnapshotCatalog.fileOf(repositoryDir).exists()) {
+                try {
+                    previous.putAll(SnapshotCatalog.load(repositoryDir).entries);
+                } catch (IOException ex) {
+                    System.out.println("Warning! Replacing unreadable snapshot catalog: " + ex.getMessage());
+                }
+            }
+            SnapshotCatalog catalog = SnapshotCatalog.rebuild(repositoryDir);
+            int differences = 0;
+            for (SnapshotCatalog.Entry entry : catalog.list()) {
+                SnapshotCatalog.Entry listed = previous.remove(entry.timestamp);
+                if (listed == null) {
+                    System.out.println("Added missing snapshot " + entry.fileName);
+                    differences++;
+                } else if (!listed.fileName.equals(entry.fileName) || !listed.sha256.equals(entry.sha256)) {
+                    System.out.println("Updated changed snapshot " + entry.fileName);
+                    differences++;
+                }
+            }
+            for (SnapshotCatalog.Entry gone : previous.values()) {
+                System.out.println("Removed snapshot " + gone.fileName + ", which no longer exists or is incomplete");
+                differences++;
+            }
+            catalog.save(Durability.of(new BackupOptions()));
+            System.out.println("SUCCESS! Snapshot catalog lists " + catalog.entries.size() + " snapshots, " + differences + " entries were out of sync.");
         }
     }
 
-    static File initializeNewSnapshotFile(String repositoryPath, String timestamp) throws IOException {
-        File snapshotFile = new File(repositoryPath + File.separator + "filepath-snapshots" + File.separator + "snapshot-" + timestamp + ".txt");
-        if (snapshotFile.exists()) {
+    static File initializeNewSnapshotFile(String repositoryPath, String timestamp, String extension) throws IOException {
+        File snapshotsDir = new File(repositoryPath + File.separator + "filepath-snapshots");
+        File snapshotFile = new File(snapshotsDir, "snapshot-" + timestamp + extension);
+        if (new File(snapshotsDir, "snapshot-" + timestamp + SnapshotWriter.extension(false)).exists()
+                || new File(snapshotsDir, "snapshot-" + timestamp + SnapshotWriter.extension(true)).exists()) {
             // Safety precaution
             throw new UnexpectedException(
                     "Unable to create snapshot file, because file already exists: "
@@ -299,17 +554,6 @@ public class Core {
         return repoFilesDir;
     }
 
-    static Set<String> loadKnownSetOfAlreadyBackupedUpFilesHashes(File repoFilesDir) throws IOException {
-        // TODO progress indicator here
-        try (Stream<Path> pathStream = Files.walk(repoFilesDir.toPath())) {
-            Set<String> existing = pathStream
-                    .map(path -> path.getFileName().toString())
-                    .filter(s -> !s.endsWith(".tmp")) // Filter out broken copies.
-                    .collect(Collectors.toSet());
-            return existing;
-        }
-    }
-
     static Pair calculateJobSize(Collection<BackupTargetFile> allTargets) {
         long totalBytesNeeded = 0;
         for (BackupTargetFile btf : allTargets) {
@@ -319,21 +563,20 @@ public class Core {
     }
 
     static List<BackupTargetFile> collectAllFilesFromCheckListTargetPaths(Set<String> targetPathStrings) throws IOException {
-        // Collect files
-        Set<BackupTargetFile> allTargets = new HashSet<>();
-        final AtomicLong counter = new AtomicLong();
-        for (String targetPathString : targetPathStrings) {
-            Path targetPath = new File(targetPathString).toPath();
-            collectAllFilesFromTargetPath(targetPath, allTargets, counter);
-        }
+        BackupOptions defaults = new BackupOptions();
+        return collectAllFilesFromCheckListTargetPaths(targetPathStrings, new FileTreeScanner(defaults.symlinkPolicy, defaults.scanThreads));
+    }
 
-        // Convert collected files into ordered list
-        List<BackupTargetFile> allTargetsAsOrderedList = new ArrayList<>(allTargets.size());
-        for (BackupTargetFile btf : allTargets) {
-            allTargetsAsOrderedList.add(btf);
+    static List<BackupTargetFile> collectAllFilesFromCheckListTargetPaths(Set<String> targetPathStrings, FileTreeScanner scanner) throws IOException {
+        return scanner.collect(toPaths(targetPathStrings));
+    }
+
+    static List<Path> toPaths(Set<String> targetPathStrings) {
+        List<Path> roots = new ArrayList<>();
+        for (String targetPathString : targetPathStrings) {
+            roots.add(new File(targetPathString).toPath());
         }
-        Collections.sort(allTargetsAsOrderedList);
-        return allTargetsAsOrderedList;
+        return roots;
     }
 
     static Set<String> getTargetPathStringsFromCheckList(String checkListFilePath) throws IOException {
@@ -360,19 +603,10 @@ public class Core {
     }
 
     static void collectAllFilesFromTargetPath(Path targetPath, Set<BackupTargetFile> allTargets, AtomicLong counter) throws IOException {
-        try (Stream<Path> pathStream = Files.walk(targetPath)) {
-            Set<BackupTargetFile> targets = pathStream
-                    .peek(stat -> {
-                        if (counter.incrementAndGet() % 20000 == 0) {
-                            // TODO use systemTime to avoid spamming too many messages?
-                            // TODO refactor into progressIndicator (although total count/size not known at this point)
-                            System.out.println(counter.get() + " files discovered.");
-                        }
-                    })
-                    .filter(path -> !path.toFile().isDirectory())
-                    .map(path -> new BackupTargetFile(path, path.toFile().length()))
-                    .collect(Collectors.toSet());
-            allTargets.addAll(targets);
-        }
+        BackupOptions defaults = new BackupOptions();
+        FileTreeScanner scanner = new FileTreeScanner(defaults.symlinkPolicy, defaults.scanThreads);
+        List<BackupTargetFile> targets = scanner.collect(List.of(targetPath));
+        counter.addAndGet(targets.size());
+        allTargets.addAll(targets);
     }
 }
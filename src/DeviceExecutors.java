@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * One thread pool per storage device, so that each device gets its own concurrency limit. Reading many files
+ * from one spinning disk in parallel only makes it seek, while reading from several disks at once is free speed.
+ * Spinning disks can get fewer threads than other devices. Whether a device spins is only known on Linux;
+ * elsewhere every device counts as solid state.
+ */
+class DeviceExecutors implements AutoCloseable {
+
+    static final String UNKNOWN_DEVICE = "unknown device";
+
+    final int threadsPerDevice; // For solid state and unknown devices.
+    final int threadsPerRotationalDevice;
+    final ConcurrentHashMap<Object, ExecutorService> executors = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Object, Boolean> rotational = new ConcurrentHashMap<>();
+    // Looking up the file store is relatively expensive, so it is cached per directory.
+    final ConcurrentHashMap<Path, Object> deviceOfDirectory = new ConcurrentHashMap<>();
+
+    DeviceExecutors(int threadsPerDevice) {
+        this(threadsPerDevice, threadsPerDevice);
+    }
+
+    DeviceExecutors(int threadsPerDevice, int threadsPerRotationalDevice) {
+        this.threadsPerDevice = threadsPerDevice;
+        this.threadsPerRotationalDevice = threadsPerRotationalDevice;
+    }
+
+    Object deviceOf(Path path) {
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir == null) dir = path.toAbsolutePath();
+        return deviceOfDirectory.computeIfAbsent(dir, d -> {
+            try {
+                return Files.getFileStore(d);
+            } catch (IOException ex) {
+                return UNKNOWN_DEVICE;
+            }
+        });
+    }
+
+    ExecutorService forPath(Path path) {
+        return forDevice(deviceOf(path));
+    }
+
+    ExecutorService forDevice(Object device) {
+        return executors.computeIfAbsent(device, d -> Executors.newFixedThreadPool(threadsFor(d)));
+    }
+
+    int threadsFor(Object device) {
+        return isRotational(device) ? threadsPerRotationalDevice : threadsPerDevice;
+    }
+
+    boolean isRotational(Object device) {
+        return rotational.computeIfAbsent(device, d -> d instanceof FileStore && isRotational((FileStore) d));
+    }
+
+    /** Reads the rotational flag of the block device under the file store from sysfs. False if it can't be read. */
+    static boolean isRotational(FileStore store) {
+        // On Linux the name of a file store is its device, e.g. /dev/sda1 or /dev/mapper/home.
+        if (!store.name().startsWith("/dev/")) return false;
+        try {
+            String device = Paths.get(store.name()).toRealPath().getFileName().toString();
+            Path block = Paths.get("/sys/class/block", device).toRealPath();
+            // Partitions don't have a queue of their own, the disk they are on does.
+            if (Files.exists(block.resolve("partition"))) block = block.getParent();
+            return new String(Files.readAllBytes(block.resolve("queue").resolve("rotational")), StandardCharsets.US_ASCII).trim().equals("1");
+        } catch (IOException | InvalidPathException ex) {
+            return false;
+        }
+    }
+
+    /** One line per device used so far, e.g. "/ (/dev/sda1): rotational, 1 thread". */
+    List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Object device : executors.keySet()) {
+            int threads = threadsFor(device);
+            lines.add(device + ": " + (isRotational(device) ? "rotational" : "solid state or unknown") + ", " + threads + (threads == 1 ? " thread" : " threads"));
+        }
+        return lines;
+    }
+
+    int deviceCount() {
+        return executors.size();
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from 32-byte digests (such as SHA-256 hashes) to long values, with no per-entry objects.
+ * Keys are stored as 4 longs each in one flat array, so an entry costs about 50 bytes including free slots instead of
+ * the 150+ bytes of a hex String in a HashSet. This lets repositories with tens of millions of blobs fit in a
+ * normal-sized heap. Keys are accepted as hex strings or raw bytes; hex is case-insensitive.
+ *
+ * Not thread-safe; callers which share a map between threads must synchronize on it.
+ */
+class DigestMap {
+
+    static final int DIGEST_BYTES = 32;
+    static final int LONGS_PER_KEY = DIGEST_BYTES / 8;
+    static final double MAX_LOAD = 0.8;
+
+    long[] keys;
+    long[] values; // Null for maps created as sets.
+    boolean[] used;
+    int capacity;
+    int size;
+
+    // All-zero digest is stored separately so that a zeroed key slot can't be confused with it.
+    boolean hasZeroKey;
+    long zeroKeyValue;
+
+    DigestMap(boolean withValues, int expectedSize) {
+        capacity = Math.max(16, (int) Math.min(Integer.MAX_VALUE / LONGS_PER_KEY, (long) (expectedSize / MAX_LOAD) + 1));
+        keys = new long[capacity * LONGS_PER_KEY];
+        values = withValues ? new long[capacity] : null;
+        used = new boolean[capacity];
+    }
+
+    static DigestMap newSet() {
+        return new DigestMap(false, 16);
+    }
+
+    static DigestMap newMap() {
+        return new DigestMap(true, 16);
+    }
+
+    static long[] parse(String hex) {
+        if (hex.length() != 2 * DIGEST_BYTES) {
+            throw new IllegalArgumentException("Expected a " + (2 * DIGEST_BYTES) + " character hex digest, got: " + hex);
+        }
+        long[] key = new long[LONGS_PER_KEY];
+        for (int i = 0; i < LONGS_PER_KEY; i++) {
+            long word = 0;
+            for (int j = 0; j < 16; j++) {
+                int digit = Character.digit(hex.charAt(16 * i + j), 16);
+                if (digit < 0) throw new IllegalArgumentException("Not a hex digest: " + hex);
+                word = (word << 4) | digit;
+            }
+            key[i] = word;
+        }
+        return key;
+    }
+
+    static long[] parse(byte[] digest) {
+        if (digest.length != DIGEST_BYTES) {
+            throw new IllegalArgumentException("Expected a " + DIGEST_BYTES + " byte digest, got " + digest.length + " bytes");
+        }
+        long[] key = new long[LONGS_PER_KEY];
+        for (int i = 0; i < DIGEST_BYTES; i++) {
+            key[i / 8] = (key[i / 8] << 8) | (digest[i] & 0xFF);
+        }
+        return key;
+    }
+
+    static String toHex(long[] key) {
+        byte[] bytes = new byte[DIGEST_BYTES];
+        for (int i = 0; i < DIGEST_BYTES; i++) {
+            bytes[i] = (byte) (key[i / 8] >>> (56 - 8 * (i % 8)));
+        }
+        return Utils.bytesToHex(bytes);
+    }
+
+    static boolean isZero(long[] key) {
+        return (key[0] | key[1] | key[2] | key[3]) == 0;
+    }
+
+    int slotOf(long firstWord) {
+        // Digests are already uniformly distributed, so any 32 bits of them make a good hash code.
+        long h = firstWord >>> 32;
+        return (int) ((h * capacity) >>> 32);
+    }
+
+    /** Returns the slot holding key, or the empty slot where it would be inserted. */
+    int find(long[] key) {
+        int slot = slotOf(key[0]);
+        while (used[slot]) {
+            int base = slot * LONGS_PER_KEY;
+            if (keys[base] == key[0] && keys[base + 1] == key[1] && keys[base + 2] == key[2] && keys[base + 3] == key[3]) {
+                return slot;
+            }
+            slot = slot + 1 == capacity ? 0 : slot + 1;
+        }
+        return slot;
+    }
+
+    /** Returns false for strings which are not hex digests at all, such as a hash from a malformed snapshot line. */
+    boolean contains(String hex) {
+        if (!BlobStore.looksLikeHash(hex)) return false;
+        return contains(parse(hex));
+    }
+
+    boolean contains(long[] key) {
+        if (isZero(key)) return hasZeroKey;
+        return used[find(key)];
+    }
+
+    /** Adds the key with value 0 if absent. Returns true if the key was added. */
+    boolean add(String hex) {
+        long[] key = parse(hex);
+        if (contains(key)) return false;
+        put(key, 0);
+        return true;
+    }
+
+    long get(String hex, long defaultValue) {
+        return get(parse(hex), defaultValue);
+    }
+
+    long get(long[] key, long defaultValue) {
+        if (isZero(key)) return hasZeroKey ? zeroKeyValue : defaultValue;
+        int slot = find(key);
+        if (!used[slot]) return defaultValue;
+        return values == null ? 0 : values[slot];
+    }
+
+    void put(String hex, long value) {
+        put(parse(hex), value);
+    }
+
+    void put(long[] key, long value) {
+        if (isZero(key)) {
+            if (!hasZeroKey) size++;
+            hasZeroKey = true;
+            zeroKeyValue = value;
+            return;
+        }
+        int slot = find(key);
+        if (!used[slot]) {
+            if (size + 1 > capacity * MAX_LOAD) {
+                grow();
+                slot = find(key);
+            }
+            used[slot] = true;
+            System.arraycopy(key, 0, keys, slot * LONGS_PER_KEY, LONGS_PER_KEY);
+            size++;
+        }
+        if (values != null) values[slot] = value;
+    }
+
+    /** Adds delta to the value of key (absent keys count as 0) and returns the new value. */
+    long increment(String hex, long delta) {
+        long[] key = parse(hex);
+        long value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    boolean remove(String hex) {
+        return remove(parse(hex));
+    }
+
+    boolean remove(long[] key) {
+        if (isZero(key)) {
+            if (!hasZeroKey) return false;
+            hasZeroKey = false;
+            size--;
+            return true;
+        }
+        int slot = find(key);
+        if (!used[slot]) return false;
+        // Backward-shift deletion keeps linear probe chains intact without tombstones.
+        int hole = slot;
+        int next = hole + 1 == capacity ? 0 : hole + 1;
+        while (used[next]) {
+            int home = slotOf(keys[next * LONGS_PER_KEY]);
+            // Move the entry at next into the hole unless its home slot lies cyclically within (hole, next].
+            boolean homeBetween = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!homeBetween) {
+                System.arraycopy(keys, next * LONGS_PER_KEY, keys, hole * LONGS_PER_KEY, LONGS_PER_KEY);
+                if (values != null) values[hole] = values[next];
+                hole = next;
+            }
+            next = next + 1 == capacity ? 0 : next + 1;
+        }
+        used[hole] = false;
+        Arrays.fill(keys, hole * LONGS_PER_KEY, hole * LONGS_PER_KEY + LONGS_PER_KEY, 0);
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        int oldCapacity = capacity;
+        // Grow by 1.5x rather than doubling, so that huge maps don't overshoot the heap.
+        long newCapacity = Math.min(Integer.MAX_VALUE / LONGS_PER_KEY, oldCapacity + (long) (oldCapacity >> 1) + 1);
+        if (newCapacity <= oldCapacity) {
+            throw new IllegalStateException("DigestMap is full");
+        }
+        capacity = (int) newCapacity;
+        keys = new long[capacity * LONGS_PER_KEY];
+        values = oldValues == null ? null : new long[capacity];
+        used = new boolean[capacity];
+        long[] key = new long[LONGS_PER_KEY];
+        for (int i = 0; i < oldCapacity; i++) {
+            if (!oldUsed[i]) continue;
+            System.arraycopy(oldKeys, i * LONGS_PER_KEY, key, 0, LONGS_PER_KEY);
+            int slot = find(key);
+            used[slot] = true;
+            System.arraycopy(key, 0, keys, slot * LONGS_PER_KEY, LONGS_PER_KEY);
+            if (values != null) values[slot] = oldValues[i];
+        }
+    }
+
+    interface EntryConsumer<E extends Exception> {
+        void accept(String hex, long value) throws E;
+    }
+
+    <E extends Exception> void forEach(EntryConsumer<E> consumer) throws E {
+        if (hasZeroKey) consumer.accept(toHex(new long[LONGS_PER_KEY]), zeroKeyValue);
+        long[] key = new long[LONGS_PER_KEY];
+        for (int i = 0; i < capacity; i++) {
+            if (!used[i]) continue;
+            System.arraycopy(keys, i * LONGS_PER_KEY, key, 0, LONGS_PER_KEY);
+            consumer.accept(toHex(key), values == null ? 0 : values[i]);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress indication for file discovery, where the total is not known in advance.
+ * Safe to call from many traversal threads; at most one line is printed per refresh interval.
+ */
+class DiscoveryProgress {
+    final AtomicLong files = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong lastProgressDisplayTime = new AtomicLong();
+    final long startTime = System.nanoTime();
+
+    long INTERVAL_BETWEEN_DISPLAY_REFRESH_NANO_SECONDS = (long) 1e9;
+
+    DiscoveryProgress() {
+        lastProgressDisplayTime.set(startTime);
+    }
+
+    void discovered(long sizeBytes) {
+        files.incrementAndGet();
+        bytes.addAndGet(sizeBytes);
+        long currTime = System.nanoTime();
+        long last = lastProgressDisplayTime.get();
+        if (currTime > last + INTERVAL_BETWEEN_DISPLAY_REFRESH_NANO_SECONDS && lastProgressDisplayTime.compareAndSet(last, currTime)) {
+            printProgress(currTime);
+        }
+    }
+
+    void done() {
+        printProgress(System.nanoTime());
+    }
+
+    double filesPerSecond(long currTime) {
+        double seconds = Math.max(1e-9, (currTime - startTime) / 1e9);
+        return files.get() / seconds;
+    }
+
+    void printProgress(long currTime) {
+        System.out.println("Discovery " + Utils.timestamp() + ": " + files.get() + " files discovered, totaling "
+                + Utils.formatSize(bytes.get()) + " (" + Math.round(filesPerSecond(currTime)) + " files/s)");
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Finds duplicate files either from a snapshot or by scanning files directly.
+ *
+ * From a snapshot, sizes are taken from the snapshot itself (binary snapshots record them) or from the repository's
+ * blobs, never from the original paths, which may have changed or moved since the backup.
+ *
+ * When scanning files, candidates are narrowed down in stages from cheapest to most expensive: files are grouped by
+ * size, files with a unique size are dropped, the rest are grouped by a hash of their first and last
+ * PARTIAL_HASH_BYTES, and only files which still collide are hashed in full. Hashing runs on one thread pool per
+ * device. Hard links to the same file are not reported as duplicates of each other.
+ */
+class DuplicateFinder {
+
+    static final int PARTIAL_HASH_BYTES = 16 * 1024;
+
+    final long byteThreshold;
+    final int threadsPerDevice;
+    long reclaimableBytes; // Including duplicates below the threshold.
+
+    DuplicateFinder(long byteThreshold, int threadsPerDevice) {
+        this.byteThreshold = byteThreshold;
+        this.threadsPerDevice = threadsPerDevice;
+    }
+
+    /** Returns duplicate groups of at least byteThreshold bytes, largest first. */
+    List<Group> fromSnapshot(File snapshotFile, BlobStore blobStore) throws IOException {
+        // Pass 1: count paths per hash.
+        ElementCounter counter = new ElementCounter();
+        long totalCount = 0;
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            while (reader.hasNext()) {
+                counter.add(reader.next().hash);
+                totalCount++;
+            }
+        }
+
+        // Pass 2: collect paths of duplicates. Sizes missing from the snapshot are looked up once per hash.
+        DigestMap sizes = DigestMap.newMap();
+        DigestMap seen = DigestMap.newMap();
+        Map<String, Group> groups = new HashMap<>();
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            while (reader.hasNext()) {
+                SnapshotEntry entry = reader.next();
+                if (counter.get(entry.hash) < 2) continue;
+                long sizeBytes = entry.sizeBytes;
+                if (sizeBytes < 0) {
+                    sizeBytes = sizes.get(entry.hash, -1);
+                    if (sizeBytes < 0) {
+                        sizeBytes = Math.max(0, blobStore.size(entry.hash));
+                        sizes.put(entry.hash, sizeBytes);
+                    }
+                }
+                if (seen.increment(entry.hash, 1) > 1) {
+                    reclaimableBytes += sizeBytes;
+                }
+                if (sizeBytes < byteThreshold) {
+                    // We don't care about small duplicates
+                    continue;
+                }
+                long groupSize = sizeBytes;
+                groups.computeIfAbsent(entry.hash, hash -> new Group(hash, groupSize)).paths.add(entry.path);
+            }
+        }
+        System.out.println("Total files in snapshot: " + totalCount + " (" + counter.size() + " unique) (" + (totalCount - counter.size()) + " duplicate).");
+        return sorted(groups.values());
+    }
+
+    /** Returns duplicate groups of at least byteThreshold bytes among the given files, largest first. */
+    List<Group> fromFiles(List<BackupTargetFile> files) throws IOException {
+        // Stage 1: size. Empty files are all identical, but there is nothing to reclaim.
+        Map<Long, List<BackupTargetFile>> bySize = new HashMap<>();
+        for (BackupTargetFile btf : files) {
+            if (btf.sizeBytes > 0) {
+                bySize.computeIfAbsent(btf.sizeBytes, size -> new ArrayList<>()).add(btf);
+            }
+        }
+        List<List<BackupTargetFile>> candidates = new ArrayList<>();
+        for (List<BackupTargetFile> sameSize : bySize.values()) {
+            List<BackupTargetFile> distinct = withoutHardLinks(sameSize);
+            if (distinct.size() > 1) candidates.add(distinct);
+        }
+        System.out.println("Scanned " + files.size() + " files, " + count(candidates) + " have the same size as another file.");
+
+        try (DeviceExecutors executors = new DeviceExecutors(threadsPerDevice)) {
+            // Stage 2: hash of the first and last bytes.
+            candidates = refine(candidates, executors, btf -> partialHash(btf.originPath.toFile()));
+            System.out.println(count(candidates) + " files also have the same beginning and end as another file.");
+            // Stage 3: full hash.
+            candidates = refine(candidates, executors, btf -> Utils.sha256(btf.originPath.toFile()));
+        }
+
+        List<Group> groups = new ArrayList<>();
+        for (List<BackupTargetFile> duplicates : candidates) {
+            long sizeBytes = duplicates.get(0).sizeBytes;
+            reclaimableBytes += sizeBytes * (duplicates.size() - 1);
+            if (sizeBytes < byteThreshold) continue;
+            Group group = new Group(null, sizeBytes);
+            for (BackupTargetFile btf : duplicates) {
+                group.paths.add(btf.originPath.toString());
+            }
+            Collections.sort(group.paths);
+            groups.add(group);
+        }
+        return sorted(groups);
+    }
+
+    /** Keeps one path per file, so that hard links (same file key) don't count as duplicates. */
+    static List<BackupTargetFile> withoutHardLinks(List<BackupTargetFile> files) {
+        Set<String> fileKeys = new HashSet<>();
+        List<BackupTargetFile> distinct = new ArrayList<>(files.size());
+        for (BackupTargetFile btf : files) {
+            if (btf.fileKey == null || fileKeys.add(btf.fileKey)) {
+                distinct.add(btf);
+            }
+        }
+        return distinct;
+    }
+
+    /** Splits each candidate group by key, computed in parallel, and keeps the parts with at least two files. */
+    static List<List<BackupTargetFile>> refine(List<List<BackupTargetFile>> candidates, DeviceExecutors executors, KeyFunction keyFunction) {
+        List<List<CompletableFuture<String>>> keys = new ArrayList<>();
+        for (List<BackupTargetFile> group : candidates) {
+            List<CompletableFuture<String>> groupKeys = new ArrayList<>();
+            for (BackupTargetFile btf : group) {
+                groupKeys.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return keyFunction.apply(btf);
+                    } catch (Exception ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, executors.forPath(btf.originPath)));
+            }
+            keys.add(groupKeys);
+        }
+        List<List<BackupTargetFile>> refined = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            Map<String, List<BackupTargetFile>> byKey = new HashMap<>();
+            for (int j = 0; j < candidates.get(i).size(); j++) {
+                BackupTargetFile btf = candidates.get(i).get(j);
+                try {
+                    byKey.computeIfAbsent(keys.get(i).get(j).join(), key -> new ArrayList<>()).add(btf);
+                } catch (CompletionException ex) {
+                    // The file may have been removed during the scan; it can't be a duplicate of anything now.
+                    System.out.println("Warning! Unable to read " + btf.originPath + " because of error " + ex.getCause().getMessage());
+                }
+            }
+            for (List<BackupTargetFile> sameKey : byKey.values()) {
+                if (sameKey.size() > 1) refined.add(sameKey);
+            }
+        }
+        return refined;
+    }
+
+    /** SHA-256 of the first and last PARTIAL_HASH_BYTES of the file (the whole file if it is smaller). */
+    static String partialHash(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            byte[] buffer = new byte[(int) Math.min(length, 2L * PARTIAL_HASH_BYTES)];
+            if (length <= buffer.length) {
+                in.readFully(buffer);
+            } else {
+                in.readFully(buffer, 0, PARTIAL_HASH_BYTES);
+                in.seek(length - PARTIAL_HASH_BYTES);
+                in.readFully(buffer, PARTIAL_HASH_BYTES, PARTIAL_HASH_BYTES);
+            }
+            digest.update(buffer);
+        }
+        return Utils.bytesToHex(digest.digest());
+    }
+
+    static long count(List<List<BackupTargetFile>> groups) {
+        long count = 0;
+        for (List<BackupTargetFile> group : groups) {
+            count += group.size();
+        }
+        return count;
+    }
+
+    static List<Group> sorted(Collection<Group> groups) {
+        List<Group> sorted = new ArrayList<>();
+        for (Group group : groups) {
+            // Sizes recorded per entry could in principle disagree, leaving a single path above the threshold.
+            if (group.paths.size() > 1) sorted.add(group);
+        }
+        sorted.sort(Comparator.comparingLong(Group::reclaimableBytes).reversed());
+        return sorted;
+    }
+
+    void print(List<Group> groups) {
+        for (Group group : groups) {
+            System.out.println();
+            System.out.println(Utils.formatSize(group.sizeBytes) + " x " + group.paths.size() + " copies, " + Utils.formatSize(group.reclaimableBytes()) + " reclaimable");
+            for (String fp : group.paths) {
+                System.out.println("    " + fp);
+            }
+        }
+        System.out.println();
+        System.out.println("Found " + groups.size() + " groups of duplicates of at least " + Utils.formatSize(byteThreshold) + ".");
+        System.out.println("Removing all duplicates (including smaller ones) would reclaim " + Utils.formatSize(reclaimableBytes) + ".");
+    }
+
+    interface KeyFunction {
+        String apply(BackupTargetFile btf) throws IOException, NoSuchAlgorithmException;
+    }
+
+    static class Group {
+        final String hash; // Null when found by scanning, where we don't keep hashes around.
+        final long sizeBytes;
+        final List<String> paths = new ArrayList<>();
+
+        Group(String hash, long sizeBytes) {
+            this.hash = hash;
+            this.sizeBytes = sizeBytes;
+        }
+
+        long reclaimableBytes() {
+            return sizeBytes * (paths.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a backup forces what it writes to disk. Without it, a crash or power loss can leave a snapshot which
+ * references blobs whose content or directory entry never reached the disk.
+ *
+ * With BATCHED and STRICT, the content of each new blob is forced before it is renamed to its hash, so a blob
+ * which exists under its hash is always complete. Snapshot entries are held back and committed in groups: first
+ * the directories which got new entries since the last commit and the open pack are forced, and only then are
+ * the entries written to the snapshot and the backup journal, which are forced in turn. BATCHED commits every
+ * commitFiles files or commitMillis milliseconds, whichever comes first, and STRICT after every file. NONE leaves
+ * all of it to the operating system.
+ */
+class Durability {
+
+    enum Policy {
+        NONE,
+        BATCHED,
+        STRICT;
+
+        static Policy parse(String value) {
+            switch (value) {
+                case "none": return NONE;
+                case "batched": return BATCHED;
+                case "strict": return STRICT;
+                default: throw new IllegalArgumentException("Unknown durability policy '" + value + "', expected none, batched or strict");
+            }
+        }
+    }
+
+    static final Durability NONE = new Durability(Policy.NONE, 1, 0);
+
+    final Policy policy;
+    final int commitFiles;
+    final long commitNanos;
+    // Directories which got new entries since the last commit.
+    final Set<Path> dirtyDirectories = ConcurrentHashMap.newKeySet();
+
+    Durability(Policy policy, int commitFiles, long commitMillis) {
+        this.policy = policy;
+        this.commitFiles = policy == Policy.STRICT ? 1 : commitFiles;
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(commitMillis);
+    }
+
+    static Durability of(BackupOptions options) {
+        return new Durability(options.durability, options.commitFiles, options.commitMillis);
+    }
+
+    boolean syncs() {
+        return policy != Policy.NONE;
+    }
+
+    /** Returns true if the given number of entries, held back since lastCommitNanos, should be committed now. */
+    boolean commitDue(int uncommitted, long lastCommitNanos) {
+        if (uncommitted == 0) return false;
+        return !syncs() || uncommitted >= commitFiles || System.nanoTime() - lastCommitNanos >= commitNanos;
+    }
+
+    /** Forces the content of a complete file to disk. Called before the file is renamed into place. */
+    void syncFile(File file) throws IOException {
+        if (!syncs()) return;
+        try (FileChannel channel = openForSync(file.toPath())) {
+            channel.force(true);
+        }
+    }
+
+    static FileChannel openForSync(Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.WRITE);
+        } catch (AccessDeniedException ex) {
+            // Copies of read-only files are read-only. Except on Windows, a file can be forced without write access.
+            return FileChannel.open(file, StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Remembers that the file was just created or renamed into place, so that its directory entry is forced with
+     * the next commit. Directories up to root may have been created for it, so they are remembered as well.
+     */
+    void created(File file, File root) {
+        if (!syncs()) return;
+        Path stop = root.toPath().toAbsolutePath().getParent();
+        for (Path dir = file.toPath().toAbsolutePath().getParent(); dir != null && !dir.equals(stop); dir = dir.getParent()) {
+            dirtyDirectories.add(dir);
+        }
+    }
+
+    /** Forces the directory entries remembered since the last call. */
+    void syncDirectories() throws IOException {
+        Iterator<Path> dirs = dirtyDirectories.iterator();
+        while (dirs.hasNext()) {
+            Path dir = dirs.next();
+            dirs.remove();
+            syncDirectory(dir);
+        }
+    }
+
+    static void syncDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException ex) {
+            // Directories can't be opened on Windows, where NTFS journals renames by itself.
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+}
@@ -1,32 +1,32 @@
-import java.util.HashMap;
-
+/** Counts occurrences of hashes, for example to find duplicate files in a snapshot. */
 public class ElementCounter {
-    HashMap<String, Integer> elements;
+    DigestMap elements;
 
     public ElementCounter() {
-        elements = new HashMap<>();
+        elements = DigestMap.newMap();
     }
 
     public void add(String element) {
-        int count = 1;
-        Integer prev = elements.get(element);
-        if (prev != null) count += prev;
-        elements.put(element, count);
+        elements.increment(element, 1);
     }
 
     public void remove(String element) {
-        int count = elements.remove(element);
-        count--;
-        if (count > 0) elements.put(element, count);
+        long count = elements.get(element, 0);
+        if (count <= 0) {
+            throw new IllegalArgumentException("Element not found: " + element);
+        }
+        if (count == 1) {
+            elements.remove(element);
+        } else {
+            elements.put(element, count - 1);
+        }
     }
 
     public int get(String element) {
-        Integer val = elements.get(element);
-        if (val == null) return 0;
-        return val;
+        return (int) elements.get(element, 0);
     }
 
     public int size() {
         return elements.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,301 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Parallel file tree traversal. Each directory is listed with walkFileTree (depth 1), which hands us the
+ * attributes of every entry together with its name, so no extra stat calls are needed per file.
+ * Subdirectories are forked as separate fork/join tasks, so independent branches of the tree are listed in parallel.
+ */
+class FileTreeScanner {
+
+    enum SymlinkPolicy {
+        // Ignore symbolic links entirely.
+        SKIP,
+        // Back up the targets of links to files, but don't descend into links to directories.
+        FOLLOW_FILES,
+        // Follow all links. A link to one of its own ancestor directories is reported and skipped.
+        FOLLOW_ALL;
+
+        static SymlinkPolicy parse(String value) {
+            switch (value) {
+                case "skip": return SKIP;
+                case "follow-files": return FOLLOW_FILES;
+                case "follow-all": return FOLLOW_ALL;
+                default: throw new IllegalArgumentException("Unknown symlink policy '" + value + "', expected skip, follow-files or follow-all");
+            }
+        }
+    }
+
+    final SymlinkPolicy symlinkPolicy;
+    final int threads;
+    final DiscoveryProgress progress = new DiscoveryProgress();
+    final AtomicLong errors = new AtomicLong();
+
+    FileTreeScanner(SymlinkPolicy symlinkPolicy, int threads) {
+        this.symlinkPolicy = symlinkPolicy;
+        this.threads = threads;
+    }
+
+    /** Collects all files under the given roots into a list ordered by path, without duplicates. */
+    List<BackupTargetFile> collect(Collection<Path> roots) throws IOException {
+        ConcurrentLinkedQueue<BackupTargetFile> found = new ConcurrentLinkedQueue<>();
+        scan(roots, found::add);
+        BackupTargetFile[] sorted = found.toArray(new BackupTargetFile[0]);
+        Arrays.parallelSort(sorted);
+        // Checklist roots may overlap (e.g. "D:\media" and "D:\media\music"), so drop adjacent duplicates.
+        List<BackupTargetFile> unique = new ArrayList<>(sorted.length);
+        for (BackupTargetFile btf : sorted) {
+            if (unique.isEmpty() || !unique.get(unique.size() - 1).equals(btf)) {
+                unique.add(btf);
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Scans the given roots in a background thread and returns the discovered files as they are found, in no
+     * particular order. At most capacity files are buffered, so a slow consumer slows down discovery rather than
+     * letting the buffer grow. Discovery errors are rethrown from the iterator. A consumer which stops early must
+     * close the stream, otherwise discovery waits forever for room in the buffer.
+     */
+    DiscoveryStream stream(Collection<Path> roots, int capacity) {
+        DiscoveryStream stream = new DiscoveryStream(capacity);
+        stream.thread = new Thread(() -> {
+            try {
+                scan(roots, stream::put);
+            } catch (Throwable ex) {
+                stream.failure = ex;
+            } finally {
+                stream.finish();
+            }
+        }, "discovery");
+        stream.thread.setDaemon(true);
+        stream.thread.start();
+        return stream;
+    }
+
+    /** Passes every file under the given roots to sink, in no particular order. Sink must be thread-safe. */
+    void scan(Collection<Path> roots, Consumer<BackupTargetFile> sink) throws IOException {
+        List<DirectoryTask> tasks = new ArrayList<>();
+        for (Path root : roots) {
+            // Roots were listed explicitly by the user, so they are followed even if they are links.
+            BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                Set<Object> keys = symlinkPolicy == SymlinkPolicy.FOLLOW_ALL
+                        ? Collections.singleton(directoryKey(root, attributes))
+                        : Collections.emptySet();
+                tasks.add(new DirectoryTask(root, keys, sink));
+            } else {
+                accept(root, attributes, sink);
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // Roots are independent, so they are all scanned at the same time.
+            for (DirectoryTask task : tasks) {
+                pool.execute(task);
+            }
+            for (DirectoryTask task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        progress.done();
+        if (errors.get() > 0) {
+            System.out.println("Warning! " + errors.get() + " paths could not be read during discovery (see messages above).");
+        }
+    }
+
+    void accept(Path path, BasicFileAttributes attributes, Consumer<BackupTargetFile> sink) {
+        if (!attributes.isRegularFile()) {
+            // Devices, pipes and sockets can't be backed up meaningfully, and reading a pipe could block forever.
+            System.out.println("Warning! Skipping special file: " + path);
+            return;
+        }
+        BackupTargetFile btf = new BackupTargetFile(path, attributes.size());
+        btf.lastModifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        btf.fileKey = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+        sink.accept(btf);
+        progress.discovered(btf.sizeBytes);
+    }
+
+    /** Identifies a directory for loop detection. Falls back to the real path where file keys are not supported. */
+    static Object directoryKey(Path dir, BasicFileAttributes attributes) throws IOException {
+        if (attributes.fileKey() != null) return attributes.fileKey();
+        return dir.toRealPath();
+    }
+
+    void reportError(Path path, IOException ex) {
+        errors.incrementAndGet();
+        System.out.println("Warning! Unable to read " + path + " because of error " + ex);
+    }
+
+    static class DiscoveryStream implements Iterator<BackupTargetFile>, Closeable {
+        static final BackupTargetFile END = new BackupTargetFile(Paths.get(""), 0);
+        static final long CANCEL_CHECK_MILLIS = 100;
+
+        final BlockingQueue<BackupTargetFile> queue;
+        volatile Throwable failure;
+        volatile boolean cancelled;
+        Thread thread;
+        BackupTargetFile next;
+
+        DiscoveryStream(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /** Called by scanner threads. Fails once the stream is closed, which stops the scan. */
+        void put(BackupTargetFile btf) {
+            try {
+                // Several scanner threads may be waiting for room, so each of them checks for cancellation.
+                while (!cancelled) {
+                    if (queue.offer(btf, CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) return;
+                }
+                throw new CancellationException("Discovery was cancelled");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the backup to catch up with discovery", ex);
+            }
+        }
+
+        void finish() {
+            try {
+                put(END);
+            } catch (CancellationException ex) {
+                // Nobody is reading anymore.
+            }
+        }
+
+        /** Stops discovery and lets its threads finish. */
+        @Override
+        public void close() {
+            cancelled = true;
+            queue.clear();
+            if (thread != null) thread.interrupt();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for discovery", ex);
+                }
+            }
+            if (next == END) {
+                if (failure instanceof IOException) throw new UncheckedIOException((IOException) failure);
+                if (failure != null) throw new IllegalStateException("Discovery failed", failure);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public BackupTargetFile next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            BackupTargetFile btf = next;
+            next = null;
+            return btf;
+        }
+    }
+
+    class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Path dir;
+        final Set<Object> ancestorKeys; // Includes the key of dir itself. Only tracked when following all links.
+        final Consumer<BackupTargetFile> sink;
+
+        DirectoryTask(Path dir, Set<Object> ancestorKeys, Consumer<BackupTargetFile> sink) {
+            this.dir = dir;
+            this.ancestorKeys = ancestorKeys;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            Set<FileVisitOption> visitOptions = symlinkPolicy == SymlinkPolicy.FOLLOW_ALL
+                    ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+                    : EnumSet.noneOf(FileVisitOption.class);
+            try {
+                Files.walkFileTree(dir, visitOptions, 1, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                        // With depth 1, subdirectories are passed here instead of being entered.
+                        if (attributes.isDirectory()) {
+                            try {
+                                DirectoryTask subtask = subdirectory(path, attributes);
+                                if (subtask != null) subtasks.add(subtask);
+                            } catch (IOException ex) {
+                                // Only this entry is skipped, not the rest of the listing.
+                                reportError(path, ex);
+                            }
+                        } else if (attributes.isSymbolicLink()) {
+                            symbolicLink(path);
+                        } else {
+                            accept(path, attributes, sink);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException ex) {
+                        reportError(path, ex);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException ex) {
+                reportError(dir, ex);
+            }
+            invokeAll(subtasks);
+        }
+
+        DirectoryTask subdirectory(Path path, BasicFileAttributes attributes) throws IOException {
+            if (symlinkPolicy != SymlinkPolicy.FOLLOW_ALL) {
+                // Without following links the tree can't contain loops.
+                return new DirectoryTask(path, ancestorKeys, sink);
+            }
+            Object key = directoryKey(path, attributes);
+            if (ancestorKeys.contains(key)) {
+                // Only possible when following links.
+                System.out.println("Warning! Skipping symbolic link which loops back to its ancestor: " + path);
+                return null;
+            }
+            Set<Object> keys = new HashSet<>(ancestorKeys);
+            keys.add(key);
+            return new DirectoryTask(path, keys, sink);
+        }
+
+        void symbolicLink(Path path) {
+            if (symlinkPolicy == SymlinkPolicy.SKIP) return;
+            BasicFileAttributes target;
+            try {
+                target = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException ex) {
+                reportError(path, ex);
+                return;
+            }
+            // Links to directories are not followed under FOLLOW_FILES.
+            if (!target.isDirectory()) {
+                accept(path, target, sink);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Hash algorithms which name the content of a repository. The algorithm is chosen when a repository is created
+ * and recorded in its repository.properties (see RepositoryConfig); repositories without one use SHA-256.
+ *
+ * SHA256 is plain SHA-256 of the content. BLAKE3 is in plain Java, so per core it is slower than SHA-256 where the
+ * JVM uses the CPU's SHA instructions, but its tree structure lets large files be hashed on all cores.
+ * SHA256_TREE hashes 4 MiB leaves separately (see TreeHasher), so that a large file is hashed on several cores
+ * and stored content can be verified one byte range at a time.
+ */
+enum HashAlgorithm {
+    SHA256("sha256"),
+    BLAKE3("blake3"),
+    SHA256_TREE("sha256-tree");
+
+    // Files are read in large blocks: with small reads, system call overhead is a noticeable share of hashing time.
+    static final int READ_BUFFER_BYTES = 1024 * 1024;
+    static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[READ_BUFFER_BYTES]);
+    // Files are hashed in parallel in blocks of this size, but smaller files on one thread: handing out a few
+    // blocks costs more than it saves.
+    static final int PARALLEL_BLOCK_BYTES = 4 * 1024 * 1024;
+    static final long PARALLEL_THRESHOLD = 4L * PARALLEL_BLOCK_BYTES;
+    static final ThreadLocal<byte[]> BLOCK_BUFFER = ThreadLocal.withInitial(() -> new byte[PARALLEL_BLOCK_BYTES]);
+
+    final String id;
+
+    HashAlgorithm(String id) {
+        this.id = id;
+    }
+
+    static HashAlgorithm parse(String id) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id.equals(id)) return algorithm;
+        }
+        throw new IllegalArgumentException("Unknown hash algorithm: '" + id + "' (expected sha256, blake3 or sha256-tree)");
+    }
+
+    Hasher newHasher() {
+        switch (this) {
+            case BLAKE3:
+                return new Blake3();
+            case SHA256_TREE:
+                return new TreeHasher();
+            default:
+                return new Sha256Hasher();
+        }
+    }
+
+    String hash(byte[] buffer, int offset, int length) {
+        Hasher hasher = newHasher();
+        hasher.update(buffer, offset, length);
+        return hasher.finish().hash;
+    }
+
+    /** Hashes the remaining content of the stream. The stream is not closed. */
+    String hash(InputStream in) throws IOException {
+        Hasher hasher = newHasher();
+        byte[] buffer = READ_BUFFER.get();
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            hasher.update(buffer, 0, count);
+        }
+        return hasher.finish().hash;
+    }
+
+    String hash(File file) throws IOException {
+        return digest(file).hash;
+    }
+
+    /** Hashes a file. With BLAKE3 and in tree mode, large files are hashed in parallel. */
+    Digest digest(File file) throws IOException {
+        if (this != SHA256 && file.length() >= PARALLEL_THRESHOLD) {
+            return this == BLAKE3 ? Blake3.digestInParallel(file) : TreeHasher.digestInParallel(file);
+        }
+        Hasher hasher = newHasher();
+        byte[] buffer = READ_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while (channel.read(wrapped) >= 0) {
+                hasher.update(buffer, 0, wrapped.position());
+                wrapped.clear();
+            }
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * Applies the function to each PARALLEL_BLOCK_BYTES block of the file's first blockCount blocks on the common
+     * fork-join pool, and returns the results in order. The last block may be shorter than the others.
+     */
+    static <T> List<T> mapBlocksInParallel(FileChannel channel, long blockCount, BlockFunction<T> function) throws IOException {
+        long size = channel.size();
+        List<CompletableFuture<T>> futures = new ArrayList<>();
+        for (long i = 0; i < blockCount; i++) {
+            long position = i * PARALLEL_BLOCK_BYTES;
+            long index = i;
+            int length = (int) Math.min(PARALLEL_BLOCK_BYTES, size - position);
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                byte[] buffer = BLOCK_BUFFER.get();
+                try {
+                    readFully(channel, position, buffer, length);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return function.apply(index, buffer, length);
+            }));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) ex.getCause()).getCause();
+            throw ex;
+        }
+        return results;
+    }
+
+    static void readFully(FileChannel channel, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+        while (wrapped.hasRemaining()) {
+            if (channel.read(wrapped, position + wrapped.position()) < 0) {
+                throw new EOFException("File was truncated while it was being hashed");
+            }
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    interface BlockFunction<T> {
+        T apply(long index, byte[] buffer, int length);
+    }
+
+    static class Digest {
+        final String hash;
+        final List<byte[]> leaves; // Leaf hashes in tree mode, otherwise null.
+
+        Digest(String hash, List<byte[]> leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    static class Sha256Hasher implements Hasher {
+        final MessageDigest digest = sha256();
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            digest.update(buffer, offset, length);
+        }
+
+        @Override
+        public Digest finish() {
+            return new Digest(Utils.bytesToHex(digest.digest()), null);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+/** Incremental hash of a stream of bytes. Not thread-safe; get a new instance from HashAlgorithm for each stream. */
+interface Hasher {
+
+    void update(byte[] buffer, int offset, int length);
+
+    /** Finishes the hash. The hasher must not be used afterwards. */
+    HashAlgorithm.Digest finish();
+}
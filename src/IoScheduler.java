@@ -0,0 +1,91 @@
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Queues backup targets per device for BackupPipeline.runScheduled, which keeps every device busy with as many
+ * files as it has threads in DeviceExecutors. Targets on a rotational disk are handed out in inode order, which
+ * on most file systems roughly follows where files are on the disk, so that a disk read by one or two streams
+ * seeks less. Targets on other devices, and files without an inode, keep the order they were added in.
+ */
+class IoScheduler {
+
+    static final Pattern INODE = Pattern.compile("ino=([0-9]+)");
+
+    final DeviceExecutors devices;
+    final Map<Object, DeviceQueue> queues = new LinkedHashMap<>();
+    int waiting;
+    long sequence;
+
+    IoScheduler(DeviceExecutors devices) {
+        this.devices = devices;
+    }
+
+    void add(BackupTargetFile btf) {
+        Object device = devices.deviceOf(btf.originPath);
+        DeviceQueue queue = queues.computeIfAbsent(device, d -> new DeviceQueue(d, devices.isRotational(d), devices.threadsFor(d)));
+        queue.waiting.add(new Queued(btf, queue.rotational ? inode(btf) : Long.MAX_VALUE, sequence++));
+        waiting++;
+    }
+
+    /**
+     * Returns the queue of a device which has a target waiting and fewer files in flight than twice its threads
+     * (so that its next file is ready when a thread frees up), or null if there is none.
+     */
+    DeviceQueue nextReady() {
+        for (DeviceQueue queue : queues.values()) {
+            if (!queue.waiting.isEmpty() && queue.inFlight < 2 * queue.threads) return queue;
+        }
+        return null;
+    }
+
+    /** Takes the next target of the queue and counts it as in flight until done is called. */
+    BackupTargetFile take(DeviceQueue queue) {
+        waiting--;
+        queue.inFlight++;
+        return queue.waiting.poll().btf;
+    }
+
+    void done(DeviceQueue queue) {
+        queue.inFlight--;
+    }
+
+    /** The inode number from a Unix file key such as "(dev=803,ino=1234)", or Long.MAX_VALUE if there is none. */
+    static long inode(BackupTargetFile btf) {
+        if (btf.fileKey == null) return Long.MAX_VALUE;
+        Matcher matcher = INODE.matcher(btf.fileKey);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : Long.MAX_VALUE;
+    }
+
+    static class DeviceQueue {
+        final Object device;
+        final boolean rotational;
+        final int threads;
+        final PriorityQueue<Queued> waiting = new PriorityQueue<>();
+        int inFlight;
+
+        DeviceQueue(Object device, boolean rotational, int threads) {
+            this.device = device;
+            this.rotational = rotational;
+            this.threads = threads;
+        }
+    }
+
+    static class Queued implements Comparable<Queued> {
+        final BackupTargetFile btf;
+        final long inode;
+        final long sequence;
+
+        Queued(BackupTargetFile btf, long inode, long sequence) {
+            this.btf = btf;
+            this.inode = inode;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Queued o) {
+            int byInode = Long.compare(inode, o.inode);
+            return byInode != 0 ? byInode : Long.compare(sequence, o.sequence);
+        }
+    }
+}
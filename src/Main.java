@@ -3,10 +3,30 @@ import java.security.NoSuchAlgorithmException;
 
 public class Main {
 
-    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException, InterruptedException {
         // With arguments: run a specific action
+        if (args.length >= 3 && args[0].equals("restore")) {
+            Core.restoreBackup(args[1], args[2], RestoreOptions.parse(args, 3));
+            return;
+        }
+        if (args.length == 2 && args[0].equals("snapshots")) {
+            Core.listSnapshots(args[1]);
+            return;
+        }
+        if (args.length == 2 && args[0].equals("repair-catalog")) {
+            Core.repairSnapshotCatalog(args[1]);
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("prune")) {
+            Core.pruneRepository(args[1], PruneOptions.parse(args, 2));
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("watch")) {
+            new WatchDaemon(args[1], args[2], WatchOptions.parse(args, 3)).run();
+            return;
+        }
         if (args.length >= 2) {
-            Core.createBackup(args[0], args[1]);
+            Core.createBackup(args[0], args[1], BackupOptions.parse(args, 2));
             return;
         }
 
@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Writes a snapshot which carries over the entries of a previous snapshot, except those at or under the changed
+ * paths, which are replaced by the entries written to this writer. Both must be in sorted order, as written by
+ * createBackup, so the two are merged in one pass without loading either into memory.
+ */
+class MergingSnapshotWriter extends SnapshotWriter {
+
+    final SnapshotWriter target;
+    final SnapshotReader previous;
+    final Set<String> changedPaths;
+    SnapshotEntry nextPrevious;
+    long carriedOver;
+
+    MergingSnapshotWriter(SnapshotWriter target, File previousSnapshot, Set<String> changedPaths) throws IOException {
+        this.target = target;
+        this.previous = SnapshotReader.open(previousSnapshot);
+        this.changedPaths = changedPaths;
+        advance();
+    }
+
+    @Override
+    void write(SnapshotEntry entry) throws IOException {
+        carryOverUntil(entry.path);
+        // The previous entry for the same path is replaced.
+        if (nextPrevious != null && nextPrevious.path.equals(entry.path)) advance();
+        target.write(entry);
+    }
+
+    /** Writes the previous entries which sort before path (all of them if path is null) and are not changed. */
+    void carryOverUntil(String path) throws IOException {
+        while (nextPrevious != null && (path == null || nextPrevious.path.compareTo(path) < 0)) {
+            if (!isChanged(nextPrevious.path, changedPaths)) {
+                target.write(nextPrevious);
+                carriedOver++;
+            }
+            advance();
+        }
+    }
+
+    void advance() throws IOException {
+        String last = nextPrevious == null ? null : nextPrevious.path;
+        nextPrevious = previous.hasNext() ? previous.next() : null;
+        if (last != null && nextPrevious != null && last.compareTo(nextPrevious.path) >= 0) {
+            throw new IOException("Previous snapshot is not sorted by path, it can't be carried over: " + nextPrevious.path);
+        }
+    }
+
+    /** True if the path or one of its ancestors is a changed path. */
+    static boolean isChanged(String path, Set<String> changedPaths) {
+        if (changedPaths.contains(path)) return true;
+        for (int i = path.lastIndexOf(File.separatorChar); i > 0; i = path.lastIndexOf(File.separatorChar, i - 1)) {
+            if (changedPaths.contains(path.substring(0, i))) return true;
+        }
+        return false;
+    }
+
+    @Override
+    void sync() throws IOException {
+        target.sync();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    @Override
+    void finish() throws IOException {
+        carryOverUntil(null);
+        target.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            previous.close();
+        } finally {
+            target.close();
+        }
+    }
+}
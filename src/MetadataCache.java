@@ -0,0 +1,169 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the size, last-modified time and file key (inode) of every backed up path together with its hash,
+ * so that files which have not changed since the previous backup do not need to be read again.
+ * The cache lives in metadata-cache.bin next to filepath-snapshots and is rewritten at the end of each backup.
+ */
+class MetadataCache {
+
+    static final String FILE_NAME = "metadata-cache.bin";
+    static final int MAGIC = 0x53424D43; // "SBMC"
+    // Version 1 stored strings with writeUTF, which is limited to 64 KB. It is still read.
+    static final int VERSION = 2;
+
+    // File systems store last-modified time with limited granularity (2 seconds on FAT). If a file was modified
+    // this close to the start of the run which cached it, it may have changed again without its timestamp
+    // changing, so we don't trust such entries.
+    static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    final File file;
+    final long previousRunStartNanos;
+    final Map<String, Entry> previous;
+    final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    MetadataCache(File file, long previousRunStartNanos, Map<String, Entry> previous) {
+        this.file = file;
+        this.previousRunStartNanos = previousRunStartNanos;
+        this.previous = previous;
+    }
+
+    static MetadataCache load(String repositoryPath) throws IOException {
+        File file = new File(repositoryPath + File.separator + FILE_NAME);
+        if (!file.exists()) {
+            return new MetadataCache(file, 0, new HashMap<>());
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("unrecognized header");
+            }
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("unsupported version " + version);
+            }
+            long runStartNanos = in.readLong();
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = readString(in, version, file.length());
+                long size = in.readLong();
+                long lastModifiedNanos = in.readLong();
+                String fileKey = readString(in, version, file.length());
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                entries.put(path, new Entry(size, lastModifiedNanos, fileKey.isEmpty() ? null : fileKey, Utils.bytesToHex(hash)));
+            }
+            return new MetadataCache(file, runStartNanos, entries);
+        } catch (IOException ex) {
+            // The cache is only an optimization, so a damaged cache just means that every file gets hashed.
+            System.out.println("Warning! Ignoring unreadable metadata cache " + file.getAbsolutePath() + " (" + ex.getMessage() + ")");
+            return new MetadataCache(file, 0, new HashMap<>());
+        }
+    }
+
+    /** Reads attributes of the target unless they are already known. */
+    static void stat(BackupTargetFile btf) throws IOException {
+        if (btf.lastModifiedNanos >= 0) return;
+        BasicFileAttributes attributes = Files.readAttributes(btf.originPath, BasicFileAttributes.class);
+        btf.sizeBytes = attributes.size();
+        btf.lastModifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        btf.fileKey = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+    }
+
+    /** Returns the hash recorded for this path in the previous run if the file appears unchanged, otherwise null. */
+    String lookup(BackupTargetFile btf) {
+        Entry entry = previous.get(btf.originPath.toString());
+        if (entry == null) return null;
+        return matches(entry, btf, previousRunStartNanos) ? entry.hash : null;
+    }
+
+    /** Whether the file still has the attributes of an entry recorded by the run which started at runStartNanos. */
+    static boolean matches(Entry entry, BackupTargetFile btf, long runStartNanos) {
+        if (entry.size != btf.sizeBytes) return false;
+        if (entry.lastModifiedNanos != btf.lastModifiedNanos) return false;
+        if (!Objects.equals(entry.fileKey, btf.fileKey)) return false;
+        return entry.lastModifiedNanos <= runStartNanos - RACY_WINDOW_NANOS;
+    }
+
+    /** Records the hash of a successfully backed up file. Attributes must have been read before hashing. */
+    void record(BackupTargetFile btf, String hash) {
+        current.put(btf.originPath.toString(), new Entry(btf.sizeBytes, btf.lastModifiedNanos, btf.fileKey, hash));
+    }
+
+    /**
+     * Keeps the previous run's entries for paths which an incremental run did not look at, so that they are not
+     * dropped from the cache. Entries which the previous run didn't trust yet are dropped anyway: they would be
+     * trusted under this run's start time, without their file having been looked at again.
+     */
+    void carryOver(Predicate<String> changed) {
+        for (Map.Entry<String, Entry> e : previous.entrySet()) {
+            if (changed.test(e.getKey()) || current.containsKey(e.getKey())) continue;
+            if (e.getValue().lastModifiedNanos <= previousRunStartNanos - RACY_WINDOW_NANOS) {
+                current.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /** Replaces the cache file with the entries recorded during this run. */
+    void save(long runStartMillis) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(TimeUnit.MILLISECONDS.toNanos(runStartMillis));
+            out.writeInt(current.size());
+            for (Map.Entry<String, Entry> e : current.entrySet()) {
+                Entry entry = e.getValue();
+                byte[] hash = Utils.hexToBytes(entry.hash);
+                writeString(out, e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModifiedNanos);
+                writeString(out, entry.fileKey == null ? "" : entry.fileKey);
+                out.writeByte(hash.length);
+                out.write(hash);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Length-prefixed UTF-8, so that paths of any length can be stored. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string of at most maxBytes, which guards against allocating garbage lengths of a damaged file. */
+    static String readString(DataInputStream in, int version, long maxBytes) throws IOException {
+        if (version == 1) return in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > maxBytes) throw new IOException("invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static class Entry {
+        final long size;
+        final long lastModifiedNanos;
+        final String fileKey;
+        final String hash;
+
+        Entry(long size, long lastModifiedNanos, String fileKey, String hash) {
+            this.size = size;
+            this.lastModifiedNanos = lastModifiedNanos;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pack files for small blobs, in the packs folder of a repository. Storing millions of tiny files as separate
+ * blobs is dominated by file creation and renames, and can run the backup volume out of inodes, so small blobs
+ * are appended to pack segments instead.
+ *
+ * A pack starts with a header (magic "SBPPACK\n" and a version byte) followed by self-describing records:
+ * 32-byte hash, 8-byte last-modified millis of the original file, 4-byte length, content. When a pack reaches
+ * PACK_SIZE_LIMIT or the backup finishes, it is sealed: forced to disk once, and then its index (pack-*.idx,
+ * one "hash offset" line per record) is written. The index is what makes the pack's blobs visible. A pack
+ * without an index was interrupted; its records are recovered by scanning and re-hashing them, up to the first
+ * incomplete one.
+ */
+class PackStore {
+
+    static final byte[] MAGIC = "SBPPACK\n".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1;
+    static final int RECORD_HEADER_SIZE = DigestMap.DIGEST_BYTES + 8 + 4;
+    static final long PACK_SIZE_LIMIT = 64L * 1024 * 1024;
+    static final String PACK_SUFFIX = ".pack";
+    static final String INDEX_SUFFIX = ".idx";
+    // Pack locations are stored as pack number << OFFSET_BITS | offset in the pack.
+    static final int OFFSET_BITS = 40;
+
+    final File packsDir;
+    final HashAlgorithm hashAlgorithm;
+    final List<File> packFiles = new ArrayList<>();
+    DigestMap packedBlobs; // Loaded lazily. Hash -> location of its record.
+
+    // Pack currently being appended to, if any.
+    FileChannel openPack;
+    int openPackNumber;
+    List<String> openPackHashes;
+    final List<Long> openPackOffsets = new ArrayList<>();
+    int packSequence;
+    boolean packCreatedSinceSync;
+
+    PackStore(File packsDir, HashAlgorithm hashAlgorithm) {
+        this.packsDir = packsDir;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    synchronized DigestMap packedBlobs() throws IOException {
+        if (packedBlobs == null) load();
+        return packedBlobs;
+    }
+
+    void load() throws IOException {
+        packedBlobs = DigestMap.newMap();
+        File[] files = packsDir.listFiles((dir, name) -> name.endsWith(PACK_SUFFIX));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File pack : files) {
+            int packNumber = packFiles.size();
+            packFiles.add(pack);
+            File index = indexFileOf(pack);
+            if (!index.exists()) {
+                recover(pack);
+            }
+            for (Map.Entry<String, Long> record : readIndex(index).entrySet()) {
+                packedBlobs.put(record.getKey(), location(packNumber, record.getValue()));
+            }
+        }
+    }
+
+    /** Hash and offset of each record in a pack, in the order of its index. */
+    static Map<String, Long> readIndex(File index) throws IOException {
+        Map<String, Long> records = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+            while (true) {
+                String line = br.readLine();
+                if (line == null) break;
+                String[] parts = line.split(" ");
+                if (parts.length != 2 || !BlobStore.looksLikeHash(parts[0]) || !parts[1].matches("[0-9]+")) {
+                    throw new IOException("Malformed line in pack index " + index.getAbsolutePath() + ": " + line);
+                }
+                records.put(parts[0], Long.parseLong(parts[1]));
+            }
+        }
+        return records;
+    }
+
+    static File indexFileOf(File pack) {
+        String name = pack.getName();
+        return new File(pack.getParentFile(), name.substring(0, name.length() - PACK_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    static long location(int packNumber, long offset) {
+        return ((long) packNumber << OFFSET_BITS) | offset;
+    }
+
+    /** Indexes the complete records of a pack which was not sealed, e.g. because the backup was interrupted. */
+    void recover(File pack) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pack), 65536))) {
+            readHeader(in, pack);
+            long offset = HEADER_SIZE;
+            byte[] hash = new byte[DigestMap.DIGEST_BYTES];
+            long packLength = pack.length();
+            while (true) {
+                byte[] content;
+                try {
+                    in.readFully(hash);
+                    in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || offset + RECORD_HEADER_SIZE + length > packLength) break;
+                    content = new byte[length];
+                    in.readFully(content);
+                } catch (EOFException ex) {
+                    // Torn write at the end of the pack.
+                    break;
+                }
+                if (!Arrays.equals(Utils.hexToBytes(hashAlgorithm.hash(content, 0, content.length)), hash)) break;
+                hashes.add(Utils.bytesToHex(hash));
+                offsets.add(offset);
+                offset += RECORD_HEADER_SIZE + content.length;
+            }
+        }
+        System.out.println("Pack " + pack.getAbsolutePath() + " was not sealed, recovered " + hashes.size() + " blobs from it.");
+        writeIndex(pack, hashes, offsets);
+        Durability.syncDirectory(pack.getAbsoluteFile().getParentFile().toPath());
+    }
+
+    static void readHeader(DataInputStream in, File pack) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a pack file: " + pack.getAbsolutePath());
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported pack version " + version + " in " + pack.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Writes the index of a pack, which makes its blobs visible. The index is forced to disk before it is moved into
+     * place, so a crash can't leave a torn index which hides blobs. The caller syncs the packs directory.
+     */
+    static void writeIndex(File pack, List<String> hashes, List<Long> offsets) throws IOException {
+        File index = indexFileOf(pack);
+        File tmp = new File(index.getAbsolutePath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < hashes.size(); i++) {
+                writer.write(hashes.get(i) + " " + offsets.get(i) + "\n");
+            }
+        }
+        try (FileChannel channel = Durability.openForSync(tmp.toPath())) {
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized boolean contains(String hash) throws IOException {
+        return packedBlobs().contains(hash);
+    }
+
+    /** Returns the record of a packed blob, or null if the blob is not in any pack. */
+    Record read(String hash) throws IOException {
+        File pack;
+        long offset;
+        synchronized (this) {
+            long location = packedBlobs().get(hash, -1);
+            if (location < 0) return null;
+            pack = packFiles.get((int) (location >>> OFFSET_BITS));
+            offset = location & ((1L << OFFSET_BITS) - 1);
+        }
+        try (FileChannel channel = FileChannel.open(pack.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readRecordHeader(channel, pack, offset, hash);
+            long lastModifiedMillis = header.getLong();
+            int length = header.getInt();
+            ByteBuffer content = ByteBuffer.allocate(length);
+            readFully(channel, content, offset + RECORD_HEADER_SIZE);
+            return new Record(content.array(), lastModifiedMillis, pack);
+        }
+    }
+
+    /** Returns the content length of a packed blob from its record header, or -1 if the blob is not in any pack. */
+    long size(String hash) throws IOException {
+        File pack;
+        long offset;
+        synchronized (this) {
+            long location = packedBlobs().get(hash, -1);
+            if (location < 0) return -1;
+            pack = packFiles.get((int) (location >>> OFFSET_BITS));
+            offset = location & ((1L << OFFSET_BITS) - 1);
+        }
+        try (FileChannel channel = FileChannel.open(pack.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readRecordHeader(channel, pack, offset, hash);
+            header.getLong();
+            return header.getInt();
+        }
+    }
+
+    /** Reads and checks the header of the record at offset. Returns it positioned after the hash. */
+    static ByteBuffer readRecordHeader(FileChannel channel, File pack, long offset, String hash) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, offset);
+        byte[] recordHash = new byte[DigestMap.DIGEST_BYTES];
+        header.get(recordHash);
+        int length = header.getInt(DigestMap.DIGEST_BYTES + 8);
+        if (!Utils.bytesToHex(recordHash).equalsIgnoreCase(hash) || length < 0) {
+            throw new IOException("Pack " + pack.getAbsolutePath() + " has an unexpected record at offset " + offset + " (expected blob " + hash + ")");
+        }
+        return header;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0) throw new EOFException("Unexpected end of pack file");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Appends a blob to the open pack, starting a new pack if needed. The record is handed to the operating system
+     * before returning, but is only forced to disk by sync or when the pack is sealed. Returns the hashes of the
+     * pack if appending filled it up and it was sealed, otherwise an empty list.
+     */
+    synchronized List<String> append(String hash, byte[] content, long lastModifiedMillis) throws IOException {
+        DigestMap packed = packedBlobs();
+        if (packed.contains(hash)) return List.of();
+        if (openPack == null) {
+            startPack();
+        }
+        long offset = openPack.size();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + content.length);
+        record.put(Utils.hexToBytes(hash));
+        record.putLong(lastModifiedMillis);
+        record.putInt(content.length);
+        record.put(content);
+        record.flip();
+        while (record.hasRemaining()) {
+            openPack.write(record, offset + record.position());
+        }
+        openPackHashes.add(hash);
+        openPackOffsets.add(offset);
+        packed.put(hash, location(openPackNumber, offset));
+        if (offset + RECORD_HEADER_SIZE + content.length >= PACK_SIZE_LIMIT) {
+            return seal();
+        }
+        return List.of();
+    }
+
+    void startPack() throws IOException {
+        File pack = newPackFile();
+        openPack = FileChannel.open(pack.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeHeader(openPack);
+        openPackNumber = packFiles.size();
+        packFiles.add(pack);
+        packCreatedSinceSync = true;
+        openPackHashes = new ArrayList<>();
+        openPackOffsets.clear();
+    }
+
+    synchronized File newPackFile() {
+        packsDir.mkdirs();
+        File pack;
+        do {
+            pack = new File(packsDir, "pack-" + Utils.timestamp() + "-" + (++packSequence) + PACK_SUFFIX);
+        } while (pack.exists());
+        return pack;
+    }
+
+    static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Rewrites a sealed pack without the records which are not live. The live records are copied into a new pack,
+     * which is sealed before the old pack is deleted, so every live blob stays in at least one indexed pack.
+     * Returns the number of bytes freed.
+     */
+    long repack(File pack, DigestMap live) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        File newPack = null;
+        for (Map.Entry<String, Long> record : readIndex(indexFileOf(pack)).entrySet()) {
+            if (!live.contains(record.getKey())) continue;
+            hashes.add(record.getKey());
+            offsets.add(record.getValue());
+        }
+        if (!hashes.isEmpty()) {
+            newPack = newPackFile();
+            List<Long> newOffsets = new ArrayList<>();
+            try (FileChannel in = FileChannel.open(pack.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(newPack.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writeHeader(out);
+                for (int i = 0; i < hashes.size(); i++) {
+                    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                    readFully(in, header, offsets.get(i));
+                    header.position(DigestMap.DIGEST_BYTES + 8);
+                    int length = header.getInt();
+                    if (length < 0) throw new IOException("Pack " + pack.getAbsolutePath() + " has a malformed record at offset " + offsets.get(i));
+                    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+                    readFully(in, record, offsets.get(i));
+                    newOffsets.add(out.position());
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                out.force(true);
+            }
+            writeIndex(newPack, hashes, newOffsets);
+            Durability.syncDirectory(packsDir.toPath());
+        }
+        long freed = pack.length() - (newPack == null ? 0 : newPack.length());
+        // Without its index, an interrupted delete leaves a pack which is recovered like an unsealed one.
+        Files.delete(indexFileOf(pack).toPath());
+        Files.delete(pack.toPath());
+        return freed;
+    }
+
+    /** Forces the records appended to the open pack so far, and the directory entries of new packs, to disk. */
+    synchronized void sync() throws IOException {
+        if (openPack != null) openPack.force(false);
+        if (packCreatedSinceSync) {
+            Durability.syncDirectory(packsDir.toPath());
+            packCreatedSinceSync = false;
+        }
+    }
+
+    /**
+     * Forces the open pack and its index to disk. Returns the hashes in the pack. The blob index and snapshot which
+     * reference these blobs are synced afterwards, so they never point at blobs which a crash could hide.
+     */
+    synchronized List<String> seal() throws IOException {
+        if (openPack == null) return List.of();
+        // The one durability barrier for all blobs in this pack.
+        openPack.force(true);
+        openPack.close();
+        openPack = null;
+        writeIndex(packFiles.get(openPackNumber), openPackHashes, openPackOffsets);
+        // Covers the entries of the pack and of its index.
+        Durability.syncDirectory(packsDir.toPath());
+        packCreatedSinceSync = false;
+        List<String> sealed = openPackHashes;
+        openPackHashes = null;
+        return sealed;
+    }
+
+    static class Record {
+        final byte[] content;
+        final long lastModifiedMillis;
+        final File pack;
+
+        Record(byte[] content, long lastModifiedMillis, File pack) {
+            this.content = content;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.pack = pack;
+        }
+    }
+}
@@ -7,6 +7,18 @@ public class ProgressIndicator {
     long INTERVAL_BETWEEN_DISPLAY_REFRESH_NANO_SECONDS = (long) 1e9;
 
     String explainer;
+    // While discovery is still running, the totals are only an estimate which grows as files are discovered.
+    boolean estimating;
+    // Optional, adds dedup ratio and bytes read/written to the progress line.
+    RunMetrics metrics;
+
+    // Throughput is smoothed with an exponential moving average, so that the ETA does not jump around
+    // every time a large file or a run of tiny files goes by.
+    static final double SMOOTHING = 0.3;
+    long startTime = System.nanoTime();
+    long lastRateTime = startTime;
+    long lastRateBytes;
+    double smoothedBytesPerSecond = -1;
 
     public ProgressIndicator(long size, long count, String explainer) {
         this.size = size;
@@ -16,7 +28,24 @@ public class ProgressIndicator {
         this.explainer = explainer;
     }
 
-    public void tick(long bytesCopied) {
+    /** Creates a progress indicator whose totals are added one discovered file at a time. */
+    public static ProgressIndicator estimating(String explainer) {
+        ProgressIndicator progressIndicator = new ProgressIndicator(0, 0, explainer);
+        progressIndicator.estimating = true;
+        return progressIndicator;
+    }
+
+    public synchronized void addToTotal(long bytes) {
+        size += bytes;
+        count += 1;
+    }
+
+    /** Called once discovery has finished and the totals are exact. */
+    public synchronized void totalKnown() {
+        estimating = false;
+    }
+
+    public synchronized void tick(long bytesCopied) {
         completedPortionOfJob.size += bytesCopied;
         completedPortionOfJob.count += 1;
         long currTime = System.nanoTime();
@@ -25,21 +54,40 @@ public class ProgressIndicator {
             long filesT = count;
             long bytesC = completedPortionOfJob.size;
             long bytesT = size;
-            String countPercent = Utils.nicePercent(filesC * 1.0 / filesT);
-            String bytesPercent = Utils.nicePercent(bytesC * 1.0 / bytesT);
-            printProgress(filesC, countPercent, bytesC, bytesPercent);
+            String estimate = estimating ? "~" : "";
+            String countPercent = estimate + Utils.nicePercent(filesC * 1.0 / filesT);
+            String bytesPercent = estimate + Utils.nicePercent(bytesC * 1.0 / bytesT);
+            updateRate(currTime, bytesC);
+            String rate = ", " + Utils.formatSize((long) smoothedBytesPerSecond) + "/s, ETA " + estimate + formatEta(bytesT - bytesC);
+            printProgress(filesC, countPercent, bytesC, bytesPercent, rate);
             lastProgressDisplayTime = currTime;
         }
     }
 
-    public void done() {
-        printProgress(count, "100.00%", size, "100.00%");
+    void updateRate(long currTime, long bytesC) {
+        double seconds = (currTime - lastRateTime) / 1e9;
+        if (seconds <= 0) return;
+        double rate = (bytesC - lastRateBytes) / seconds;
+        smoothedBytesPerSecond = smoothedBytesPerSecond < 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * smoothedBytesPerSecond;
+        lastRateTime = currTime;
+        lastRateBytes = bytesC;
+    }
+
+    String formatEta(long remainingBytes) {
+        if (smoothedBytesPerSecond <= 0) return "unknown";
+        long seconds = (long) (Math.max(0, remainingBytes) / smoothedBytesPerSecond);
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    public synchronized void done() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        String rate = seconds > 0 ? ", average " + Utils.formatSize((long) (size / seconds)) + "/s" : "";
+        printProgress(count, "100.00%", size, "100.00%", rate);
     }
 
-    public void printProgress(long filesC, String countPercent, long bytesC, String bytesPercent) {
-        System.out.println("Progress " + Utils.timestamp() + ": " + filesC + " " + explainer + " (" + countPercent + "), " + Utils.formatSize(bytesC) + " (" + bytesPercent + ")");
-        // TODO MiB/s
-        // TODO ETA
-        // TODO separately report data copied vs total data in repo
+    public void printProgress(long filesC, String countPercent, long bytesC, String bytesPercent, String rate) {
+        String discovery = estimating ? " (discovery in progress, " + count + " files totaling " + Utils.formatSize(size) + " found so far)" : "";
+        String details = metrics == null ? "" : " [" + metrics.summaryLine() + "]";
+        System.out.println("Progress " + Utils.timestamp() + ": " + filesC + " " + explainer + " (" + countPercent + "), " + Utils.formatSize(bytesC) + " (" + bytesPercent + ")" + rate + discovery + details);
     }
 }
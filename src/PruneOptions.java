@@ -0,0 +1,49 @@
+/** Options for pruning a repository. At least one retention rule must be given. */
+class PruneOptions {
+    final RetentionPolicy retention = new RetentionPolicy();
+    // Report what would be removed without removing anything.
+    boolean dryRun = false;
+    // Number of folders swept in parallel.
+    int threads = 4;
+
+    /** Parses optional flags such as "--keep-daily=30" starting from the given index. */
+    static PruneOptions parse(String[] args, int from) {
+        PruneOptions options = new PruneOptions();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "--keep-last":
+                    options.retention.keepLast = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                case "--keep-daily":
+                    options.retention.keepDaily = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                case "--keep-weekly":
+                    options.retention.keepWeekly = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                case "--keep-monthly":
+                    options.retention.keepMonthly = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                case "--keep-yearly":
+                    options.retention.keepYearly = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                case "--dry-run":
+                    options.dryRun = true;
+                    break;
+                case "--prune-threads":
+                    options.threads = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.retention.isEmpty()) {
+            // Pruning with no rules would keep only the latest snapshot, which is rarely what anyone wants.
+            throw new IllegalArgumentException("Prune needs at least one of --keep-last, --keep-daily, --keep-weekly, --keep-monthly or --keep-yearly");
+        }
+        return options;
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Removes the snapshots which the retention policy doesn't keep, and then everything stored which no remaining
+ * snapshot refers to. The mark phase streams every snapshot file left in filepath-snapshots into a digest set,
+ * adds the chunks of live manifests, and the files which an interrupted backup has already completed according
+ * to its journal. The sweep then walks blobs, manifests, trees and packs in parallel and deletes what isn't live.
+ * Packs are deleted when all of their records are dead, and repacked when at least half of their bytes are.
+ *
+ * The repository is locked for the whole run, so a backup can't store or deduplicate against content while it is
+ * being swept. Removed snapshots are dropped from the catalog and their files deleted before anything is marked,
+ * and the blob index is marked stale before anything is swept, so an interrupted prune only leaves garbage behind
+ * which the next prune removes.
+ */
+class Pruner {
+
+    static final double REPACK_DEAD_FRACTION = 0.5;
+
+    final File repositoryDir;
+    final BlobStore blobStore;
+    final PruneOptions options;
+    final Sweep blobs = new Sweep("blobs");
+    final Sweep manifests = new Sweep("chunk manifests");
+    final Sweep trees = new Sweep("hash trees");
+    final Sweep packedBlobs = new Sweep("packed blobs");
+    final AtomicLong packsDeleted = new AtomicLong();
+    final AtomicLong packsRepacked = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    Pruner(File repoFilesDir, PruneOptions options) throws IOException {
+        this.repositoryDir = repoFilesDir.getParentFile();
+        this.blobStore = new BlobStore(repoFilesDir);
+        this.options = options;
+    }
+
+    void prune(LocalDateTime now) throws IOException {
+        SnapshotCatalog catalog = SnapshotCatalog.load(repositoryDir);
+        Map<String, List<String>> kept = options.retention.select(catalog.entries.keySet(), now);
+        List<String> removed = new ArrayList<>();
+        for (String timestamp : catalog.entries.keySet()) {
+            if (kept.containsKey(timestamp)) {
+                System.out.println("Keeping snapshot " + timestamp + " (" + String.join(", ", kept.get(timestamp)) + ")");
+            } else {
+                System.out.println((options.dryRun ? "Would remove" : "Removing") + " snapshot " + timestamp);
+                removed.add(timestamp);
+            }
+        }
+        if (!options.dryRun && !removed.isEmpty()) {
+            for (String timestamp : removed) {
+                catalog.entries.remove(timestamp);
+            }
+            catalog.save(Durability.of(new BackupOptions()));
+            for (String timestamp : removed) {
+                Core.deleteSnapshotFiles(repositoryDir.getPath(), timestamp);
+            }
+            // Otherwise a crash could bring back snapshot files whose content has been swept.
+            Durability.syncDirectory(SnapshotCatalog.snapshotsDir(repositoryDir).toPath());
+        }
+
+        long markStart = System.currentTimeMillis();
+        DigestMap live = mark(catalog, new HashSet<>(removed));
+        System.out.println("Marked " + live.size() + " live contents in " + (System.currentTimeMillis() - markStart) / 1000.0 + " s.");
+        if (!options.dryRun) blobStore.invalidateIndex();
+        sweep(live);
+        if (!options.dryRun) {
+            // A fresh store, so that the packs are read as they are now.
+            BlobStore swept = new BlobStore(blobStore.repoFilesDir);
+            swept.rewriteIndex(swept.walkKnownHashes());
+        }
+        report();
+    }
+
+    /** Returns the hashes of all content which the snapshots left after pruning, or an interrupted backup, refer to. */
+    DigestMap mark(SnapshotCatalog catalog, Set<String> removed) throws IOException {
+        DigestMap live = DigestMap.newSet();
+        BackupJournal journal = Core.loadJournal(repositoryDir.getPath());
+        String partial = journal == null ? null : journal.timestamp;
+        if (journal != null) {
+            System.out.println("Keeping the content of interrupted backup " + journal.timestamp + ", resume it to complete its snapshot.");
+            for (MetadataCache.Entry entry : journal.completed.values()) {
+                live.add(entry.hash);
+            }
+        }
+        File[] snapshots = SnapshotCatalog.snapshotsDir(repositoryDir).listFiles((dir, name) -> name.startsWith("snapshot-") && !name.endsWith(".tmp"));
+        for (File snapshot : snapshots == null ? new File[0] : snapshots) {
+            String timestamp = Core.snapshotTimestamp(snapshot);
+            if (removed.contains(timestamp)) continue;
+            if (!catalog.entries.containsKey(timestamp) && !timestamp.equals(partial)) {
+                System.out.println("Warning! Keeping content of " + snapshot.getName() + ", which is not in the snapshot catalog. Repair the catalog with 'repair-catalog' if the snapshot should be listed.");
+            }
+            try (SnapshotReader reader = SnapshotReader.open(snapshot)) {
+                while (reader.hasNext()) {
+                    live.add(reader.next().hash);
+                }
+            } catch (IOException | UncheckedIOException | IllegalArgumentException ex) {
+                // The partial snapshot of an interrupted backup has no footer yet, its content is in the journal.
+                if (timestamp.equals(partial)) continue;
+                throw new IOException("Unable to read snapshot " + snapshot.getAbsolutePath() + ", nothing was swept because its content could have been removed: " + ex.getMessage(), ex);
+            }
+        }
+        // Chunks are live through the manifests of live content.
+        for (File manifest : listFiles(blobStore.manifestsDir)) {
+            if (BlobStore.looksLikeHash(manifest.getName()) && live.contains(manifest.getName())) {
+                for (BlobStore.ChunkRef chunk : BlobStore.readManifest(manifest)) {
+                    live.add(chunk.hash);
+                }
+            }
+        }
+        return live;
+    }
+
+    void sweep(DigestMap live) {
+        List<Runnable> tasks = new ArrayList<>();
+        addFolderTasks(tasks, blobStore.repoFilesDir, blobs, live);
+        addFolderTasks(tasks, blobStore.manifestsDir, manifests, live);
+        addFolderTasks(tasks, blobStore.treesDir, trees, live);
+        File[] packs = blobStore.packs.packsDir.listFiles((dir, name) -> name.endsWith(PackStore.PACK_SUFFIX));
+        for (File pack : packs == null ? new File[0] : packs) {
+            // A pack without an index belongs to an interrupted backup. It is indexed by the next backup.
+            if (PackStore.indexFileOf(pack).exists()) tasks.add(() -> sweepPack(pack, live));
+        }
+        // The live set is only read from here on, which DigestMap allows from many threads.
+        ExecutorService pool = Executors.newFixedThreadPool(options.threads);
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(tasks.size());
+            for (Runnable task : tasks) {
+                futures.add(CompletableFuture.runAsync(task, pool));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** One task per fan-out folder, and one for files at the top, such as blobs in the legacy flat layout. */
+    void addFolderTasks(List<Runnable> tasks, File root, Sweep sweep, DigestMap live) {
+        File[] children = root.listFiles();
+        if (children == null) return;
+        List<Path> topFiles = new ArrayList<>();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                tasks.add(() -> {
+                    try (Stream<Path> paths = Files.walk(child.toPath())) {
+                        paths.filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)).forEach(path -> sweepFile(path, sweep, live));
+                    } catch (IOException | UncheckedIOException ex) {
+                        System.out.println("ERROR! Unable to sweep " + child.getAbsolutePath() + ": " + ex.getMessage());
+                        failures.incrementAndGet();
+                    }
+                });
+            } else {
+                topFiles.add(child.toPath());
+            }
+        }
+        tasks.add(() -> topFiles.forEach(path -> sweepFile(path, sweep, live)));
+    }
+
+    void sweepFile(Path path, Sweep sweep, DigestMap live) {
+        String hash = BlobStore.hashOfBlobName(path.getFileName().toString());
+        // Temp files are left to recoverTempFiles of the next backup.
+        if (!BlobStore.looksLikeHash(hash)) return;
+        sweep.scanned.incrementAndGet();
+        if (live.contains(hash)) return;
+        try {
+            long sizeBytes = Files.size(path);
+            if (!options.dryRun) Files.delete(path);
+            sweep.removed.incrementAndGet();
+            sweep.removedBytes.addAndGet(sizeBytes);
+        } catch (IOException ex) {
+            System.out.println("ERROR! Unable to remove " + path + ": " + ex.getMessage());
+            failures.incrementAndGet();
+        }
+    }
+
+    void sweepPack(File pack, DigestMap live) {
+        try {
+            Map<String, Long> records = PackStore.readIndex(PackStore.indexFileOf(pack));
+            List<Long> offsets = records.values().stream().sorted().collect(Collectors.toList());
+            Map<Long, Long> lengths = new HashMap<>();
+            for (int i = 0; i < offsets.size(); i++) {
+                long end = i + 1 < offsets.size() ? offsets.get(i + 1) : pack.length();
+                lengths.put(offsets.get(i), end - offsets.get(i));
+            }
+            long dead = 0;
+            long deadBytes = 0;
+            long recordBytes = 0;
+            for (Map.Entry<String, Long> record : records.entrySet()) {
+                long length = lengths.get(record.getValue());
+                recordBytes += length;
+                if (!live.contains(record.getKey())) {
+                    dead++;
+                    deadBytes += length;
+                }
+            }
+            packedBlobs.scanned.addAndGet(records.size());
+            if (dead == 0 || (dead < records.size() && deadBytes < REPACK_DEAD_FRACTION * recordBytes)) return;
+            if (dead == records.size()) {
+                if (!options.dryRun) {
+                    Files.delete(PackStore.indexFileOf(pack).toPath());
+                    Files.delete(pack.toPath());
+                }
+                packsDeleted.incrementAndGet();
+            } else {
+                if (!options.dryRun) blobStore.packs.repack(pack, live);
+                packsRepacked.incrementAndGet();
+            }
+            packedBlobs.removed.addAndGet(dead);
+            packedBlobs.removedBytes.addAndGet(deadBytes);
+        } catch (IOException ex) {
+            System.out.println("ERROR! Unable to sweep pack " + pack.getAbsolutePath() + ": " + ex.getMessage());
+            failures.incrementAndGet();
+        }
+    }
+
+    static List<File> listFiles(File root) throws IOException {
+        if (!root.exists()) return List.of();
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            return paths.filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)).map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    void report() {
+        String verb = options.dryRun ? "Would remove " : "Removed ";
+        long removedBytes = 0;
+        for (Sweep sweep : new Sweep[] { blobs, manifests, trees, packedBlobs }) {
+            System.out.println(verb + sweep.removed + " of " + sweep.scanned + " " + sweep.kind + " (" + Utils.formatSize(sweep.removedBytes.get()) + ")");
+            removedBytes += sweep.removedBytes.get();
+        }
+        System.out.println((options.dryRun ? "Would delete " : "Deleted ") + packsDeleted + " packs and " + (options.dryRun ? "repack " : "repacked ") + packsRepacked + " packs.");
+        if (failures.get() > 0) {
+            System.out.println("WARNING! " + failures + " files could not be swept, see errors above. Running prune again will retry them.");
+        } else if (options.dryRun) {
+            System.out.println("Dry run, nothing was removed. Pruning would free " + Utils.formatSize(removedBytes) + ".");
+        } else {
+            System.out.println("SUCCESS! Repository was pruned, " + Utils.formatSize(removedBytes) + " freed.");
+        }
+    }
+
+    static class Sweep {
+        final String kind;
+        final AtomicLong scanned = new AtomicLong();
+        final AtomicLong removed = new AtomicLong();
+        final AtomicLong removedBytes = new AtomicLong();
+
+        Sweep(String kind) {
+            this.kind = kind;
+        }
+    }
+}
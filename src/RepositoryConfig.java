@@ -0,0 +1,79 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Settings which are fixed when a repository is created, kept in repository.properties. Repositories created
+ * before the file existed don't have it; they were all hashed with SHA-256, which is also the default.
+ */
+class RepositoryConfig {
+
+    static final String FILE_NAME = "repository.properties";
+    static final String HASH_ALGORITHM_KEY = "hash-algorithm";
+
+    final HashAlgorithm hashAlgorithm;
+
+    RepositoryConfig(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    static File fileOf(File repositoryDir) {
+        return new File(repositoryDir, FILE_NAME);
+    }
+
+    static RepositoryConfig load(File repositoryDir) throws IOException {
+        File file = fileOf(repositoryDir);
+        if (!file.exists()) return new RepositoryConfig(HashAlgorithm.SHA256);
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            return new RepositoryConfig(HashAlgorithm.parse(properties.getProperty(HASH_ALGORITHM_KEY, HashAlgorithm.SHA256.id)));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unsupported setting in " + file.getAbsolutePath() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the settings of the repository, writing them down first if the repository doesn't have them yet.
+     * A new repository gets the requested hash algorithm (null for the default); an existing one keeps its own.
+     */
+    static RepositoryConfig forBackup(File repositoryDir, HashAlgorithm requested) throws IOException {
+        if (fileOf(repositoryDir).exists()) {
+            RepositoryConfig config = load(repositoryDir);
+            if (requested != null && requested != config.hashAlgorithm) {
+                throw new IllegalArgumentException("Repository " + repositoryDir.getAbsolutePath() + " uses hash algorithm " + config.hashAlgorithm.id
+                        + ", it can't be changed to " + requested.id);
+            }
+            return config;
+        }
+        HashAlgorithm algorithm = requested == null ? HashAlgorithm.SHA256 : requested;
+        if (algorithm != HashAlgorithm.SHA256 && hasContent(repositoryDir)) {
+            throw new IllegalArgumentException("Repository " + repositoryDir.getAbsolutePath() + " already has content hashed with sha256, it can't be changed to " + algorithm.id);
+        }
+        RepositoryConfig config = new RepositoryConfig(algorithm);
+        config.save(repositoryDir);
+        return config;
+    }
+
+    static boolean hasContent(File repositoryDir) {
+        for (String dir : new String[]{"files", BlobStore.MANIFESTS_DIR_NAME, BlobStore.PACKS_DIR_NAME}) {
+            String[] names = new File(repositoryDir, dir).list();
+            if (names != null && names.length > 0) return true;
+        }
+        return false;
+    }
+
+    void save(File repositoryDir) throws IOException {
+        File file = fileOf(repositoryDir);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write("# Fixed when the repository was created. Changing these would make existing content unreadable.\n");
+            writer.write(HASH_ALGORITHM_KEY + "=" + hashAlgorithm.id + "\n");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exclusive lock on a repository (repository.lock), held by backups, prune and the maintenance commands which
+ * rewrite the repository for as long as they run, so that prune never deletes blobs which a running backup has
+ * stored or deduplicated against. The lock belongs to the process and is released by the operating system if it
+ * dies, so an interrupted backup never leaves it behind.
+ */
+class RepositoryLock implements Closeable {
+
+    static final String FILE_NAME = "repository.lock";
+
+    final FileChannel channel;
+    final FileLock lock;
+
+    RepositoryLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    static RepositoryLock acquire(File repositoryDir, String purpose) throws IOException {
+        repositoryDir.mkdirs();
+        File file = new File(repositoryDir, FILE_NAME);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IllegalArgumentException("Repository " + repositoryDir.getAbsolutePath() + " is in use by another backup, prune or maintenance task, unable to start " + purpose);
+        }
+        return new RepositoryLock(channel, lock);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+}
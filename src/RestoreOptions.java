@@ -0,0 +1,78 @@
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.function.Predicate;
+
+/** Options for restoring files from a backup. Defaults restore everything from the latest snapshot. */
+class RestoreOptions {
+    // Timestamp of the snapshot to restore, e.g. "2018-12-31-23-59-59". A prefix such as "2018-12" picks the latest
+    // snapshot from that month. Null means the latest snapshot.
+    String snapshotTimestamp = null;
+    // Only restore this path and paths under it, or paths which match it as a glob if it contains glob characters.
+    String include = null;
+    // Number of files restored in parallel.
+    int threads = 4;
+    // Leave existing files alone if they already have the right size and content.
+    boolean skipIdentical = true;
+
+    /** Parses optional flags such as "--snapshot=2018-12-31" starting from the given index. */
+    static RestoreOptions parse(String[] args, int from) {
+        RestoreOptions options = new RestoreOptions();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "--snapshot":
+                    options.snapshotTimestamp = value;
+                    break;
+                case "--include":
+                    options.include = value;
+                    break;
+                case "--restore-threads":
+                    options.threads = BackupOptions.parsePositiveInt(key, value);
+                    break;
+                case "--no-skip-identical":
+                    options.skipIdentical = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    static boolean isGlob(String pattern) {
+        for (char c : "*?[{".toCharArray()) {
+            if (pattern.indexOf(c) >= 0) return true;
+        }
+        return false;
+    }
+
+    /** Returns a filter for snapshot paths according to the include option. */
+    Predicate<String> pathFilter() {
+        if (include == null || include.isEmpty()) return path -> true;
+        if (isGlob(include)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + include);
+            return path -> {
+                try {
+                    return matcher.matches(Paths.get(path));
+                } catch (InvalidPathException ex) {
+                    // E.g. a Windows path in a snapshot restored on another platform.
+                    return false;
+                }
+            };
+        }
+        return path -> isUnder(path, include);
+    }
+
+    /** True if path is prefix itself or lies under it. Either separator counts, snapshots may hold Windows paths. */
+    static boolean isUnder(String path, String prefix) {
+        if (!path.startsWith(prefix)) return false;
+        if (path.length() == prefix.length() || prefix.endsWith("/") || prefix.endsWith("\\")) return true;
+        char next = path.charAt(prefix.length());
+        return next == '/' || next == '\\';
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Restores files from a snapshot. Entries are grouped by hash, so content which appears under several paths is
+ * read from the repository only once; the other paths are copied from the first restored file, which is usually
+ * much faster than reading the backup disk again. Groups are restored in parallel.
+ *
+ * Existing files are never overwritten. If an existing file already has the right size and content, it is left
+ * alone and counted as restored, and partial copies of an interrupted restore are replaced, so an interrupted
+ * restore can simply be run again.
+ */
+class Restorer {
+
+    final BlobStore blobStore;
+    final File restoreDir;
+    final RestoreOptions options;
+
+    final AtomicLong filesFromRepository = new AtomicLong();
+    final AtomicLong bytesFromRepository = new AtomicLong();
+    final AtomicLong filesCopiedLocally = new AtomicLong();
+    final AtomicLong filesSkipped = new AtomicLong();
+    final AtomicLong filesFailed = new AtomicLong();
+
+    Restorer(BlobStore blobStore, File restoreDir, RestoreOptions options) {
+        this.blobStore = blobStore;
+        this.restoreDir = restoreDir;
+        this.options = options;
+    }
+
+    void restore(File snapshotFile) throws IOException {
+        // Group the selected entries by hash, keeping snapshot order within each group.
+        Predicate<String> filter = options.pathFilter();
+        LinkedHashMap<String, List<SnapshotEntry>> entriesByHash = new LinkedHashMap<>();
+        long totalCount = 0;
+        long totalBytes = 0;
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            while (reader.hasNext()) {
+                SnapshotEntry entry = reader.next();
+                if (!filter.test(entry.path)) continue;
+                List<SnapshotEntry> group = entriesByHash.computeIfAbsent(entry.hash, hash -> new ArrayList<>());
+                group.add(entry);
+                totalCount++;
+            }
+        }
+        for (Map.Entry<String, List<SnapshotEntry>> group : entriesByHash.entrySet()) {
+            // Text snapshots don't record sizes, so those are asked from the repository, once per blob.
+            long sizeBytes = group.getValue().get(0).sizeBytes;
+            if (sizeBytes < 0) sizeBytes = Math.max(0, blobStore.size(group.getKey()));
+            totalBytes += sizeBytes * group.getValue().size();
+        }
+        System.out.println("Number of files to restore: " + totalCount + " (" + entriesByHash.size() + " distinct contents), totaling " + Utils.formatSize(totalBytes));
+        ProgressIndicator progressIndicator = new ProgressIndicator(totalBytes, totalCount, "files from backup are restored");
+
+        ExecutorService pool = Executors.newFixedThreadPool(options.threads);
+        try {
+            List<CompletableFuture<Void>> tasks = new ArrayList<>(entriesByHash.size());
+            for (Map.Entry<String, List<SnapshotEntry>> group : entriesByHash.entrySet()) {
+                tasks.add(CompletableFuture.runAsync(() -> restoreGroup(group.getKey(), group.getValue(), progressIndicator), pool));
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            pool.shutdownNow();
+        }
+        progressIndicator.done();
+        System.out.println("Restored " + filesFromRepository.get() + " files from repository (" + Utils.formatSize(bytesFromRepository.get()) + "), "
+                + filesCopiedLocally.get() + " duplicates copied locally, " + filesSkipped.get() + " already identical files skipped.");
+        if (filesFailed.get() == 0) {
+            System.out.println("SUCCESS! All selected files were restored to " + restoreDir.getAbsolutePath());
+        } else {
+            System.out.println("WARNING! " + filesFailed.get() + " files could not be restored, see errors above.");
+        }
+    }
+
+    void restoreGroup(String hash, List<SnapshotEntry> entries, ProgressIndicator progressIndicator) {
+        // Once one path has the content, it is the source for the rest.
+        File localSource = null;
+        for (SnapshotEntry entry : entries) {
+            File finalCopy = restorePath(restoreDir, entry.path);
+            try {
+                if (finalCopy.exists()) {
+                    if (options.skipIdentical && isIdentical(finalCopy, hash, entry.sizeBytes, blobStore.hashAlgorithm)) {
+                        filesSkipped.incrementAndGet();
+                        localSource = finalCopy;
+                    } else {
+                        // As a precaution we never overwrite files in the restore location.
+                        filesFailed.incrementAndGet();
+                        System.out.println("ERROR! Not restoring " + entry.path + " because a different file already exists in " + finalCopy.getAbsolutePath());
+                    }
+                } else {
+                    // Copy as .tmp first, rename after successful copy (because an error during copy can lead to partially copied file, we want the .tmp to indicate that)
+                    File tmpCopy = tempFileOf(finalCopy);
+                    tmpCopy.getParentFile().mkdirs();
+                    // Left behind by an interrupted restore. It is only ever our own partial output.
+                    Files.deleteIfExists(tmpCopy.toPath());
+                    if (localSource != null) {
+                        Utils.copy(localSource, tmpCopy);
+                        filesCopiedLocally.incrementAndGet();
+                    } else {
+                        blobStore.copyTo(hash, tmpCopy);
+                        filesFromRepository.incrementAndGet();
+                        bytesFromRepository.addAndGet(tmpCopy.length());
+                    }
+                    Files.move(tmpCopy.toPath(), finalCopy.toPath());
+                    localSource = finalCopy;
+                }
+            } catch (Exception ex) {
+                filesFailed.incrementAndGet();
+                System.out.println("ERROR! Unable to restore " + entry.path + " because of error " + ex);
+            }
+            progressIndicator.tick(finalCopy.isFile() ? finalCopy.length() : 0);
+        }
+    }
+
+    /** A distinctive name, so that a stale temp file is very unlikely to be a restored file of the snapshot. */
+    static File tempFileOf(File finalCopy) {
+        return new File(finalCopy.getPath() + ".restoring.tmp");
+    }
+
+    static boolean isIdentical(File file, String hash, long sizeBytes, HashAlgorithm hashAlgorithm) throws IOException {
+        if (!file.isFile()) return false;
+        // Comparing sizes first avoids reading files which obviously differ.
+        if (sizeBytes >= 0 && file.length() != sizeBytes) return false;
+        return hashAlgorithm.hash(file).equalsIgnoreCase(hash);
+    }
+
+    /** Maps a path from a snapshot to a path under the restore directory. */
+    static File restorePath(File restoreDir, String originalFilepath) {
+        // Fix platform specific special characters
+        String fixedOriginalFilepath = originalFilepath
+                .replace(":", "")
+                .replace('\\', '/')
+                .replace('/', File.separatorChar);
+        return new File(restoreDir, fixedOriginalFilepath);
+    }
+}
@@ -0,0 +1,69 @@
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Which snapshots prune keeps. Each rule keeps the latest snapshot of every day, week, month or year within
+ * the last so many of them, counting the current one; e.g. keepDaily = 30 and keepMonthly = 24 keep one snapshot
+ * per day for a month and one per month for two years. keepLast keeps the latest snapshots regardless of age.
+ * The latest snapshot is always kept.
+ */
+class RetentionPolicy {
+    int keepLast = 0;
+    int keepDaily = 0;
+    int keepWeekly = 0;
+    int keepMonthly = 0;
+    int keepYearly = 0;
+
+    boolean isEmpty() {
+        return keepLast == 0 && keepDaily == 0 && keepWeekly == 0 && keepMonthly == 0 && keepYearly == 0;
+    }
+
+    /**
+     * Returns the timestamps to keep, each with the rules which keep it. Timestamps are snapshot timestamps
+     * (Utils.TIMESTAMP_PATTERN) in any order.
+     */
+    Map<String, List<String>> select(Collection<String> timestamps, LocalDateTime now) {
+        List<String> latestFirst = new ArrayList<>(timestamps);
+        latestFirst.sort(Collections.reverseOrder());
+        Map<String, List<String>> kept = new TreeMap<>();
+        if (latestFirst.isEmpty()) return kept;
+        keep(kept, latestFirst.get(0), "latest");
+        for (int i = 0; i < Math.min(keepLast, latestFirst.size()); i++) {
+            keep(kept, latestFirst.get(i), "last");
+        }
+        LocalDate today = now.toLocalDate();
+        keepLatestPer(kept, latestFirst, "daily", keepDaily, date -> ChronoUnit.DAYS.between(date, today));
+        LocalDate thisWeek = today.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        keepLatestPer(kept, latestFirst, "weekly", keepWeekly,
+                date -> ChronoUnit.WEEKS.between(date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)), thisWeek));
+        keepLatestPer(kept, latestFirst, "monthly", keepMonthly, date -> ChronoUnit.MONTHS.between(YearMonth.from(date), YearMonth.from(today)));
+        keepLatestPer(kept, latestFirst, "yearly", keepYearly, date -> (long) (today.getYear() - date.getYear()));
+        return kept;
+    }
+
+    /** Keeps the latest snapshot of each period which is fewer than count periods ago. */
+    static void keepLatestPer(Map<String, List<String>> kept, List<String> latestFirst, String rule, int count, Function<LocalDate, Long> periodsAgo) {
+        if (count == 0) return;
+        Set<Long> seen = new HashSet<>();
+        for (String timestamp : latestFirst) {
+            LocalDate date = LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern(Utils.TIMESTAMP_PATTERN)).toLocalDate();
+            long ago = periodsAgo.apply(date);
+            // Snapshots from the future (clock trouble) count as current.
+            if (ago < count && seen.add(Math.max(0, ago))) {
+                keep(kept, timestamp, rule);
+            }
+        }
+    }
+
+    static void keep(Map<String, List<String>> kept, String timestamp, String rule) {
+        List<String> rules = kept.computeIfAbsent(timestamp, t -> new ArrayList<>());
+        if (!rules.contains(rule)) rules.add(rule);
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers and counters for the stages of a backup run, shared by all workers. Stage times are busy time summed
+ * over threads, so with 4 hash workers a stage can be busy for 4 seconds per second of wall time; throughput per
+ * stage is per busy second, i.e. per thread. At the end of a run a JSON report is written into the repository's
+ * run-reports folder (one file per run) so that performance can be followed over time.
+ */
+class RunMetrics {
+
+    enum Stage { TRAVERSAL, HASHING, COPYING, RENAMING, SNAPSHOT_WRITING, SYNCING }
+
+    static final String REPORTS_DIR = "run-reports";
+
+    final long startNanos = System.nanoTime();
+    final Map<Stage, StageCounters> stages = new EnumMap<>(Stage.class);
+    final AtomicLong bytesRead = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong filesProcessed = new AtomicLong();
+    final AtomicLong bytesProcessed = new AtomicLong();
+    final AtomicLong filesStored = new AtomicLong(); // New content, each stored once.
+    final AtomicLong bytesStored = new AtomicLong();
+    final AtomicLong metadataCacheHits = new AtomicLong(); // Files which were not read at all.
+    final AtomicLong filesFailed = new AtomicLong();
+    CopyEngine copyEngine; // Set once the repository has been probed.
+
+    RunMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageCounters());
+        }
+    }
+
+    /** Adds one operation of the stage which started at startNanos and handled the given number of bytes. */
+    void record(Stage stage, long startNanos, long bytes) {
+        StageCounters counters = stages.get(stage);
+        counters.nanos.addAndGet(System.nanoTime() - startNanos);
+        counters.count.incrementAndGet();
+        counters.bytes.addAndGet(bytes);
+    }
+
+    void read(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    void written(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    void stored(long bytes) {
+        filesStored.incrementAndGet();
+        bytesStored.addAndGet(bytes);
+    }
+
+    void processed(long bytes, boolean failed) {
+        filesProcessed.incrementAndGet();
+        bytesProcessed.addAndGet(bytes);
+        if (failed) filesFailed.incrementAndGet();
+    }
+
+    long filesDeduplicated() {
+        return Math.max(0, filesProcessed.get() - filesFailed.get() - filesStored.get());
+    }
+
+    /** Share of processed files whose content was already in the repository. */
+    double dedupHitRatio() {
+        long succeeded = filesProcessed.get() - filesFailed.get();
+        return succeeded <= 0 ? 0 : filesDeduplicated() * 1.0 / succeeded;
+    }
+
+    /** One line for the progress display. */
+    String summaryLine() {
+        return "dedup " + Utils.nicePercent(dedupHitRatio()) + ", read " + Utils.formatSize(bytesRead.get()) + ", written " + Utils.formatSize(bytesWritten.get());
+    }
+
+    void printReport() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println("Run took " + String.format(Locale.ROOT, "%.1f", seconds) + " s. " + filesProcessed.get() + " files (" + Utils.formatSize(bytesProcessed.get()) + "), "
+                + filesStored.get() + " stored as new content (" + Utils.formatSize(bytesStored.get()) + "), " + filesDeduplicated() + " already in repository, "
+                + metadataCacheHits.get() + " not read thanks to metadata cache.");
+        System.out.println("Read " + Utils.formatSize(bytesRead.get()) + ", written " + Utils.formatSize(bytesWritten.get()) + ", dedup hit ratio " + Utils.nicePercent(dedupHitRatio()) + ".");
+        for (Stage stage : Stage.values()) {
+            StageCounters counters = stages.get(stage);
+            if (counters.count.get() == 0) continue;
+            System.out.println("    " + stage.name().toLowerCase() + ": " + counters.count.get() + " operations, "
+                    + String.format(Locale.ROOT, "%.1f", counters.nanos.get() / 1e9) + " s busy, " + Utils.formatSize((long) counters.bytesPerBusySecond()) + "/s per thread");
+        }
+    }
+
+    String toJson(String timestamp, BackupOptions options) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": \"").append(timestamp).append("\",\n");
+        json.append("  \"durationMillis\": ").append((System.nanoTime() - startNanos) / 1000000).append(",\n");
+        json.append("  \"options\": {")
+                .append("\"hashThreads\": ").append(options.hashThreads)
+                .append(", \"copyThreads\": ").append(options.copyThreads)
+                .append(", \"singlePass\": ").append(options.singlePass)
+                .append(", \"streaming\": ").append(options.streaming)
+                .append(", \"deviceScheduling\": ").append(options.deviceScheduling)
+                .append(", \"chunking\": ").append(options.chunking)
+                .append(", \"compression\": ").append(options.compression)
+                .append(", \"packing\": ").append(options.packing)
+                .append(", \"binarySnapshots\": ").append(options.binarySnapshots)
+                .append(", \"durability\": \"").append(options.durability.name().toLowerCase()).append('"')
+                .append("},\n");
+        json.append("  \"filesProcessed\": ").append(filesProcessed.get()).append(",\n");
+        json.append("  \"bytesProcessed\": ").append(bytesProcessed.get()).append(",\n");
+        json.append("  \"filesStored\": ").append(filesStored.get()).append(",\n");
+        json.append("  \"bytesStored\": ").append(bytesStored.get()).append(",\n");
+        json.append("  \"filesDeduplicated\": ").append(filesDeduplicated()).append(",\n");
+        json.append("  \"metadataCacheHits\": ").append(metadataCacheHits.get()).append(",\n");
+        json.append("  \"filesFailed\": ").append(filesFailed.get()).append(",\n");
+        json.append("  \"dedupHitRatio\": ").append(String.format(Locale.ROOT, "%.6f", dedupHitRatio())).append(",\n");
+        json.append("  \"bytesRead\": ").append(bytesRead.get()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten.get()).append(",\n");
+        if (copyEngine != null) {
+            json.append("  \"copyStrategy\": \"").append(copyEngine.describe()).append("\",\n");
+            json.append("  \"filesCopied\": {");
+            for (CopyEngine.Strategy strategy : CopyEngine.Strategy.values()) {
+                json.append(strategy.ordinal() > 0 ? ", " : "").append('"').append(strategy.name().toLowerCase()).append("\": ")
+                        .append(copyEngine.filesCopied.get(strategy).get());
+            }
+            json.append("},\n");
+        }
+        json.append("  \"stages\": {\n");
+        Stage[] all = Stage.values();
+        for (int i = 0; i < all.length; i++) {
+            StageCounters counters = stages.get(all[i]);
+            json.append("    \"").append(all[i].name().toLowerCase()).append("\": {")
+                    .append("\"count\": ").append(counters.count.get())
+                    .append(", \"busyNanos\": ").append(counters.nanos.get())
+                    .append(", \"bytes\": ").append(counters.bytes.get())
+                    .append(", \"bytesPerBusySecond\": ").append((long) counters.bytesPerBusySecond())
+                    .append("}").append(i < all.length - 1 ? "," : "").append("\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /** Writes the JSON report into the repository and returns the report file. */
+    File writeReport(String repositoryPath, String timestamp, BackupOptions options) throws IOException {
+        File reportsDir = new File(repositoryPath, REPORTS_DIR);
+        reportsDir.mkdirs();
+        File report = new File(reportsDir, "run-" + timestamp + ".json");
+        File tmp = new File(report.getAbsolutePath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(toJson(timestamp, options));
+        }
+        Files.move(tmp.toPath(), report.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return report;
+    }
+
+    static class StageCounters {
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        double bytesPerBusySecond() {
+            long busyNanos = nanos.get();
+            return busyNanos <= 0 ? 0 : bytes.get() * 1e9 / busyNanos;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The complete snapshots of a repository with their statistics, kept in snapshot-catalog.txt next to
+ * filepath-snapshots, so that finding the latest snapshot or a snapshot by date doesn't list the snapshots folder
+ * and listing snapshots doesn't read them. Each line is tab-separated:
+ *   timestamp, file name, entry count, total bytes, unique bytes (each distinct content counted once), SHA-256
+ * Sizes are -1 for text snapshots, which don't record them. Each backup adds its snapshot once it is complete,
+ * so interrupted backups never show up. Repositories from before the catalog get one built on first use, and
+ * rebuild recreates it from the snapshot files if it gets out of sync.
+ */
+class SnapshotCatalog {
+
+    static final String FILE_NAME = "snapshot-catalog.txt";
+    static final String HEADER = "# timestamp\tfile\tentries\ttotal-bytes\tunique-bytes\tsha256";
+
+    final File repositoryDir;
+    // By timestamp, so the latest snapshot is the last one.
+    final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    SnapshotCatalog(File repositoryDir) {
+        this.repositoryDir = repositoryDir;
+    }
+
+    static File fileOf(File repositoryDir) {
+        return new File(repositoryDir, FILE_NAME);
+    }
+
+    static File snapshotsDir(File repositoryDir) {
+        return new File(repositoryDir, "filepath-snapshots");
+    }
+
+    /** Loads the catalog of the repository, building it first if the repository doesn't have one yet. */
+    static SnapshotCatalog load(File repositoryDir) throws IOException {
+        File file = fileOf(repositoryDir);
+        if (!file.exists()) {
+            SnapshotCatalog catalog = rebuild(repositoryDir);
+            try {
+                catalog.save(Durability.NONE);
+            } catch (IOException ex) {
+                // E.g. a repository on read-only media, which can still be restored from.
+                System.out.println("Warning! Unable to save snapshot catalog: " + ex.getMessage());
+            }
+            return catalog;
+        }
+        SnapshotCatalog catalog = new SnapshotCatalog(repositoryDir);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\t");
+                try {
+                    catalog.add(new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[5]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    throw new IOException("Malformed line in snapshot catalog " + file.getAbsolutePath() + ", repair it with 'repair-catalog': " + line);
+                }
+            }
+        }
+        return catalog;
+    }
+
+    /** Builds the catalog from the snapshot files, leaving out the partial snapshot of an interrupted backup. */
+    static SnapshotCatalog rebuild(File repositoryDir) throws IOException {
+        System.out.println("Building snapshot catalog of " + repositoryDir.getAbsolutePath() + " from its snapshot files...");
+        SnapshotCatalog catalog = new SnapshotCatalog(repositoryDir);
+        BackupJournal journal = Core.loadJournal(repositoryDir.getPath());
+        String partial = journal == null ? null : journal.timestamp;
+        File[] files = snapshotsDir(repositoryDir).listFiles((dir, name) -> name.startsWith("snapshot-") && !name.endsWith(".tmp"));
+        if (files == null) return catalog;
+        for (File file : files) {
+            String timestamp = Core.snapshotTimestamp(file);
+            if (timestamp.equals(partial)) continue;
+            Entry known = catalog.entries.get(timestamp);
+            // A converted snapshot sits next to its text original. The binary one wins, it has the sizes.
+            if (known != null && (known.fileName.endsWith(SnapshotWriter.extension(true)) || file.getName().endsWith(SnapshotWriter.extension(false)))) continue;
+            try {
+                catalog.add(describe(file));
+            } catch (IOException | UncheckedIOException ex) {
+                System.out.println("Warning! Leaving unreadable snapshot " + file.getAbsolutePath() + " out of the catalog: " + ex.getMessage());
+            }
+        }
+        return catalog;
+    }
+
+    /** Reads a complete snapshot file for its catalog entry. */
+    static Entry describe(File snapshotFile) throws IOException {
+        long count = 0;
+        long totalBytes = 0;
+        long uniqueBytes = 0;
+        DigestMap seen = DigestMap.newSet();
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            while (reader.hasNext()) {
+                SnapshotEntry entry = reader.next();
+                count++;
+                if (entry.sizeBytes < 0 || totalBytes < 0) {
+                    totalBytes = -1;
+                    uniqueBytes = -1;
+                    continue;
+                }
+                totalBytes += entry.sizeBytes;
+                if (seen.add(entry.hash)) uniqueBytes += entry.sizeBytes;
+            }
+        }
+        try {
+            return new Entry(Core.snapshotTimestamp(snapshotFile), snapshotFile.getName(), count, totalBytes, uniqueBytes, Utils.sha256(snapshotFile));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Adds the entry, replacing an earlier entry for the same timestamp. */
+    void add(Entry entry) {
+        entries.put(entry.timestamp, entry);
+    }
+
+    /** Latest snapshot, or null if there are none. */
+    Entry latest() {
+        return entries.isEmpty() ? null : entries.lastEntry().getValue();
+    }
+
+    /** Latest snapshot whose timestamp starts with the given (full or partial) timestamp, or null. */
+    Entry find(String timestamp) {
+        for (Entry entry : entries.descendingMap().values()) {
+            if (entry.timestamp.startsWith(timestamp)) return entry;
+        }
+        return null;
+    }
+
+    List<Entry> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /** The entry's snapshot file, which must exist. */
+    File snapshotFile(Entry entry) {
+        File file = new File(snapshotsDir(repositoryDir), entry.fileName);
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("Snapshot " + file.getAbsolutePath() + " is in the snapshot catalog but missing, "
+                    + "repair the catalog with 'repair-catalog " + repositoryDir.getPath() + "'");
+        }
+        return file.getAbsoluteFile();
+    }
+
+    /** Atomically replaces the catalog file. */
+    void save(Durability durability) throws IOException {
+        File file = fileOf(repositoryDir);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n");
+            for (Entry entry : entries.values()) {
+                writer.write(entry.timestamp + "\t" + entry.fileName + "\t" + entry.entryCount + "\t" + entry.totalBytes
+                        + "\t" + entry.uniqueBytes + "\t" + entry.sha256 + "\n");
+            }
+        }
+        durability.syncFile(tmp);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        durability.created(file, repositoryDir);
+        durability.syncDirectories();
+    }
+
+    static class Entry {
+        final String timestamp;
+        final String fileName;
+        final long entryCount;
+        final long totalBytes;
+        final long uniqueBytes;
+        final String sha256;
+
+        Entry(String timestamp, String fileName, long entryCount, long totalBytes, long uniqueBytes, String sha256) {
+            this.timestamp = timestamp;
+            this.fileName = fileName;
+            this.entryCount = entryCount;
+            this.totalBytes = totalBytes;
+            this.uniqueBytes = uniqueBytes;
+            this.sha256 = sha256;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares two snapshots by streaming both in path order (a merge-join), so unchanged entries cost no memory.
+ * Every path is classified as added, removed, modified (same path, new hash), moved (a removed path's hash shows
+ * up under an added path) or unchanged. Memory use grows only with the number of removed and moved entries:
+ * removed hashes are kept in a DigestMap to recognize moves, and the paths of moves until they are reported.
+ *
+ * Results are written to a tab-separated output file, one line per changed path:
+ * status, path, old path (moves only), old hash, new hash, old size, new size. Unknown sizes are -1.
+ */
+class SnapshotDiff {
+
+    enum Kind { ADDED, REMOVED, MODIFIED, MOVED, UNCHANGED }
+
+    static final int MAX_PRINTED_LINES = 1000;
+
+    final BlobStore blobStore; // For sizes missing from text snapshots. May be null.
+    final Map<Kind, long[]> totals = new EnumMap<>(Kind.class); // Kind -> {count, bytes}
+    long printedLines;
+
+    SnapshotDiff(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        for (Kind kind : Kind.values()) {
+            totals.put(kind, new long[2]);
+        }
+    }
+
+    void diff(File olderSnapshot, File newerSnapshot, File output) throws IOException {
+        File olderSorted = sortedVersion(olderSnapshot, new File(output.getAbsolutePath() + ".older"));
+        File newerSorted = sortedVersion(newerSnapshot, new File(output.getAbsolutePath() + ".newer"));
+        File removedFile = new File(output.getAbsolutePath() + ".removed.tmp");
+        File addedFile = new File(output.getAbsolutePath() + ".added.tmp");
+        // Hash of each removed entry -> its ordinal in removedFile. If several removed entries share a hash,
+        // the first one is the candidate for a move.
+        DigestMap removedHashes = DigestMap.newMap();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+            out.write("#status\tpath\told path\told hash\tnew hash\told size\tnew size\n");
+
+            // Pass 1: merge-join. Modified and unchanged paths are final; added and removed ones are set aside.
+            long removedCount = 0;
+            try (SnapshotReader older = SnapshotReader.open(olderSorted);
+                 SnapshotReader newer = SnapshotReader.open(newerSorted);
+                 SnapshotWriter removed = SnapshotWriter.create(removedFile, true);
+                 SnapshotWriter added = SnapshotWriter.create(addedFile, true)) {
+                SnapshotEntry a = older.hasNext() ? older.next() : null;
+                SnapshotEntry b = newer.hasNext() ? newer.next() : null;
+                while (a != null || b != null) {
+                    int order = a == null ? 1 : b == null ? -1 : a.path.compareTo(b.path);
+                    if (order == 0) {
+                        if (a.hash.equalsIgnoreCase(b.hash)) {
+                            // Sizes are not looked up from the repository here, there may be millions of these.
+                            count(Kind.UNCHANGED, b.sizeBytes >= 0 ? b.sizeBytes : a.sizeBytes);
+                        } else {
+                            report(out, Kind.MODIFIED, b.path, "", a, b);
+                        }
+                        a = older.hasNext() ? older.next() : null;
+                        b = newer.hasNext() ? newer.next() : null;
+                    } else if (order < 0) {
+                        removed.write(a);
+                        if (!removedHashes.contains(a.hash)) removedHashes.put(a.hash, removedCount);
+                        removedCount++;
+                        a = older.hasNext() ? older.next() : null;
+                    } else {
+                        added.write(b);
+                        b = newer.hasNext() ? newer.next() : null;
+                    }
+                }
+                removed.finish();
+                added.finish();
+            }
+
+            // Pass 2: an added path whose hash was removed elsewhere is the other half of a move.
+            Map<Long, SnapshotEntry> movedTo = new HashMap<>();
+            try (SnapshotReader added = SnapshotReader.open(addedFile)) {
+                while (added.hasNext()) {
+                    SnapshotEntry b = added.next();
+                    long removedOrdinal = removedHashes.get(b.hash, -1);
+                    if (removedOrdinal >= 0) {
+                        // Each removed entry pairs with at most one added entry; further copies count as added.
+                        removedHashes.remove(b.hash);
+                        movedTo.put(removedOrdinal, b);
+                    } else {
+                        report(out, Kind.ADDED, b.path, "", null, b);
+                    }
+                }
+            }
+
+            // Pass 3: removed paths, except those which turned out to be moves.
+            try (SnapshotReader removed = SnapshotReader.open(removedFile)) {
+                long ordinal = 0;
+                while (removed.hasNext()) {
+                    SnapshotEntry a = removed.next();
+                    SnapshotEntry b = movedTo.remove(ordinal++);
+                    if (b != null) {
+                        report(out, Kind.MOVED, b.path, a.path, a, b);
+                    } else {
+                        report(out, Kind.REMOVED, a.path, "", a, null);
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(removedFile.toPath());
+            Files.deleteIfExists(addedFile.toPath());
+            if (olderSorted != olderSnapshot) Files.deleteIfExists(olderSorted.toPath());
+            if (newerSorted != newerSnapshot) Files.deleteIfExists(newerSorted.toPath());
+        }
+        printSummary(output);
+    }
+
+    void report(Writer out, Kind kind, String path, String oldPath, SnapshotEntry older, SnapshotEntry newer) throws IOException {
+        long oldSize = older == null ? -1 : sizeOf(older);
+        long newSize = newer == null ? -1 : sizeOf(newer);
+        out.write(kind.name().toLowerCase() + "\t" + path + "\t" + oldPath + "\t"
+                + (older == null ? "" : older.hash) + "\t" + (newer == null ? "" : newer.hash) + "\t"
+                + oldSize + "\t" + newSize + "\n");
+        count(kind, newer != null ? newSize : oldSize);
+        if (printedLines++ < MAX_PRINTED_LINES) {
+            System.out.println(kind.name().toLowerCase() + ": " + (oldPath.isEmpty() ? path : oldPath + " -> " + path));
+        }
+    }
+
+    long sizeOf(SnapshotEntry entry) throws IOException {
+        if (entry.sizeBytes >= 0 || blobStore == null) return entry.sizeBytes;
+        return blobStore.size(entry.hash);
+    }
+
+    void count(Kind kind, long sizeBytes) {
+        long[] total = totals.get(kind);
+        total[0]++;
+        if (sizeBytes > 0) total[1] += sizeBytes;
+    }
+
+    void printSummary(File output) {
+        if (printedLines > MAX_PRINTED_LINES) {
+            System.out.println("... and " + (printedLines - MAX_PRINTED_LINES) + " more lines, see the output file.");
+        }
+        for (Kind kind : Kind.values()) {
+            long[] total = totals.get(kind);
+            System.out.println(kind.name().toLowerCase() + ": " + total[0] + " files, " + Utils.formatSize(total[1]));
+        }
+        System.out.println("Differences were written to " + output.getAbsolutePath());
+    }
+
+    /**
+     * Returns the snapshot itself if its paths are strictly increasing, as createBackup writes them. Otherwise
+     * (e.g. snapshots from old versions) writes a sorted binary copy with an external sort and returns that.
+     */
+    static File sortedVersion(File snapshot, File tmpPrefix) throws IOException {
+        boolean sorted = true;
+        try (SnapshotReader reader = SnapshotReader.open(snapshot)) {
+            String previous = null;
+            while (reader.hasNext() && sorted) {
+                String path = reader.next().path;
+                sorted = previous == null || previous.compareTo(path) < 0;
+                previous = path;
+            }
+        }
+        if (sorted) return snapshot;
+        System.out.println("Snapshot " + snapshot.getAbsolutePath() + " is not sorted by path, sorting a temporary copy...");
+        File sortedCopy = new File(tmpPrefix.getAbsolutePath() + ".sorted.tmp");
+        try (SnapshotReader reader = SnapshotReader.open(snapshot);
+             SnapshotWriter writer = new SortingSnapshotWriter(SnapshotWriter.create(sortedCopy, true), tmpPrefix, SortingSnapshotWriter.DEFAULT_BATCH_SIZE)) {
+            while (reader.hasNext()) {
+                writer.write(reader.next());
+            }
+            writer.finish();
+        }
+        return sortedCopy;
+    }
+}
@@ -0,0 +1,24 @@
+/** One path/hash pair of a snapshot. Size and last-modified time are -1 when the snapshot doesn't record them. */
+class SnapshotEntry implements Comparable<SnapshotEntry> {
+    final String path;
+    final String hash;
+    final long sizeBytes;
+    final long lastModifiedMillis;
+
+    SnapshotEntry(String path, String hash, long sizeBytes, long lastModifiedMillis) {
+        this.path = path;
+        this.hash = hash;
+        this.sizeBytes = sizeBytes;
+        this.lastModifiedMillis = lastModifiedMillis;
+    }
+
+    SnapshotEntry(String path, String hash) {
+        this(path, hash, -1, -1);
+    }
+
+    // Snapshots are ordered by path the same way BackupTargetFile is.
+    @Override
+    public int compareTo(SnapshotEntry o) {
+        return path.compareTo(o.path);
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Streams the entries of a snapshot file one at a time, so that even huge snapshots can be processed
+ * without loading them into memory. Both the legacy text format and the binary format are supported;
+ * the format is detected from the first bytes of the file.
+ */
+abstract class SnapshotReader implements Iterator<SnapshotEntry>, Closeable {
+
+    private SnapshotEntry next;
+    private boolean finished;
+
+    static SnapshotReader open(File snapshotFile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile), 1 << 16);
+        try {
+            in.mark(SnapshotWriter.BINARY_MAGIC.length);
+            byte[] head = in.readNBytes(SnapshotWriter.BINARY_MAGIC.length);
+            if (Arrays.equals(head, SnapshotWriter.BINARY_MAGIC)) {
+                return new Binary(in, snapshotFile);
+            }
+            in.reset();
+            return new Text(in);
+        } catch (IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    static boolean isBinary(File snapshotFile) throws IOException {
+        try (InputStream in = new FileInputStream(snapshotFile)) {
+            return Arrays.equals(in.readNBytes(SnapshotWriter.BINARY_MAGIC.length), SnapshotWriter.BINARY_MAGIC);
+        }
+    }
+
+    /** Returns the next entry, or null at the end of the snapshot. */
+    abstract SnapshotEntry readNext() throws IOException;
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readNext();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            finished = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public SnapshotEntry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        SnapshotEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    /** Legacy format: UTF-8 lines of "path /// HASH". */
+    static class Text extends SnapshotReader {
+        final BufferedReader br;
+
+        Text(InputStream in) {
+            this.br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        @Override
+        SnapshotEntry readNext() throws IOException {
+            while (true) {
+                String line = br.readLine();
+                if (line == null) return null;
+                line = line.replace("\uFEFF", ""); // Remove UTF-8 BOM
+                // Hashes never contain the separator but paths might, so we split at the last separator.
+                int separator = line.lastIndexOf(Utils.SEPARATOR_BETWEEN_PATH_AND_HASH);
+                if (separator <= 0) {
+                    System.out.println("Warning! Skipping malformed line in snapshot: " + line);
+                    continue;
+                }
+                String filePath = line.substring(0, separator);
+                String hash = line.substring(separator + Utils.SEPARATOR_BETWEEN_PATH_AND_HASH.length());
+                return new SnapshotEntry(filePath, hash);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            br.close();
+        }
+    }
+
+    /** Binary format, see SnapshotWriter.Binary for the layout. */
+    static class Binary extends SnapshotReader {
+        final CheckedInputStream checked;
+        final DataInputStream in;
+        final File file;
+        final int hashLength;
+        byte[] pathBytes = new byte[256];
+        long count;
+
+        Binary(InputStream raw, File file) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(SnapshotWriter.BINARY_MAGIC);
+            this.checked = new CheckedInputStream(raw, crc);
+            this.in = new DataInputStream(checked);
+            this.file = file;
+            int version = in.readUnsignedByte();
+            if (version != SnapshotWriter.BINARY_VERSION) {
+                throw new IOException("Unsupported snapshot format version " + version + " in " + file.getAbsolutePath());
+            }
+            this.hashLength = in.readUnsignedByte();
+        }
+
+        @Override
+        SnapshotEntry readNext() throws IOException {
+            try {
+                int shared = (int) SnapshotWriter.readVarLong(in);
+                int suffix = (int) SnapshotWriter.readVarLong(in);
+                if (shared == 0 && suffix == 0) {
+                    verifyFooter();
+                    return null;
+                }
+                if (shared + suffix > pathBytes.length) {
+                    pathBytes = Arrays.copyOf(pathBytes, Math.max(2 * pathBytes.length, shared + suffix));
+                }
+                in.readFully(pathBytes, shared, suffix);
+                String path = new String(pathBytes, 0, shared + suffix, StandardCharsets.UTF_8);
+                byte[] hash = new byte[hashLength];
+                in.readFully(hash);
+                long sizeBytes = SnapshotWriter.readZigZag(in);
+                long lastModifiedMillis = SnapshotWriter.readZigZag(in);
+                count++;
+                return new SnapshotEntry(path, Utils.bytesToHex(hash), sizeBytes, lastModifiedMillis);
+            } catch (EOFException ex) {
+                throw new IOException("Snapshot " + file.getAbsolutePath() + " is truncated after " + count + " entries.", ex);
+            }
+        }
+
+        void verifyFooter() throws IOException {
+            long expectedCrc = checked.getChecksum().getValue();
+            long recordedCount = in.readLong();
+            long recordedCrc = in.readInt() & 0xFFFFFFFFL;
+            if (recordedCount != count || recordedCrc != (expectedCrc & 0xFFFFFFFFL)) {
+                throw new IOException("Snapshot " + file.getAbsolutePath() + " is corrupted (checksum or entry count does not match).");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes snapshot entries either in the legacy text format or in the compact binary format. Once all entries are
+ * written, finish completes the snapshot. Closing a writer without finishing it, for example because the backup
+ * failed, leaves a snapshot which reads as incomplete.
+ */
+abstract class SnapshotWriter implements Closeable, Flushable {
+
+    static final byte[] BINARY_MAGIC = "SBPSNAP\n".getBytes(StandardCharsets.US_ASCII);
+    static final int BINARY_VERSION = 1;
+
+    // The file being written, for sync. Null for writers which don't write to a file of their own.
+    FileOutputStream file;
+
+    static SnapshotWriter create(File snapshotFile, boolean binary) throws IOException {
+        FileOutputStream file = new FileOutputStream(snapshotFile);
+        SnapshotWriter writer = binary ? new Binary(file) : new Text(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+        writer.file = file;
+        return writer;
+    }
+
+    /** File extension for new snapshot files of the given format. */
+    static String extension(boolean binary) {
+        return binary ? ".bin" : ".txt";
+    }
+
+    abstract void write(SnapshotEntry entry) throws IOException;
+
+    /** Completes the snapshot after the last entry. Nothing can be written afterwards. */
+    void finish() throws IOException {
+        flush();
+    }
+
+    /** Flushes the entries written so far and forces them to disk. */
+    void sync() throws IOException {
+        flush();
+        if (file != null) file.getFD().sync();
+    }
+
+    /** Legacy format: UTF-8 lines of "path /// HASH". Size and last-modified time are not recorded. */
+    static class Text extends SnapshotWriter {
+        final Writer writer;
+
+        Text(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        void write(SnapshotEntry entry) throws IOException {
+            writer.write(entry.path + Utils.SEPARATOR_BETWEEN_PATH_AND_HASH + entry.hash + "\n");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Binary format, version 1:
+     *   magic "SBPSNAP\n", version byte, hash length byte
+     *   for each entry, sorted by path:
+     *     varint number of leading UTF-8 path bytes shared with the previous path, varint number of remaining bytes,
+     *     the remaining path bytes, raw hash bytes, zigzag varint size, zigzag varint last-modified millis
+     *   terminator (two zero varints, which no entry can produce because paths are never empty)
+     *   footer: 8-byte entry count, 4-byte CRC32 of everything before the footer
+     * A snapshot without a valid footer was not completely written.
+     */
+    static class Binary extends SnapshotWriter {
+        final CheckedOutputStream checked;
+        final DataOutputStream out;
+        byte[] previousPath = new byte[0];
+        String previousPathString;
+        int hashLength = -1;
+        long count;
+
+        Binary(OutputStream raw) {
+            this.checked = new CheckedOutputStream(new BufferedOutputStream(raw, 1 << 16), new CRC32());
+            this.out = new DataOutputStream(checked);
+        }
+
+        @Override
+        void write(SnapshotEntry entry) throws IOException {
+            if (previousPathString != null && previousPathString.compareTo(entry.path) >= 0) {
+                throw new IllegalStateException("Binary snapshot entries must be written in sorted order, but "
+                        + entry.path + " came after " + previousPathString);
+            }
+            byte[] hash = Utils.hexToBytes(entry.hash);
+            if (hashLength < 0) {
+                writeHeader(hash.length);
+            } else if (hash.length != hashLength) {
+                throw new IllegalArgumentException("All hashes in a snapshot must have the same length: " + entry.hash);
+            }
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            int shared = Arrays.mismatch(previousPath, path);
+            if (shared < 0) shared = path.length;
+            shared = Math.min(shared, Math.min(previousPath.length, path.length));
+            writeVarLong(out, shared);
+            writeVarLong(out, path.length - shared);
+            out.write(path, shared, path.length - shared);
+            out.write(hash);
+            writeZigZag(out, entry.sizeBytes);
+            writeZigZag(out, entry.lastModifiedMillis);
+            previousPath = path;
+            previousPathString = entry.path;
+            count++;
+        }
+
+        void writeHeader(int hashLength) throws IOException {
+            this.hashLength = hashLength;
+            out.write(BINARY_MAGIC);
+            out.writeByte(BINARY_VERSION);
+            out.writeByte(hashLength);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (hashLength < 0) {
+                // Empty snapshot. The hash length doesn't matter, but SHA-256 is the default.
+                writeHeader(32);
+            }
+            writeVarLong(out, 0);
+            writeVarLong(out, 0);
+            long crc = checked.getChecksum().getValue();
+            out.writeLong(count);
+            out.writeInt((int) crc);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Without finish, the footer is missing, so a partly written snapshot is never taken for a complete one.
+            out.close();
+        }
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+
+    static void writeZigZag(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readZigZag(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
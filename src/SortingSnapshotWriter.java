@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Accepts snapshot entries in any order and writes them sorted by path to the target writer when finished.
+ * Entries are sorted in memory in batches; full batches are spilled to temporary binary snapshot files,
+ * which are merged at the end. Memory use is therefore bounded by the batch size, not by the snapshot size.
+ * If the same path is written twice (overlapping checklist roots), only the first entry is kept.
+ */
+class SortingSnapshotWriter extends SnapshotWriter {
+
+    static final int DEFAULT_BATCH_SIZE = 200000;
+
+    final SnapshotWriter target;
+    final File spillPrefix;
+    final int batchSize;
+    final List<SnapshotEntry> batch = new ArrayList<>();
+    final List<File> runs = new ArrayList<>();
+
+    SortingSnapshotWriter(SnapshotWriter target, File spillPrefix, int batchSize) {
+        this.target = target;
+        this.spillPrefix = spillPrefix;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    void write(SnapshotEntry entry) throws IOException {
+        batch.add(entry);
+        if (batch.size() >= batchSize) {
+            spill();
+        }
+    }
+
+    void spill() throws IOException {
+        Collections.sort(batch);
+        File run = new File(spillPrefix.getAbsolutePath() + ".run-" + runs.size() + ".tmp");
+        runs.add(run);
+        try (SnapshotWriter writer = SnapshotWriter.create(run, true)) {
+            writeUnique(batch, writer);
+            writer.finish();
+        }
+        batch.clear();
+    }
+
+    static void writeUnique(List<SnapshotEntry> sorted, SnapshotWriter writer) throws IOException {
+        SnapshotEntry previous = null;
+        for (SnapshotEntry entry : sorted) {
+            if (previous == null || !previous.path.equals(entry.path)) {
+                writer.write(entry);
+            }
+            previous = entry;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing can be written to the target before all entries are known.
+    }
+
+    @Override
+    void finish() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(batch);
+            writeUnique(batch, target);
+        } else {
+            if (!batch.isEmpty()) spill();
+            merge();
+        }
+        target.finish();
+    }
+
+    /** Without finish, e.g. when the backup failed, nothing is written to the target. */
+    @Override
+    public void close() throws IOException {
+        try {
+            target.close();
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    /** K-way merge of the sorted runs into the target. */
+    void merge() throws IOException {
+        PriorityQueue<Head> heads = new PriorityQueue<>();
+        List<SnapshotReader> readers = new ArrayList<>();
+        try {
+            for (File run : runs) {
+                SnapshotReader reader = SnapshotReader.open(run);
+                readers.add(reader);
+                if (reader.hasNext()) heads.add(new Head(reader.next(), reader, readers.size()));
+            }
+            String previousPath = null;
+            while (!heads.isEmpty()) {
+                Head head = heads.poll();
+                if (!head.entry.path.equals(previousPath)) {
+                    target.write(head.entry);
+                    previousPath = head.entry.path;
+                }
+                if (head.reader.hasNext()) heads.add(new Head(head.reader.next(), head.reader, head.order));
+            }
+        } finally {
+            for (SnapshotReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    static class Head implements Comparable<Head> {
+        final SnapshotEntry entry;
+        final SnapshotReader reader;
+        final int order; // Earlier runs win ties, so the first written entry for a path is kept.
+
+        Head(SnapshotEntry entry, SnapshotReader reader, int order) {
+            this.entry = entry;
+            this.reader = reader;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Head o) {
+            int c = entry.compareTo(o.entry);
+            return c != 0 ? c : Integer.compare(order, o.order);
+        }
+    }
+}
@@ -1,7 +1,30 @@
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class TestRunner {
 
@@ -9,7 +32,7 @@ public class TestRunner {
     File testFile2 = new File("temp" + File.separator + "test2.txt");
     File testFile3 = new File("temp" + File.separator + "test3.txt");
 
-    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException, InterruptedException {
         System.out.println("Running tests...");
         TestRunner testRunner = new TestRunner();
         testRunner.runTests();
@@ -19,11 +42,37 @@ public class TestRunner {
         if (!bool) throw new AssertionError(errorMessage);
     }
 
-    public void runTests() throws IOException, NoSuchAlgorithmException {
+    public void runTests() throws IOException, NoSuchAlgorithmException, InterruptedException {
         createTestFilesIFNeeded();
         testSha256();
         testCopyWorksInExpectedCase();
         testCopyFailsWhenTargetFileExists();
+        testCopyAndSha256();
+        testPipelineStoresIdenticalContentOnce();
+        testBinarySnapshotRoundTrip();
+        testConvertSnapshotToBinary();
+        testMetadataCache();
+        testDigestMap();
+        testChunkerResynchronizesAfterInsert();
+        testBlobCompression();
+        testPackRecovery();
+        testBlobIndexAndLayoutMigration();
+        testRestoreChunkedFile();
+        testRestoreAfterInterruption();
+        testRestorePathFilter();
+        testSnapshotDiff();
+        testDuplicateFinder();
+        testRunMetrics();
+        testBackupJournalAndTempRecovery();
+        testHashAlgorithms();
+        testDurability();
+        testCopyEngine();
+        testIoScheduler();
+        testFileTreeScanner();
+        testDiscoveryStreamAndSortingWriter();
+        testIncrementalBackup();
+        testSnapshotCatalog();
+        testPrune();
         System.out.println("************* A-OK! All tests completed successfully. *********************");
     }
 
@@ -74,7 +123,893 @@ public class TestRunner {
         throw new IOException("Error! Copy should fail when target file exists, but it did not fail during a test.");
     }
 
-    // TODO add tests to verify that checklist path files are crawled successfully and errors are thrown from invalid paths
+    private void testCopyAndSha256() throws IOException, NoSuchAlgorithmException {
+        File copyOfTestFile = new File("temp" + File.separator + "test-single-pass-" + Utils.timestamp() + ".txt");
+        System.out.println("    Verifying that single-pass copy returns the hash of the copied content");
+        String hash = Utils.copyAndSha256(testFile2, copyOfTestFile);
+        verify(hash.equals(Utils.sha256(testFile2)), "Single-pass copy returned a different hash than sha256.");
+        verify(hash.equals(Utils.sha256(copyOfTestFile)), "Single-pass copy does not have same content as original!");
+        try {
+            Utils.copyAndSha256(testFile2, copyOfTestFile);
+        } catch (IOException ex) {
+            return;
+        }
+        throw new IOException("Error! Single-pass copy should fail when target file exists, but it did not fail during a test.");
+    }
+
+    private void testPipelineStoresIdenticalContentOnce() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing backup pipeline with identical files");
+        File dir = new File("temp" + File.separator + "pipeline-" + System.nanoTime());
+        File data = new File(dir, "data");
+        data.mkdirs();
+        byte[] content = new byte[200000];
+        new Random(1).nextBytes(content);
+        List<BackupTargetFile> targets = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            File file = new File(data, "same-" + i + ".bin");
+            Files.write(file.toPath(), content);
+            targets.add(new BackupTargetFile(file.toPath(), content.length));
+        }
+        String hash = Utils.sha256(new ByteArrayInputStream(content));
+        for (boolean singlePass : new boolean[] { false, true }) {
+            File repo = new File(dir, "repo-" + singlePass);
+            File repoFilesDir = new File(repo, "files");
+            repoFilesDir.mkdirs();
+            BackupOptions options = new BackupOptions();
+            options.singlePass = singlePass;
+            options.hashThreads = 8;
+            options.copyThreads = 4;
+            BlobStore blobStore = new BlobStore(repoFilesDir);
+            blobStore.openIndex();
+            RunMetrics metrics = new RunMetrics();
+            List<SnapshotEntry> entries = new ArrayList<>();
+            SnapshotWriter collecting = new SnapshotWriter() {
+                void write(SnapshotEntry entry) {
+                    entries.add(entry);
+                }
+
+                public void flush() {
+                }
+
+                public void close() {
+                }
+            };
+            try (BackupJournal journal = BackupJournal.start(repo.getPath(), "2018-12-31-23-59-59", false)) {
+                BackupPipeline pipeline = new BackupPipeline(blobStore, DigestMap.newSet(), "2018-12-31-23-59-59", options, MetadataCache.load(repo.getPath()), metrics, journal);
+                List<BackupTargetFile> failed = pipeline.run(targets.iterator(), collecting, new ProgressIndicator(16L * content.length, 16, "test files"));
+                verify(failed.isEmpty(), "Pipeline failed to back up identical files.");
+            }
+            blobStore.closeIndex();
+            verify(metrics.filesStored.get() == 1, "Identical content was stored " + metrics.filesStored + " times" + (singlePass ? " in single-pass mode." : "."));
+            verify(entries.size() == 16 && entries.stream().allMatch(entry -> entry.hash.equals(hash)), "Snapshot entries of identical files do not all have the same hash.");
+            List<File> stored = Pruner.listFiles(repoFilesDir);
+            verify(stored.size() == 1 && stored.get(0).getName().equals(hash), "Repository has other files than the one blob: " + stored);
+        }
+    }
+
+    private void testBinarySnapshotRoundTrip() throws IOException {
+        System.out.println("Testing binary snapshot format");
+        File snapshotFile = new File("temp" + File.separator + "snapshot-test-" + Utils.timestamp() + ".bin");
+        List<SnapshotEntry> entries = List.of(
+                new SnapshotEntry("C:\\music\\a.mp3", "1B6FB0897A9013312B7FCDF3ADD16532C4A1717C1FEB89D41B99B7CF574FAD74", 123, 1545000000000L),
+                new SnapshotEntry("C:\\music\\ab.mp3", "1B6FB0897A9013312B7FCDF3ADD16532C4A1717C1FEB89D41B99B7CF574FAD74", 0, -1),
+                new SnapshotEntry("C:\\m\u00FAsica\\b.mp3", "38D190EC11D55311EAFE151F41D0795F93863511DC1D9ABEF1CDAE9DC41DE8D8", 5000000000L, 1L));
+        try (SnapshotWriter writer = SnapshotWriter.create(snapshotFile, true)) {
+            for (SnapshotEntry entry : entries) {
+                writer.write(entry);
+            }
+            writer.finish();
+        }
+        verify(SnapshotReader.isBinary(snapshotFile), "Binary snapshot was not detected as binary.");
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            for (SnapshotEntry expected : entries) {
+                verify(reader.hasNext(), "Binary snapshot has fewer entries than were written.");
+                SnapshotEntry actual = reader.next();
+                verify(actual.path.equals(expected.path) && actual.hash.equals(expected.hash)
+                        && actual.sizeBytes == expected.sizeBytes && actual.lastModifiedMillis == expected.lastModifiedMillis,
+                        "Binary snapshot entry does not match what was written: " + actual.path);
+            }
+            verify(!reader.hasNext(), "Binary snapshot has more entries than were written.");
+        }
+        // A failed backup closes its writer without finishing it.
+        File unfinished = new File("temp" + File.separator + "snapshot-unfinished-" + System.nanoTime() + ".bin");
+        try (SnapshotWriter writer = SnapshotWriter.create(unfinished, true)) {
+            writer.write(entries.get(0));
+        }
+        try (SnapshotReader reader = SnapshotReader.open(unfinished)) {
+            reader.forEachRemaining(entry -> { });
+            verify(false, "Unfinished binary snapshot reads as complete.");
+        } catch (IOException | UncheckedIOException expected) {
+            // Its footer is missing.
+        }
+    }
+
+    private void testConvertSnapshotToBinary() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing snapshot conversion to binary");
+        File repo = new File("temp" + File.separator + "convert-" + System.nanoTime()).getAbsoluteFile();
+        repo.mkdirs();
+        File checklist = new File(repo, "checklist.txt");
+        Files.write(checklist.toPath(), List.of(testFile.getAbsolutePath(), testFile2.getAbsolutePath()), StandardCharsets.UTF_8);
+        Core.createBackup(checklist.getPath(), repo.getPath(), new BackupOptions());
+        File textSnapshot = SnapshotCatalog.snapshotsDir(repo).listFiles()[0];
+        File binarySnapshot = Core.convertSnapshotToBinary(textSnapshot.getPath());
+        verify(!textSnapshot.exists() && SnapshotCatalog.snapshotsDir(repo).list().length == 1, "Text snapshot was left next to the binary one.");
+        Map<String, SnapshotEntry> entries = Core.loadSnapshotEntries(binarySnapshot);
+        verify(entries.size() == 2 && entries.get(testFile2.getAbsolutePath()).sizeBytes == testFile2.length(), "Binary snapshot does not have the entries of the text one.");
+        verify(Core.getLatestSnapshotFile(Core.getOrCreateRepoFilesDir(repo.getPath())).equals(binarySnapshot), "Catalog does not point to the binary snapshot.");
+    }
+
+    private void testMetadataCache() throws IOException {
+        System.out.println("Testing metadata cache");
+        File repo = new File("temp" + File.separator + "metadata-cache-" + System.nanoTime());
+        repo.mkdirs();
+        String hash = "1B6FB0897A9013312B7FCDF3ADD16532C4A1717C1FEB89D41B99B7CF574FAD74";
+        BackupTargetFile btf = new BackupTargetFile(testFile.toPath(), 41);
+        btf.lastModifiedNanos = 1000000000L; // Long before the run started.
+        btf.fileKey = "(dev=1,ino=2)";
+        // Longer than the 64 KB which writeUTF could store.
+        BackupTargetFile longPath = new BackupTargetFile(Paths.get("x".repeat(70000)), 1);
+        longPath.lastModifiedNanos = 1000000000L;
+        MetadataCache cache = MetadataCache.load(repo.getPath());
+        verify(cache.lookup(btf) == null, "Empty metadata cache had a hit.");
+        cache.record(btf, hash);
+        cache.record(longPath, hash);
+        cache.save(System.currentTimeMillis());
+
+        MetadataCache loaded = MetadataCache.load(repo.getPath());
+        verify(hash.equals(loaded.lookup(btf)), "Metadata cache did not hit an unchanged file in the next run.");
+        verify(hash.equals(loaded.lookup(longPath)), "Metadata cache lost a long path.");
+        BackupTargetFile modified = new BackupTargetFile(btf.originPath, btf.sizeBytes);
+        modified.lastModifiedNanos = btf.lastModifiedNanos + 1;
+        modified.fileKey = btf.fileKey;
+        verify(loaded.lookup(modified) == null, "Metadata cache hit a file with a different last-modified time.");
+        BackupTargetFile resized = new BackupTargetFile(btf.originPath, btf.sizeBytes + 1);
+        resized.lastModifiedNanos = btf.lastModifiedNanos;
+        resized.fileKey = btf.fileKey;
+        verify(loaded.lookup(resized) == null, "Metadata cache hit a file with a different size.");
+
+        // Modified just before the run which cached it, so it may have changed again within timestamp granularity.
+        BackupTargetFile racy = new BackupTargetFile(testFile2.toPath(), 10);
+        racy.lastModifiedNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        loaded.record(racy, hash);
+        loaded.save(System.currentTimeMillis());
+        verify(MetadataCache.load(repo.getPath()).lookup(racy) == null, "Metadata cache trusted a file modified during the run.");
+    }
+
+    private void testDigestMap() {
+        System.out.println("Testing digest map");
+        DigestMap map = DigestMap.newMap();
+        List<String> hashes = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            byte[] digest = new byte[DigestMap.DIGEST_BYTES];
+            random.nextBytes(digest);
+            hashes.add(Utils.bytesToHex(digest));
+        }
+        hashes.add(Utils.bytesToHex(new byte[DigestMap.DIGEST_BYTES])); // All-zero digest is a special case.
+        for (int i = 0; i < hashes.size(); i++) {
+            map.put(hashes.get(i), i);
+        }
+        verify(map.size() == hashes.size(), "Digest map size does not match number of distinct keys.");
+        for (int i = 0; i < hashes.size(); i += 2) {
+            verify(map.remove(hashes.get(i)), "Digest map did not find key to remove.");
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            long expected = i % 2 == 0 ? -1 : i;
+            verify(map.get(hashes.get(i).toLowerCase(), -1) == expected, "Digest map returned wrong value after removals.");
+        }
+        verify(!map.contains("not a hash"), "Digest map should not contain strings which are not digests.");
+    }
+
+    private void testChunkerResynchronizesAfterInsert() throws IOException {
+        System.out.println("Testing content-defined chunking");
+        byte[] original = new byte[12 * 1024 * 1024];
+        new Random(7).nextBytes(original);
+        // Same content with a few bytes inserted near the beginning, which shifts every later offset.
+        byte[] edited = new byte[original.length + 3];
+        System.arraycopy(original, 0, edited, 0, 1000);
+        System.arraycopy(original, 1000, edited, 1003, original.length - 1000);
+        List<String> originalChunks = chunkHashes(original);
+        List<String> editedChunks = chunkHashes(edited);
+        verify(originalChunks.size() > 3, "Chunker did not split large content into several chunks.");
+        int shared = 0;
+        for (String chunk : editedChunks) {
+            if (originalChunks.contains(chunk)) shared++;
+        }
+        verify(shared >= editedChunks.size() - 2, "Chunks after an insert did not resynchronize with the original chunks.");
+    }
+
+    private List<String> chunkHashes(byte[] content) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        long[] total = new long[1];
+        Chunker.split(new ByteArrayInputStream(content), (buffer, offset, length) -> {
+            verify(length <= Chunker.MAX_SIZE, "Chunk is larger than the maximum chunk size.");
+            total[0] += length;
+            hashes.add(Arrays.hashCode(Arrays.copyOfRange(buffer, offset, offset + length)) + ":" + length);
+        });
+        verify(total[0] == content.length, "Chunks do not add up to the original content.");
+        return hashes;
+    }
+
+    private void testBlobCompression() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing blob compression");
+        byte[] text = "compressible line of text\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        byte[] noise = new byte[100000];
+        new Random(3).nextBytes(noise);
+        byte[] jpeg = text.clone();
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        verify(BlobCompression.isWorthCompressing(text, 0, text.length), "Text should be considered compressible.");
+        verify(!BlobCompression.isWorthCompressing(noise, 0, noise.length), "Random bytes should be considered incompressible.");
+        verify(!BlobCompression.isWorthCompressing(jpeg, 0, jpeg.length), "JPEG magic bytes should mark content as already compressed.");
+
+        File blob = new File("temp" + File.separator + "compressed-test-" + Utils.timestamp() + BlobCompression.SUFFIX);
+        BlobCompression.compress(new ByteArrayInputStream(text), blob);
+        verify(blob.length() < text.length / 10, "Compressed blob is not smaller than the original.");
+        verify(BlobCompression.originalSize(blob) == text.length, "Compressed blob header has wrong original size.");
+        try (InputStream in = BlobCompression.open(blob)) {
+            verify(Arrays.equals(in.readAllBytes(), text), "Compressed blob does not decompress to the original content.");
+        }
+
+        // In single-pass mode the raw temp copy is compressed by the copy stage.
+        File repo = new File("temp" + File.separator + "single-pass-compression-" + System.nanoTime()).getAbsoluteFile();
+        File textFile = new File(repo, "data" + File.separator + "text.txt");
+        File noiseFile = new File(repo, "data" + File.separator + "noise.bin");
+        textFile.getParentFile().mkdirs();
+        Files.write(textFile.toPath(), text);
+        Files.write(noiseFile.toPath(), noise);
+        File checklist = new File(repo, "checklist.txt");
+        Files.write(checklist.toPath(), List.of(textFile.getParent()), StandardCharsets.UTF_8);
+        BackupOptions options = new BackupOptions();
+        options.singlePass = true;
+        options.compression = true;
+        Core.createBackup(checklist.getPath(), repo.getPath(), options);
+        BlobStore blobStore = new BlobStore(Core.getOrCreateRepoFilesDir(repo.getPath()));
+        verify(blobStore.compressedFile(Utils.sha256(textFile)).isFile(), "Single-pass copy of compressible content was not compressed.");
+        verify(blobStore.shardedFile(Utils.sha256(noiseFile)).isFile(), "Single-pass copy of incompressible content was not stored raw.");
+        verify(blobStore.repoFilesDir.list((dir, name) -> name.endsWith(".tmp")).length == 0, "Single-pass temp copies were left behind.");
+    }
+
+    private void testPackRecovery() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing pack recovery");
+        File packsDir = new File("temp" + File.separator + "packs-test-" + System.nanoTime());
+        PackStore packs = new PackStore(packsDir, HashAlgorithm.SHA256);
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] content = ("packed blob " + i).getBytes(StandardCharsets.UTF_8);
+            String hash = Utils.sha256(new ByteArrayInputStream(content));
+            hashes.add(hash);
+            packs.append(hash, content, 1545000000000L);
+        }
+        packs.seal();
+        verify(packs.size(hashes.get(2)) == "packed blob 2".length() && packs.size(Utils.sha256(testFile)) == -1, "Packed blob size was not read from its record header.");
+        // Simulate a backup which was interrupted in the middle of writing the last record.
+        File pack = packsDir.listFiles((dir, name) -> name.endsWith(PackStore.PACK_SUFFIX))[0];
+        PackStore.indexFileOf(pack).delete();
+        try (RandomAccessFile file = new RandomAccessFile(pack, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+        PackStore recovered = new PackStore(packsDir, HashAlgorithm.SHA256);
+        verify(recovered.contains(hashes.get(0)) && recovered.contains(hashes.get(1)), "Complete records were not recovered from an unsealed pack.");
+        verify(!recovered.contains(hashes.get(2)), "Torn record was recovered from an unsealed pack.");
+        verify(new String(recovered.read(hashes.get(1)).content, StandardCharsets.UTF_8).equals("packed blob 1"), "Recovered packed blob has wrong content.");
+    }
+
+    private void testBlobIndexAndLayoutMigration() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing blob index and layout migration");
+        File repo = new File("temp" + File.separator + "blob-index-" + System.nanoTime());
+        File repoFilesDir = new File(repo, "files");
+        repoFilesDir.mkdirs();
+        String hash = Utils.sha256(testFile);
+        String hash2 = Utils.sha256(testFile2);
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        File blob = blobStore.shardedFile(hash);
+        blob.getParentFile().mkdirs();
+        Utils.copy(testFile, blob);
+        verify(blobStore.loadKnownHashes().contains(hash), "Missing blob index was not built from the files folder.");
+        verify(blobStore.readIndex() != null, "Built blob index was not closed.");
+
+        blobStore.openIndex();
+        blobStore.appendToIndex(hash2);
+        blobStore.closeIndex();
+        DigestMap indexed = blobStore.readIndex();
+        verify(indexed != null && indexed.contains(hash) && indexed.contains(hash2), "Closed blob index does not list appended hashes.");
+
+        // A backup which stored a blob in the legacy layout and crashed before closing the index.
+        blobStore.openIndex();
+        blobStore.indexWriter.close();
+        blobStore.indexWriter = null;
+        File source = new File(repo, "interrupted.txt");
+        Files.write(source.toPath(), "stored by an interrupted backup".getBytes(StandardCharsets.UTF_8));
+        String hash3 = Utils.sha256(source);
+        File legacy = blobStore.legacyFile(hash3);
+        Utils.copy(source, legacy);
+        verify(blobStore.readIndex() == null, "Blob index without a close marker was not considered stale.");
+        DigestMap walked = blobStore.loadKnownHashes();
+        verify(walked.contains(hash) && walked.contains(hash3) && !walked.contains(hash2), "Stale blob index was not rebuilt from the files folder.");
+        verify(blobStore.readIndex() != null, "Rebuilt blob index was not closed.");
+
+        // One blob only in the legacy layout, and one in both, which is left alone.
+        File both = blobStore.legacyFile(hash2);
+        Utils.copy(testFile2, both);
+        blobStore.shardedFile(hash2).getParentFile().mkdirs();
+        Utils.copy(testFile2, blobStore.shardedFile(hash2));
+        Core.migrateRepositoryLayout(repo.getPath());
+        verify(!legacy.exists() && hash3.equals(Utils.sha256(blobStore.shardedFile(hash3))), "Legacy blob was not moved into the fan-out layout.");
+        verify(both.exists() && blobStore.locate(hash2).equals(blobStore.shardedFile(hash2)), "Blob in both layouts was not left alone.");
+        Core.migrateRepositoryLayout(repo.getPath());
+        verify(blobStore.contains(hash3) && blobStore.contains(hash2), "Running migration again lost blobs.");
+    }
+
+    private void testRestoreChunkedFile() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing restore of a chunked file");
+        File repo = new File("temp" + File.separator + "restore-chunked-" + System.nanoTime()).getAbsoluteFile();
+        File chunked = new File(repo, "data" + File.separator + "chunked.bin");
+        chunked.getParentFile().mkdirs();
+        byte[] content = new byte[3 * Chunker.MAX_SIZE / 2];
+        new Random(10).nextBytes(content);
+        Files.write(chunked.toPath(), content);
+        Files.setLastModifiedTime(chunked.toPath(), FileTime.fromMillis(1500000000000L));
+        File checklist = new File(repo, "checklist.txt");
+        Files.write(checklist.toPath(), List.of(chunked.getPath()), StandardCharsets.UTF_8);
+        BackupOptions options = new BackupOptions();
+        options.chunking = true;
+        options.chunkingThresholdBytes = Chunker.MIN_SIZE;
+        Core.createBackup(checklist.getPath(), repo.getPath(), options);
+        String hash = Utils.sha256(chunked);
+        verify(new BlobStore(Core.getOrCreateRepoFilesDir(repo.getPath())).locateManifest(hash) != null, "File was not stored in chunks.");
+
+        File restoreDir = new File(repo, "restored");
+        Core.restoreBackup(repo.getPath(), restoreDir.getPath());
+        File restored = Restorer.restorePath(restoreDir, chunked.getPath());
+        verify(Arrays.equals(Files.readAllBytes(restored.toPath()), content), "Restored chunked file differs from the original.");
+        verify(Files.getLastModifiedTime(restored.toPath()).toMillis() == 1500000000000L, "Restored chunked file did not keep its last-modified time.");
+    }
+
+    private void testRestoreAfterInterruption() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing restore after an interrupted restore");
+        File repo = new File("temp" + File.separator + "restore-again-" + System.nanoTime()).getAbsoluteFile();
+        File checklist = new File(repo, "checklist.txt");
+        repo.mkdirs();
+        // testFile and testFile3 have the same content, so one of them is copied locally from the other.
+        Files.write(checklist.toPath(), List.of(testFile.getAbsolutePath(), testFile2.getAbsolutePath(), testFile3.getAbsolutePath()), StandardCharsets.UTF_8);
+        Core.createBackup(checklist.getPath(), repo.getPath(), new BackupOptions());
+        File restoreDir = new File(repo, "restored");
+        // An interrupted restore: one file done, the others left as partial temp copies.
+        File done = Restorer.restorePath(restoreDir, testFile.getAbsolutePath());
+        done.getParentFile().mkdirs();
+        Utils.copy(testFile, done);
+        for (File file : new File[] { testFile2, testFile3 }) {
+            File partial = Restorer.tempFileOf(Restorer.restorePath(restoreDir, file.getAbsolutePath()));
+            Files.write(partial.toPath(), "partial".getBytes(StandardCharsets.UTF_8));
+        }
+        RestoreOptions options = new RestoreOptions();
+        Restorer restorer = new Restorer(new BlobStore(Core.getOrCreateRepoFilesDir(repo.getPath())), restoreDir, options);
+        restorer.restore(Core.getLatestSnapshotFile(Core.getOrCreateRepoFilesDir(repo.getPath())));
+        verify(restorer.filesFailed.get() == 0 && restorer.filesSkipped.get() == 1, "Restore could not be run again after an interruption.");
+        for (File file : new File[] { testFile, testFile2, testFile3 }) {
+            File restored = Restorer.restorePath(restoreDir, file.getAbsolutePath());
+            verify(Utils.sha256(restored).equals(Utils.sha256(file)), "Restore again did not restore " + file.getName() + ".");
+            verify(!Restorer.tempFileOf(restored).exists(), "Stale temp copy of " + file.getName() + " was left behind.");
+        }
+    }
+
+    private void testRestorePathFilter() {
+        System.out.println("Testing restore path filter");
+        RestoreOptions options = new RestoreOptions();
+        verify(options.pathFilter().test("/home/me/a.txt"), "Restore without include option should accept all paths.");
+        options.include = "/home/me/docs";
+        verify(options.pathFilter().test("/home/me/docs/a.txt") && !options.pathFilter().test("/home/me/music/b.mp3"), "Restore prefix filter does not match as expected.");
+        verify(options.pathFilter().test("/home/me/docs") && !options.pathFilter().test("/home/me/docs2/a.txt"), "Restore prefix filter does not match at a path boundary.");
+        options.include = "C:\\Users\\ann";
+        verify(options.pathFilter().test("C:\\Users\\ann\\a.txt") && !options.pathFilter().test("C:\\Users\\anna\\a.txt"), "Restore prefix filter does not match Windows paths at a path boundary.");
+        options.include = "/home/me/";
+        verify(options.pathFilter().test("/home/me/a.txt"), "Restore prefix filter with a trailing separator does not match.");
+        options.include = "**.jpg";
+        verify(options.pathFilter().test("/home/me/pics/a.jpg") && !options.pathFilter().test("/home/me/pics/a.png"), "Restore glob filter does not match as expected.");
+    }
+
+    private void testSnapshotDiff() throws IOException {
+        System.out.println("Testing snapshot diff");
+        String hashA = "1B6FB0897A9013312B7FCDF3ADD16532C4A1717C1FEB89D41B99B7CF574FAD74";
+        String hashB = "38D190EC11D55311EAFE151F41D0795F93863511DC1D9ABEF1CDAE9DC41DE8D8";
+        String hashC = "6457FAF377C6BBD79D7890F10DD0606F006B62E77C476CD140125CB34546646D";
+        File older = new File("temp" + File.separator + "snapshot-diff-older-" + System.nanoTime() + ".bin");
+        File newer = new File("temp" + File.separator + "snapshot-diff-newer-" + System.nanoTime() + ".bin");
+        try (SnapshotWriter writer = SnapshotWriter.create(older, true)) {
+            writer.write(new SnapshotEntry("/a/kept.txt", hashA, 10, 1));
+            writer.write(new SnapshotEntry("/a/modified.txt", hashA, 10, 1));
+            writer.write(new SnapshotEntry("/a/old-name.txt", hashB, 20, 1));
+            writer.write(new SnapshotEntry("/a/removed.txt", hashC, 30, 1));
+            writer.finish();
+        }
+        try (SnapshotWriter writer = SnapshotWriter.create(newer, true)) {
+            writer.write(new SnapshotEntry("/a/kept.txt", hashA, 10, 1));
+            writer.write(new SnapshotEntry("/a/modified.txt", hashC, 30, 2));
+            writer.write(new SnapshotEntry("/b/added.txt", hashA, 10, 1));
+            writer.write(new SnapshotEntry("/b/new-name.txt", hashB, 20, 1));
+            writer.finish();
+        }
+        SnapshotDiff diff = new SnapshotDiff(null);
+        diff.diff(older, newer, new File("temp" + File.separator + "snapshot-diff-" + System.nanoTime() + ".tsv"));
+        verify(diff.totals.get(SnapshotDiff.Kind.UNCHANGED)[0] == 1, "Snapshot diff did not find the unchanged path.");
+        verify(diff.totals.get(SnapshotDiff.Kind.MODIFIED)[0] == 1, "Snapshot diff did not find the modified path.");
+        verify(diff.totals.get(SnapshotDiff.Kind.MOVED)[0] == 1, "Snapshot diff did not recognize the move.");
+        verify(diff.totals.get(SnapshotDiff.Kind.ADDED)[0] == 1 && diff.totals.get(SnapshotDiff.Kind.ADDED)[1] == 10, "Snapshot diff did not find the added path.");
+        verify(diff.totals.get(SnapshotDiff.Kind.REMOVED)[0] == 1 && diff.totals.get(SnapshotDiff.Kind.REMOVED)[1] == 30, "Snapshot diff did not find the removed path.");
+    }
+
+    private void testDuplicateFinder() throws IOException {
+        System.out.println("Testing duplicate finder");
+        File dir = new File("temp" + File.separator + "duplicates-" + System.nanoTime());
+        dir.mkdirs();
+        byte[] content = new byte[3 * DuplicateFinder.PARTIAL_HASH_BYTES];
+        new Random(15).nextBytes(content);
+        File original = new File(dir, "original.bin");
+        File copy = new File(dir, "copy.bin");
+        File sameEnds = new File(dir, "same-ends.bin");
+        File shorter = new File(dir, "shorter.bin");
+        Files.write(original.toPath(), content);
+        Files.write(copy.toPath(), content);
+        content[content.length / 2] ^= 1; // Only the middle differs, so only the full hash tells these apart.
+        Files.write(sameEnds.toPath(), content);
+        Files.write(shorter.toPath(), Arrays.copyOf(content, content.length - 1));
+        List<BackupTargetFile> files = new ArrayList<>();
+        for (File file : new File[] { original, copy, sameEnds, shorter }) {
+            files.add(new BackupTargetFile(file.toPath(), file.length()));
+        }
+        DuplicateFinder finder = new DuplicateFinder(0, 2);
+        List<DuplicateFinder.Group> groups = finder.fromFiles(files);
+        verify(groups.size() == 1 && groups.get(0).paths.size() == 2, "Duplicate finder did not find exactly one pair of duplicates.");
+        verify(groups.get(0).paths.contains(original.toPath().toString()) && groups.get(0).paths.contains(copy.toPath().toString()), "Duplicate finder paired the wrong files.");
+        verify(finder.reclaimableBytes == original.length(), "Duplicate finder reported wrong reclaimable bytes.");
+    }
+
+    private void testRunMetrics() throws IOException {
+        System.out.println("Testing run metrics");
+        RunMetrics metrics = new RunMetrics();
+        metrics.record(RunMetrics.Stage.HASHING, System.nanoTime() - 2000000000L, 4000);
+        for (int i = 0; i < 4; i++) {
+            metrics.processed(1000, false);
+        }
+        metrics.stored(1000);
+        metrics.processed(1000, true);
+        verify(metrics.filesDeduplicated() == 3, "Run metrics counted deduplicated files wrong.");
+        verify(Math.abs(metrics.dedupHitRatio() - 0.75) < 1e-9, "Run metrics computed dedup hit ratio wrong.");
+        verify(Math.abs(metrics.stages.get(RunMetrics.Stage.HASHING).bytesPerBusySecond() - 2000) < 10, "Run metrics computed stage throughput wrong.");
+        File repo = new File("temp" + File.separator + "run-metrics-" + System.nanoTime());
+        File report = metrics.writeReport(repo.getPath(), "2018-12-31-23-59-59", new BackupOptions());
+        String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+        verify(json.contains("\"filesDeduplicated\": 3,") && json.contains("\"hashing\": {\"count\": 1,"), "Run report is missing counters.");
+    }
+
+    private void testBackupJournalAndTempRecovery() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing backup journal and temp file recovery");
+        File repo = new File("temp" + File.separator + "journal-" + System.nanoTime());
+        repo.mkdirs();
+        String hash = Utils.sha256(testFile);
+        BackupTargetFile btf = new BackupTargetFile(testFile.toPath(), testFile.length());
+        btf.lastModifiedNanos = 1000000000L; // Long before the run started.
+        try (BackupJournal journal = BackupJournal.start(repo.getPath(), "2018-12-31-23-59-59", true)) {
+            journal.record(btf, hash);
+            BackupTargetFile other = new BackupTargetFile(testFile2.toPath(), testFile2.length());
+            journal.record(other, Utils.sha256(testFile2));
+            // Longer than the 64 KB which writeUTF could store, like a long Windows extended-length path.
+            BackupTargetFile longPath = new BackupTargetFile(Paths.get("x".repeat(70000)), 1);
+            journal.record(longPath, hash);
+        }
+        // A record torn by a crash.
+        try (FileOutputStream out = new FileOutputStream(BackupJournal.fileOf(repo.getPath()), true)) {
+            out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        }
+        BackupJournal resumed = BackupJournal.load(repo.getPath());
+        verify(resumed.timestamp.equals("2018-12-31-23-59-59") && resumed.binarySnapshots, "Backup journal header was not read back.");
+        verify(resumed.completed.size() == 3 && resumed.completed.containsKey("x".repeat(70000)), "Backup journal did not recover the complete records.");
+        verify(hash.equals(resumed.lookup(btf)), "Backup journal did not match an unchanged file.");
+        btf.sizeBytes++;
+        verify(resumed.lookup(btf) == null, "Backup journal matched a changed file.");
+
+        File repoFilesDir = new File(repo, "files");
+        repoFilesDir.mkdirs();
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        blobStore.openIndex();
+        Utils.copy(testFile, new File(repoFilesDir, "temp-" + hash + "-2018-12-31-23-59-59.tmp"));
+        String hash2 = Utils.sha256(testFile2);
+        try (FileOutputStream out = new FileOutputStream(new File(repoFilesDir, "temp-" + hash2 + "-2018-12-31-23-59-59.tmp"))) {
+            out.write(1); // Interrupted copy.
+        }
+        List<String> recovered = blobStore.recoverTempFiles();
+        blobStore.closeIndex();
+        verify(recovered.size() == 1 && recovered.get(0).equals(hash) && blobStore.contains(hash), "Complete temp file was not recovered.");
+        verify(!blobStore.contains(hash2) && repoFilesDir.list((dir, name) -> name.endsWith(".tmp")).length == 0, "Incomplete temp file was not deleted.");
+    }
+
+    private void testHashAlgorithms() throws IOException {
+        System.out.println("Testing hash algorithms");
+        verify(HashAlgorithm.BLAKE3.hash(new byte[0], 0, 0).equals("AF1349B9F5F9A1A6A0404DEA36DCC9499BCB25C9ADC112B7CC9A93CAE41F3262"), "BLAKE3 of empty input does not match expected value.");
+        verify(HashAlgorithm.BLAKE3.hash("abc".getBytes(StandardCharsets.US_ASCII), 0, 3).equals("6437B3AC38465133FFB63B75273A8DB548C558465D79DB03FD359C6CD5BD9D85"), "BLAKE3 of abc does not match expected value.");
+        // Inputs which span several chunks, in the pattern of the official test vectors.
+        byte[] pattern = new byte[8193];
+        for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) (i % 251);
+        verify(HashAlgorithm.BLAKE3.hash(pattern, 0, 1025).equals("D00278AE47EB27B34FAECF67B4FE263F82D5412916C1FFD97C8CB7FB814B8444"), "BLAKE3 of 1025 bytes does not match expected value.");
+        Hasher pieces = HashAlgorithm.BLAKE3.newHasher();
+        for (int offset = 0; offset < pattern.length; offset += 1000) {
+            pieces.update(pattern, offset, Math.min(1000, pattern.length - offset));
+        }
+        verify(pieces.finish().hash.equals("BAB6C09CB8CE8CF459261398D2E7AEF35700BF488116CEB94A36D0F5F1B7BC3B"), "BLAKE3 of 8193 bytes in pieces does not match expected value.");
+
+        // Large enough to be hashed in parallel, with a partial last leaf.
+        File repo = new File("temp" + File.separator + "tree-" + System.nanoTime());
+        File repoFilesDir = new File(repo, "files");
+        repoFilesDir.mkdirs();
+        File big = new File(repo, "big.bin");
+        byte[] content = new byte[(int) HashAlgorithm.PARALLEL_THRESHOLD + 100];
+        new Random(19).nextBytes(content);
+        Files.write(big.toPath(), content);
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            verify(algorithm.hash(big).equals(algorithm.hash(content, 0, content.length)), "Parallel " + algorithm.id + " hash differs from streaming hash.");
+        }
+
+        verify(new BlobStore(repoFilesDir).hashAlgorithm == HashAlgorithm.SHA256, "Repository without settings is not read as sha256.");
+        RepositoryConfig.forBackup(repo, HashAlgorithm.SHA256_TREE);
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        verify(blobStore.hashAlgorithm == HashAlgorithm.SHA256_TREE, "Repository hash algorithm was not recorded.");
+        HashAlgorithm.Digest digest = blobStore.hashAlgorithm.digest(big);
+        verify(digest.leaves.size() == 5, "Tree hash has wrong number of leaves.");
+        blobStore.openIndex();
+        File temp = new File(repoFilesDir, "temp-tree.tmp");
+        Utils.copy(big, temp);
+        blobStore.moveIntoPlace(temp, digest.hash);
+        blobStore.writeTree(digest.hash, digest.leaves);
+        blobStore.closeIndex();
+        verify(blobStore.verifyRange(digest.hash, 3L * TreeHasher.LEAF_SIZE, 10), "Intact range of tree-hashed blob did not verify.");
+        try (RandomAccessFile file = new RandomAccessFile(blobStore.locate(digest.hash), "rw")) {
+            file.seek(2L * TreeHasher.LEAF_SIZE + 5);
+            file.write(content[2 * TreeHasher.LEAF_SIZE + 5] ^ 1);
+        }
+        verify(blobStore.verifyRange(digest.hash, 0, TreeHasher.LEAF_SIZE), "Range before corruption did not verify.");
+        verify(!blobStore.verifyRange(digest.hash, 2L * TreeHasher.LEAF_SIZE + 100, 1), "Corrupted range verified.");
+        try {
+            RepositoryConfig.forBackup(repo, HashAlgorithm.BLAKE3);
+            verify(false, "Repository hash algorithm was changed.");
+        } catch (IllegalArgumentException expected) {
+            // The repository keeps the algorithm it was created with.
+        }
+    }
+
+    private void testDurability() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing durability policies");
+        verify(Durability.Policy.parse("strict") == Durability.Policy.STRICT, "Durability policy was not parsed.");
+        long now = System.nanoTime();
+        Durability batched = new Durability(Durability.Policy.BATCHED, 3, 60000);
+        verify(!batched.commitDue(0, now) && !batched.commitDue(2, now) && batched.commitDue(3, now), "Batched durability did not commit by file count.");
+        verify(batched.commitDue(1, now - TimeUnit.MINUTES.toNanos(2)), "Batched durability did not commit by time.");
+        verify(new Durability(Durability.Policy.STRICT, 1000, 60000).commitDue(1, now), "Strict durability did not commit after every file.");
+        verify(Durability.NONE.commitDue(1, now), "Without durability, results were held back.");
+
+        File repo = new File("temp" + File.separator + "durability-" + System.nanoTime());
+        File repoFilesDir = new File(repo, "files");
+        File blob = new File(repoFilesDir, "ab" + File.separator + "cd" + File.separator + "blob");
+        blob.getParentFile().mkdirs();
+        batched.created(blob, repoFilesDir);
+        verify(batched.dirtyDirectories.size() == 3, "New fan-out directories were not remembered for syncing.");
+        batched.syncDirectories();
+        verify(batched.dirtyDirectories.isEmpty(), "Synced directories were not forgotten.");
+
+        File checklist = new File(repo, "checklist.txt");
+        Files.write(checklist.toPath(), List.of(testFile.getAbsolutePath(), testFile2.getAbsolutePath()), StandardCharsets.UTF_8);
+        BackupOptions options = new BackupOptions();
+        options.durability = Durability.Policy.STRICT;
+        Core.createBackup(checklist.getPath(), repo.getPath(), options);
+        verify(!BackupJournal.fileOf(repo.getPath()).exists(), "Backup journal was left behind.");
+        File[] snapshots = new File(repo, "filepath-snapshots").listFiles();
+        List<String> hashes = new ArrayList<>();
+        try (SnapshotReader reader = SnapshotReader.open(snapshots[0])) {
+            reader.forEachRemaining(entry -> hashes.add(entry.hash));
+        }
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        verify(hashes.size() == 2 && hashes.contains(Utils.sha256(testFile)) && blobStore.contains(Utils.sha256(testFile2)), "Strict backup did not write the expected snapshot.");
+    }
+
+    private void testCopyEngine() throws IOException {
+        System.out.println("Testing copy engine");
+        File dir = new File("temp" + File.separator + "copy-" + System.nanoTime());
+        dir.mkdirs();
+        CopyEngine probed = CopyEngine.probe(dir);
+        verify(dir.list().length == 0, "Copy probe left files behind.");
+        File source = new File(dir, "source.bin");
+        byte[] content = new byte[3 * CopyEngine.BUFFER_BYTES + 17];
+        new Random(21).nextBytes(content);
+        Files.write(source.toPath(), content);
+        Files.setLastModifiedTime(source.toPath(), FileTime.fromMillis(1500000000000L));
+        for (CopyEngine engine : new CopyEngine[] { probed, new CopyEngine(null, CopyEngine.Strategy.BUFFERED) }) {
+            File target = new File(dir, "target-" + engine.strategy + ".bin");
+            engine.copy(source, target);
+            verify(Arrays.equals(Files.readAllBytes(target.toPath()), content), "Copy with " + engine.describe() + " differs from source.");
+            verify(Files.getLastModifiedTime(target.toPath()).toMillis() == 1500000000000L, "Copy with " + engine.describe() + " did not keep last-modified time.");
+            try {
+                engine.copy(testFile, target);
+                verify(false, "Copy with " + engine.describe() + " overwrote an existing file.");
+            } catch (FileAlreadyExistsException expected) {
+                // Like Utils.copy.
+            }
+        }
+    }
+
+    private void testIncrementalBackup() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        System.out.println("Testing incremental backup");
+        File repo = new File("temp" + File.separator + "incremental-" + System.nanoTime()).getAbsoluteFile();
+        File data = new File(repo, "data");
+        File a = new File(data, "a.txt");
+        File b = new File(data, "b.txt");
+        File c = new File(data, "sub" + File.separator + "c.txt");
+        File d = new File(data, "sub" + File.separator + "d.txt");
+        c.getParentFile().mkdirs();
+        for (File file : new File[] { a, b, c, d }) {
+            Files.write(file.toPath(), file.getName().getBytes(StandardCharsets.UTF_8));
+        }
+        File checklist = new File(repo, "checklist.txt");
+        Files.write(checklist.toPath(), List.of(data.getPath()), StandardCharsets.UTF_8);
+        Core.createBackup(checklist.getPath(), repo.getPath(), new BackupOptions());
+        File previous = Core.getLatestSnapshotFile(Core.getOrCreateRepoFilesDir(repo.getPath()));
+
+        // Snapshots are named by the second they were started in.
+        Thread.sleep(1100);
+        Files.write(a.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        Files.delete(c.toPath());
+        File e = new File(data, "sub" + File.separator + "e.txt");
+        Files.write(e.toPath(), "e.txt".getBytes(StandardCharsets.UTF_8));
+        Set<String> changed = new HashSet<>(List.of(a.getPath(), c.getPath(), e.getPath()));
+        List<BackupTargetFile> failed = Core.createIncrementalBackup(checklist.getPath(), repo.getPath(), new BackupOptions(), previous, changed);
+        verify(failed.isEmpty(), "Incremental backup failed to back up " + failed);
+        File latest = Core.getLatestSnapshotFile(Core.getOrCreateRepoFilesDir(repo.getPath()));
+        verify(!latest.equals(previous), "Incremental backup did not write a new snapshot.");
+        Map<String, String> hashes = new HashMap<>();
+        try (SnapshotReader reader = SnapshotReader.open(latest)) {
+            reader.forEachRemaining(entry -> hashes.put(entry.path, entry.hash));
+        }
+        verify(hashes.size() == 4, "Incremental snapshot has " + hashes.size() + " entries instead of 4.");
+        verify(Utils.sha256(a).equals(hashes.get(a.getPath())), "Changed file was not backed up again.");
+        verify(Utils.sha256(b).equals(hashes.get(b.getPath())) && Utils.sha256(d).equals(hashes.get(d.getPath())), "Unchanged files were not carried over.");
+        verify(!hashes.containsKey(c.getPath()) && hashes.containsKey(e.getPath()), "Deleted or created file was not merged into the snapshot.");
+
+        // A failed run closes the writer without finishing it, so nothing is carried over.
+        File unfinished = new File(repo, "snapshot-unfinished.bin");
+        new MergingSnapshotWriter(SnapshotWriter.create(unfinished, true), previous, changed).close();
+        verify(unfinished.length() == 0, "Entries were carried over into the snapshot of a failed run.");
+
+        String sub = c.getParent();
+        verify(WatchDaemon.withoutNested(new HashSet<>(List.of(sub, c.getPath(), a.getPath()))).equals(Set.of(sub, a.getPath())), "Nested changed paths were not dropped.");
+    }
+
+    private void testSnapshotCatalog() throws IOException, NoSuchAlgorithmException {
+        System.out.println("Testing snapshot catalog");
+        File repo = new File("temp" + File.separator + "catalog-" + System.nanoTime()).getAbsoluteFile();
+        File checklist = new File(repo, "checklist.txt");
+        repo.mkdirs();
+        // The same content twice, so unique bytes are half of the total.
+        Files.write(checklist.toPath(), List.of(testFile.getAbsolutePath(), testFile3.getAbsolutePath()), StandardCharsets.UTF_8);
+        BackupOptions options = new BackupOptions();
+        options.binarySnapshots = true;
+        Core.createBackup(checklist.getPath(), repo.getPath(), options);
+        SnapshotCatalog catalog = SnapshotCatalog.load(repo);
+        SnapshotCatalog.Entry entry = catalog.latest();
+        verify(catalog.entries.size() == 1 && entry.entryCount == 2, "Backup did not add its snapshot to the catalog.");
+        verify(entry.totalBytes == 2 * testFile.length() && entry.uniqueBytes == testFile.length(), "Catalog has wrong sizes for the snapshot.");
+        File snapshotFile = catalog.snapshotFile(entry);
+        verify(entry.sha256.equals(Utils.sha256(snapshotFile)), "Catalog has wrong checksum for the snapshot.");
+        verify(catalog.find(entry.timestamp.substring(0, 7)) == entry && catalog.find("1999") == null, "Snapshot was not found by date.");
+
+        Files.delete(SnapshotCatalog.fileOf(repo).toPath());
+        verify(Core.getLatestSnapshotFile(Core.getOrCreateRepoFilesDir(repo.getPath())).equals(snapshotFile), "Missing catalog was not rebuilt.");
+        Files.delete(snapshotFile.toPath());
+        try {
+            Core.getLatestSnapshotFile(Core.getOrCreateRepoFilesDir(repo.getPath()));
+            verify(false, "Catalog handed out a snapshot file which doesn't exist.");
+        } catch (IllegalArgumentException expected) {
+            // The catalog is out of sync until it is repaired.
+        }
+        Core.repairSnapshotCatalog(repo.getPath());
+        verify(SnapshotCatalog.load(repo).entries.isEmpty(), "Repair did not remove the missing snapshot.");
+    }
+
+    private void testPrune() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        System.out.println("Testing prune");
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.keepDaily = 2;
+        policy.keepMonthly = 2;
+        Map<String, List<String>> kept = policy.select(List.of("2020-03-15-10-00-00", "2020-03-15-08-00-00", "2020-03-14-23-00-00",
+                "2020-02-10-12-00-00", "2020-01-05-12-00-00", "2019-12-01-12-00-00"), LocalDateTime.of(2020, 3, 15, 12, 0));
+        verify(kept.keySet().equals(Set.of("2020-03-15-10-00-00", "2020-03-14-23-00-00", "2020-02-10-12-00-00")), "Retention kept the wrong snapshots: " + kept.keySet());
+        verify(kept.get("2020-03-15-10-00-00").equals(List.of("latest", "daily", "monthly")), "Retention did not report why a snapshot was kept.");
+
+        File repo = new File("temp" + File.separator + "prune-" + System.nanoTime()).getAbsoluteFile();
+        File data = new File(repo, "data");
+        data.mkdirs();
+        File gone = new File(data, "gone.bin");
+        File stays = new File(data, "stays.txt");
+        byte[] goneContent = new byte[8000];
+        new Random(25).nextBytes(goneContent);
+        Files.write(gone.toPath(), goneContent);
+        Files.write(stays.toPath(), "stays".getBytes(StandardCharsets.UTF_8));
+        File checklist = new File(repo, "checklist.txt");
+        Files.write(checklist.toPath(), List.of(data.getPath()), StandardCharsets.UTF_8);
+        BackupOptions options = new BackupOptions();
+        options.packing = true;
+        Core.createBackup(checklist.getPath(), repo.getPath(), options);
+        String goneHash = Utils.sha256(gone);
+        Files.delete(gone.toPath());
+        // Snapshots are named by the second they were started in.
+        Thread.sleep(1100);
+        Core.createBackup(checklist.getPath(), repo.getPath(), options);
+
+        PruneOptions pruneOptions = PruneOptions.parse(new String[] { "--keep-last=1", "--dry-run" }, 0);
+        Core.pruneRepository(repo.getPath(), pruneOptions);
+        File repoFilesDir = Core.getOrCreateRepoFilesDir(repo.getPath());
+        verify(new BlobStore(repoFilesDir).contains(goneHash) && SnapshotCatalog.load(repo).entries.size() == 2, "Dry run removed something.");
+        pruneOptions.dryRun = false;
+        Core.pruneRepository(repo.getPath(), pruneOptions);
+        BlobStore blobStore = new BlobStore(repoFilesDir);
+        verify(!blobStore.contains(goneHash) && blobStore.contains(Utils.sha256(stays)), "Prune did not remove exactly the unreferenced content.");
+        verify(SnapshotCatalog.load(repo).entries.size() == 1 && SnapshotCatalog.snapshotsDir(repo).list().length == 1, "Prune did not remove the old snapshot.");
+        verify(!blobStore.loadKnownHashes().contains(goneHash), "Blob index still lists pruned content.");
+        RepositoryLock lock = RepositoryLock.acquire(repo, "test");
+        try {
+            verify(isRefusedWhileLocked(() -> Core.pruneRepository(repo.getPath(), pruneOptions)), "Prune ran while the repository was locked.");
+            verify(isRefusedWhileLocked(() -> Core.repairSnapshotCatalog(repo.getPath())), "Catalog repair ran while the repository was locked.");
+            verify(isRefusedWhileLocked(() -> Core.migrateRepositoryLayout(repo.getPath())), "Layout migration ran while the repository was locked.");
+        } finally {
+            lock.close();
+        }
+    }
+
+    interface RepositoryTask {
+        void run() throws IOException;
+    }
+
+    static boolean isRefusedWhileLocked(RepositoryTask task) throws IOException {
+        try {
+            task.run();
+            return false;
+        } catch (IllegalArgumentException expected) {
+            // Commands which change the repository exclude each other.
+            return true;
+        }
+    }
+
+    private void testIoScheduler() {
+        System.out.println("Testing I/O scheduler");
+        // Two fake devices: a spinning disk with 1 thread for paths under "hdd", an SSD with 2 threads for the rest.
+        DeviceExecutors devices = new DeviceExecutors(2, 1) {
+            @Override
+            Object deviceOf(Path path) {
+                return path.startsWith("hdd") ? "hdd" : "ssd";
+            }
+
+            @Override
+            boolean isRotational(Object device) {
+                return device.equals("hdd");
+            }
+        };
+        IoScheduler scheduler = new IoScheduler(devices);
+        long[] inodes = { 30, 10, 20 };
+        for (int i = 0; i < inodes.length; i++) {
+            BackupTargetFile hdd = new BackupTargetFile(Paths.get("hdd", "f" + i), 1);
+            hdd.fileKey = "(dev=803,ino=" + inodes[i] + ")";
+            scheduler.add(hdd);
+            BackupTargetFile ssd = new BackupTargetFile(Paths.get("ssd", "f" + i), 1);
+            ssd.fileKey = "(dev=804,ino=" + inodes[i] + ")";
+            scheduler.add(ssd);
+        }
+        List<String> order = new ArrayList<>();
+        IoScheduler.DeviceQueue queue;
+        while ((queue = scheduler.nextReady()) != null) {
+            order.add(scheduler.take(queue).originPath.toString().replace(File.separatorChar, '/'));
+        }
+        // The disk gets two files in flight (twice its thread), the SSD all three (less than twice its threads).
+        verify(order.equals(List.of("hdd/f1", "hdd/f2", "ssd/f0", "ssd/f1", "ssd/f2")), "Targets were not scheduled per device in inode order: " + order);
+        scheduler.done(scheduler.queues.get("hdd"));
+        verify(scheduler.take(scheduler.nextReady()).originPath.equals(Paths.get("hdd", "f0")) && scheduler.waiting == 0, "Finished file did not free up its device.");
+    }
+
+    private void testFileTreeScanner() throws IOException {
+        System.out.println("Testing file tree scanner");
+        Path data = new File("temp" + File.separator + "scanner-" + System.nanoTime()).getAbsoluteFile().toPath();
+        Path sub = data.resolve("sub");
+        Files.createDirectories(sub);
+        Path a = data.resolve("a.txt");
+        Path b = sub.resolve("b.txt");
+        Files.write(a, "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(b, "b".getBytes(StandardCharsets.UTF_8));
+
+        FileTreeScanner scanner = new FileTreeScanner(FileTreeScanner.SymlinkPolicy.SKIP, 2);
+        verify(scannedPaths(scanner, List.of(b)).equals(Set.of(b)), "A file root was not scanned as a tree of one file.");
+        try {
+            scanner.collect(List.of(data.resolve("missing")));
+            verify(false, "Scanning a root which doesn't exist did not fail.");
+        } catch (NoSuchFileException expected) {
+            // A checklist path which doesn't exist fails the backup instead of backing up nothing.
+        }
+
+        try {
+            Files.createSymbolicLink(data.resolve("link-file"), a);
+            Files.createSymbolicLink(data.resolve("link-dir"), sub);
+            Files.createSymbolicLink(sub.resolve("loop"), data);
+        } catch (UnsupportedOperationException | IOException ex) {
+            System.out.println("    Skipping symbolic link tests, unable to create links: " + ex);
+            return;
+        }
+        verify(scannedPaths(scanner, List.of(data)).equals(Set.of(a, b)), "Skip policy did not ignore links.");
+        FileTreeScanner followFiles = new FileTreeScanner(FileTreeScanner.SymlinkPolicy.FOLLOW_FILES, 2);
+        verify(scannedPaths(followFiles, List.of(data)).equals(Set.of(a, b, data.resolve("link-file"))), "Follow-files policy did not follow exactly the links to files.");
+        // The loop back to data is skipped both under sub and under link-dir.
+        FileTreeScanner followAll = new FileTreeScanner(FileTreeScanner.SymlinkPolicy.FOLLOW_ALL, 2);
+        verify(scannedPaths(followAll, List.of(data)).equals(Set.of(a, b, data.resolve("link-file"), data.resolve("link-dir").resolve("b.txt"))), "Follow-all policy did not follow links or did not stop at the loop.");
+        verify(followAll.errors.get() == 0, "Loops were reported as read errors.");
+    }
+
+    private void testDiscoveryStreamAndSortingWriter() throws IOException, InterruptedException {
+        System.out.println("Testing discovery stream and sorting snapshot writer");
+        File dir = new File("temp" + File.separator + "streaming-" + System.nanoTime());
+        File data = new File(dir, "data");
+        data.mkdirs();
+        for (int i = 0; i < 50; i++) {
+            Files.write(new File(data, "file-" + i + ".txt").toPath(), new byte[] { (byte) i });
+        }
+        FileTreeScanner.DiscoveryStream stream = new FileTreeScanner(FileTreeScanner.SymlinkPolicy.SKIP, 4).stream(List.of(data.toPath()), 2);
+        verify(stream.hasNext(), "Discovery stream found nothing.");
+        stream.next();
+        // A consumer which fails after the first file.
+        stream.close();
+        stream.thread.join(10000);
+        verify(!stream.thread.isAlive(), "Discovery kept waiting for room after the stream was closed.");
+
+        File snapshotFile = new File(dir, "snapshot-sorted.bin");
+        SortingSnapshotWriter sorting = new SortingSnapshotWriter(SnapshotWriter.create(snapshotFile, true), snapshotFile, 3);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(8));
+        String hash = "1B6FB0897A9013312B7FCDF3ADD16532C4A1717C1FEB89D41B99B7CF574FAD74";
+        for (int i : order) {
+            sorting.write(new SnapshotEntry("/data/file-" + i, hash, i, 1545000000000L));
+        }
+        // Overlapping checklist roots, the first entry for a path is kept.
+        sorting.write(new SnapshotEntry("/data/file-4", hash, 1000, 1545000000000L));
+        verify(sorting.runs.size() >= 3, "Sorting writer did not spill full batches.");
+        sorting.finish();
+        sorting.close();
+        List<SnapshotEntry> sorted = new ArrayList<>();
+        try (SnapshotReader reader = SnapshotReader.open(snapshotFile)) {
+            reader.forEachRemaining(sorted::add);
+        }
+        verify(sorted.size() == 10, "Merged snapshot has " + sorted.size() + " entries instead of 10.");
+        for (int i = 0; i < sorted.size(); i++) {
+            verify(sorted.get(i).path.equals("/data/file-" + i) && sorted.get(i).sizeBytes == i, "Merged snapshot is not in order or kept the wrong duplicate at " + i + ".");
+        }
+        verify(dir.list((d, name) -> name.contains(".run-")).length == 0, "Spill files were left behind.");
+
+        // A failed run closes the writer without finishing it.
+        File failedSnapshot = new File(dir, "snapshot-failed.bin");
+        SortingSnapshotWriter failed = new SortingSnapshotWriter(SnapshotWriter.create(failedSnapshot, true), failedSnapshot, 3);
+        for (int i : order) {
+            failed.write(new SnapshotEntry("/data/file-" + i, hash, i, 1545000000000L));
+        }
+        failed.close();
+        verify(failedSnapshot.length() == 0, "Entries of a failed run were written to the snapshot.");
+        verify(dir.list((d, name) -> name.contains(".run-")).length == 0, "Spill files of a failed run were left behind.");
+    }
+
+    private static Set<Path> scannedPaths(FileTreeScanner scanner, List<Path> roots) throws IOException {
+        Set<Path> paths = new HashSet<>();
+        for (BackupTargetFile btf : scanner.collect(roots)) {
+            paths.add(btf.originPath);
+        }
+        return paths;
+    }
+
     // TODO prevent copy failure when output path is set incorrectly and copy "fails if the target file already exists or is a symbolic link, except if the source and target are the same file, in which case the method completes without copying the file."
     // TODO document that symbolic links are followed to the final destination
     // TODO deal with ioexception; "possible that the target file is incomplete or some of its file attributes have not been copied from the source file"
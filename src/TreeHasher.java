@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 tree hash. Content is split into LEAF_SIZE leaves which are hashed separately, and the hash of the
+ * content is the SHA-256 of a header followed by the leaf hashes in order. Since leaves are independent, a large
+ * file can be hashed on several cores at once, and stored content can be verified one leaf at a time against the
+ * leaf hashes (see BlobStore.verifyRange), which are checked against the content hash first.
+ */
+class TreeHasher implements Hasher {
+
+    // One leaf per block of parallel hashing.
+    static final int LEAF_SIZE = HashAlgorithm.PARALLEL_BLOCK_BYTES;
+    static final byte[] HEADER = ("SBP tree sha256 " + LEAF_SIZE + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    final MessageDigest leaf = HashAlgorithm.sha256();
+    final List<byte[]> leaves = new ArrayList<>();
+    int leafFill;
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int take = Math.min(LEAF_SIZE - leafFill, length);
+            leaf.update(buffer, offset, take);
+            leafFill += take;
+            offset += take;
+            length -= take;
+            if (leafFill == LEAF_SIZE) {
+                leaves.add(leaf.digest());
+                leafFill = 0;
+            }
+        }
+    }
+
+    @Override
+    public HashAlgorithm.Digest finish() {
+        if (leafFill > 0) leaves.add(leaf.digest());
+        return new HashAlgorithm.Digest(root(leaves), leaves);
+    }
+
+    static String root(List<byte[]> leaves) {
+        MessageDigest digest = HashAlgorithm.sha256();
+        digest.update(HEADER);
+        for (byte[] leaf : leaves) {
+            digest.update(leaf);
+        }
+        return Utils.bytesToHex(digest.digest());
+    }
+
+    static byte[] hashLeaf(byte[] buffer, int length) {
+        MessageDigest digest = HashAlgorithm.sha256();
+        digest.update(buffer, 0, length);
+        return digest.digest();
+    }
+
+    static HashAlgorithm.Digest digestInParallel(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<byte[]> leaves = HashAlgorithm.mapBlocksInParallel(channel, (size + LEAF_SIZE - 1) / LEAF_SIZE,
+                    (index, buffer, length) -> hashLeaf(buffer, length));
+            if (channel.size() != size) {
+                throw new IOException("File was modified while it was being hashed: " + file.getAbsolutePath());
+            }
+            return new HashAlgorithm.Digest(root(leaves), leaves);
+        }
+    }
+}
@@ -18,6 +18,9 @@ public class UI {
                 System.out.println("R: Restore files from backup");
                 System.out.println("D: Detect duplicates");
                 System.out.println("C: Compare snapshots");
+                System.out.println("L: List snapshots");
+                System.out.println("M: Migrate repository to fan-out layout");
+                System.out.println("S: Convert snapshot to binary format");
                 System.out.println("H: Help");
                 System.out.println("Q: Exit");
                 String mainMenuChoice = scanner.nextLine().trim().toUpperCase();
@@ -34,17 +37,34 @@ public class UI {
                 } else if (mainMenuChoice.equals("R")) {
                     String repositoryPath = getRepositoryPath();
                     String restoreLocation = getRestoreLocation();
-                    Core.restoreBackup(repositoryPath, restoreLocation);
+                    RestoreOptions restoreOptions = getRestoreOptions();
+                    Core.restoreBackup(repositoryPath, restoreLocation, restoreOptions);
                 } else if (mainMenuChoice.equals("D")) {
-                    String repositoryPath = getRepositoryPath();
-                    int mbThreshold = getMbThreshold();
-                    Core.detectDuplicates(repositoryPath, mbThreshold);
+                    if (getDuplicateSourceChoice()) {
+                        String repositoryPath = getRepositoryPath();
+                        int mbThreshold = getMbThreshold();
+                        Core.detectDuplicates(repositoryPath, mbThreshold);
+                    } else {
+                        String checkListPath = getCheckListPath();
+                        int mbThreshold = getMbThreshold();
+                        Core.detectDuplicatesInCheckList(checkListPath, mbThreshold);
+                    }
                 } else if (mainMenuChoice.equals("C")) {
                     System.out.println("Please enter path for snapshot 1/2 (e.g. E:\\backup\\filepath-snapshots\\snapshot-2018-12-31.txt");
                     String snapshot1 = getSnapshotPath();
                     System.out.println("Please enter path for snapshot 2/2 (e.g. E:\\backup\\filepath-snapshots\\snapshot-2018-12-31.txt");
                     String snapshot2 = getSnapshotPath();
                     Core.compareSnapshots(snapshot1, snapshot2);
+                } else if (mainMenuChoice.equals("L")) {
+                    String repositoryPath = getRepositoryPath();
+                    Core.listSnapshots(repositoryPath);
+                } else if (mainMenuChoice.equals("M")) {
+                    String repositoryPath = getRepositoryPath();
+                    Core.migrateRepositoryLayout(repositoryPath);
+                } else if (mainMenuChoice.equals("S")) {
+                    System.out.println("Please enter path for text snapshot (e.g. E:\\backup\\filepath-snapshots\\snapshot-2018-12-31.txt");
+                    String snapshot = getSnapshotPath();
+                    Core.convertSnapshotToBinary(snapshot);
                 } else if (mainMenuChoice.equals("H")) {
                     printHelp();
                 } else if (mainMenuChoice.equals("Q")) {
@@ -88,6 +108,19 @@ public class UI {
         return Integer.parseInt(scanner.nextLine());
     }
 
+    private boolean getDuplicateSourceChoice() {
+        System.out.println("1: Detect duplicates from the latest snapshot in a backup repository");
+        System.out.println("2: Detect duplicates by reading the files in a checklist (no backup needed)");
+        String choice = scanner.nextLine();
+        if (choice.equals("1")) {
+            return true;
+        } else if (choice.equals("2")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("Error! Input must be either '1' or '2'.");
+        }
+    }
+
     private boolean getVerificationChoice() {
         System.out.println("You can choose either fast or slow verification.");
         System.out.println("Fast verification is likely to uncover typical errors.");
@@ -123,6 +156,17 @@ public class UI {
         return restoreLocation;
     }
 
+    private RestoreOptions getRestoreOptions() {
+        RestoreOptions options = new RestoreOptions();
+        System.out.println("Which snapshot do you wish to restore? Enter a timestamp (e.g. 2018-12-31) or leave empty for the latest snapshot.");
+        String timestamp = scanner.nextLine().trim();
+        if (!timestamp.isEmpty()) options.snapshotTimestamp = timestamp;
+        System.out.println("Which files do you wish to restore? Enter a path prefix (e.g. C:\\Users\\me\\Documents), a glob (e.g. **.jpg) or leave empty for all files.");
+        String include = scanner.nextLine().trim();
+        if (!include.isEmpty()) options.include = include;
+        return options;
+    }
+
     private void printHelp() {
         System.out.println("This program is intended for periodic backups of your personal data.");
         System.out.println("First, create a checklist of paths that you wish to backup.");
@@ -1,15 +1,18 @@
 import java.io.*;
 import java.nio.file.Files;
-import java.security.MessageDigest;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 
 public class Utils {
 
     public static final String SEPARATOR_BETWEEN_PATH_AND_HASH = " /// ";
+    public static final String TIMESTAMP_PATTERN = "uuuu-MM-dd-HH-mm-ss";
     public static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
 
     public static void copy(File source, File target) throws IOException {
@@ -17,25 +20,51 @@ public class Utils {
     }
 
     public static String timestamp() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("uuuu-MM-dd-HH-mm-ss");
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(TIMESTAMP_PATTERN);
         return LocalDateTime.now().format(formatter);
     }
 
-    public static String sha256(File file) throws NoSuchAlgorithmException, IOException {
-        // Adapted from https://stackoverflow.com/a/32032908/4490400
-        byte[] buffer= new byte[8192];
-        int count;
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-        while ((count = bis.read(buffer)) > 0) {
-            digest.update(buffer, 0, count);
+    /** Inverse of timestamp(): returns epoch millis, or -1 if the string is not a timestamp. */
+    public static long parseTimestamp(String timestamp) {
+        try {
+            LocalDateTime time = LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern(TIMESTAMP_PATTERN));
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
         }
-        bis.close();
+    }
+
+    public static String sha256(File file) throws NoSuchAlgorithmException, IOException {
+        return HashAlgorithm.SHA256.hash(file);
+    }
 
-        byte[] hash = digest.digest();
+    /** Hashes the remaining content of the stream. The stream is not closed. */
+    public static String sha256(InputStream in) throws NoSuchAlgorithmException, IOException {
+        return HashAlgorithm.SHA256.hash(in);
+    }
 
-        // Return hash as hex-encoded string.
-        return bytesToHex(hash);
+    /**
+     * Copies source to target and returns the SHA-256 of the copied content, reading the source only once.
+     * Like copy, this fails if the target already exists.
+     */
+    public static String copyAndSha256(File source, File target) throws NoSuchAlgorithmException, IOException {
+        return copyAndHash(source, target, HashAlgorithm.SHA256.newHasher()).hash;
+    }
+
+    /** Like copyAndSha256, with the given hash algorithm. */
+    public static HashAlgorithm.Digest copyAndHash(File source, File target, Hasher hasher) throws IOException {
+        byte[] buffer = HashAlgorithm.READ_BUFFER.get();
+        int count;
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = Files.newOutputStream(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while ((count = in.read(buffer)) > 0) {
+                hasher.update(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+        // Same best effort as COPY_ATTRIBUTES: last-modified time is the attribute we care about when restoring.
+        Files.setLastModifiedTime(target.toPath(), Files.getLastModifiedTime(source.toPath()));
+        return hasher.finish();
     }
 
     public static String bytesToHex(byte[] bytes) {
@@ -49,6 +78,22 @@ public class Utils {
         return new String(hexChars);
     }
 
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Hex string has odd length: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Not a hex string: " + hex);
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
     public static String formatSize(double bytes) {
         long kib = 1024;
         if (bytes < kib) return bytes + " B";
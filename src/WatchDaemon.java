@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps a repository up to date with the checklist ("watch" command). After a full backup at start, the directory
+ * trees of the checklist are watched for changes, and every interval only the paths which changed are backed up
+ * with Core.createIncrementalBackup, which carries everything else over from the previous snapshot.
+ *
+ * Roots which can't be watched, because they are single files or the system ran out of watches, are backed up as
+ * a whole every rescan interval instead. Changes behind followed directory links aren't reported either and are
+ * only picked up by the next full backup.
+ */
+class WatchDaemon {
+
+    final String checkListFilePath;
+    final String repositoryPath;
+    final WatchOptions options;
+    final WatchService watchService;
+    final Set<Path> roots = new HashSet<>();
+    final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    final Set<Path> unwatchedRoots = ConcurrentHashMap.newKeySet();
+    // Paths which changed since the last snapshot. A directory stands for its whole tree.
+    final Set<String> changedPaths = ConcurrentHashMap.newKeySet();
+
+    WatchDaemon(String checkListFilePath, String repositoryPath, WatchOptions options) throws IOException {
+        this.checkListFilePath = checkListFilePath;
+        this.repositoryPath = repositoryPath;
+        this.options = options;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    void run() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        // Watches go up before the full backup, so that nothing which changes during it is missed.
+        roots.addAll(Core.toPaths(Core.getTargetPathStringsFromCheckList(checkListFilePath)));
+        for (Path root : roots) {
+            watchRoot(root);
+        }
+        System.out.println("Watching " + watchedDirectories.size() + " directories, " + unwatchedRoots.size() + " roots are rescanned instead.");
+        Thread events = new Thread(this::collectEvents, "watch-events");
+        events.setDaemon(true);
+        events.start();
+        Core.createBackup(checkListFilePath, repositoryPath, options.backup);
+        long lastRescanMillis = System.currentTimeMillis();
+        long nextBackupMillis = lastRescanMillis + options.intervalMillis;
+        while (true) {
+            Thread.sleep(Math.max(0, nextBackupMillis - System.currentTimeMillis()));
+            // A backup which overran its interval is followed by the next one right away, not by a burst of them.
+            nextBackupMillis = Math.max(nextBackupMillis + options.intervalMillis, System.currentTimeMillis());
+            if (System.currentTimeMillis() - lastRescanMillis >= options.rescanMillis) {
+                for (Path root : unwatchedRoots) {
+                    changedPaths.add(root.toString());
+                }
+                lastRescanMillis = System.currentTimeMillis();
+            }
+            backupChanges();
+        }
+    }
+
+    /** Backs up the paths which changed since the last call, if any. */
+    void backupChanges() throws NoSuchAlgorithmException {
+        Set<String> changed = new HashSet<>();
+        for (Iterator<String> it = changedPaths.iterator(); it.hasNext(); ) {
+            changed.add(it.next());
+            it.remove();
+        }
+        changed = withoutNested(changed);
+        if (changed.isEmpty()) {
+            System.out.println(Utils.timestamp() + ": nothing changed since the last snapshot.");
+            return;
+        }
+        try {
+            List<BackupTargetFile> failed = Core.createIncrementalBackup(checkListFilePath, repositoryPath, options.backup, changed);
+            // Failed files are missing from the snapshot, as their previous entries were replaced, so they are tried again.
+            for (BackupTargetFile btf : failed) {
+                changedPaths.add(btf.originPath.toString());
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("ERROR! Backing up changes failed, trying again next time: " + ex);
+            changedPaths.addAll(changed);
+        }
+    }
+
+    /** Drops paths under other paths of the set, which are backed up with them anyway. */
+    static Set<String> withoutNested(Set<String> paths) {
+        Set<String> outermost = new HashSet<>();
+        for (String path : paths) {
+            int parent = path.lastIndexOf(File.separatorChar);
+            if (parent <= 0 || !MergingSnapshotWriter.isChanged(path.substring(0, parent), paths)) {
+                outermost.add(path);
+            }
+        }
+        return outermost;
+    }
+
+    void watchRoot(Path root) {
+        if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+            // Single files and links can only be watched through their parent, which may hold many other files.
+            unwatchedRoots.add(root);
+            return;
+        }
+        try {
+            watchTree(root);
+        } catch (IOException ex) {
+            System.out.println("Warning! Unable to watch " + root + " (" + ex.getMessage() + "), rescanning it instead.");
+            unwatchedRoots.add(root);
+        }
+    }
+
+    /** Watches the directory and every directory under it. On failure, none of it remains watched. */
+    void watchTree(Path top) throws IOException {
+        List<WatchKey> keys = new ArrayList<>();
+        try {
+            Files.walkFileTree(top, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    watchedDirectories.put(key, dir);
+                    keys.add(key);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    // Unreadable directories are reported by the backup itself.
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            for (WatchKey key : keys) {
+                key.cancel();
+                watchedDirectories.remove(key);
+            }
+            throw ex;
+        }
+    }
+
+    void collectEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = watchedDirectories.get(key);
+            if (dir == null) continue;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // Events were lost, so anything in the directory may have changed.
+                    changedPaths.add(dir.toString());
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                boolean isDirectory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+                if (event.kind() == ENTRY_CREATE && isDirectory) {
+                    // Files may have been created in it before the watch was up, so all of it counts as changed.
+                    try {
+                        watchTree(path);
+                    } catch (IOException ex) {
+                        System.out.println("Warning! Unable to watch " + path + " (" + ex.getMessage() + "), rescanning it instead.");
+                        unwatchedRoots.add(path);
+                    }
+                } else if (event.kind() == ENTRY_MODIFY && isDirectory) {
+                    // Changes inside are reported by the directory's own watch.
+                    continue;
+                }
+                changedPaths.add(path.toString());
+            }
+            if (!key.reset()) {
+                // The directory is gone. Its parent reports that, unless it was a root, which nothing watches now.
+                watchedDirectories.remove(key);
+                if (roots.contains(dir)) {
+                    changedPaths.add(dir.toString());
+                    unwatchedRoots.add(dir);
+                }
+            }
+        }
+    }
+}
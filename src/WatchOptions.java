@@ -0,0 +1,36 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Options for the watch command. Flags which aren't watch options are passed on to every backup. */
+class WatchOptions {
+    // How often the changes collected since the last snapshot are backed up.
+    long intervalMillis = TimeUnit.MINUTES.toMillis(60);
+    // How often roots which can't be watched are backed up as a whole, to catch changes nobody reported.
+    long rescanMillis = TimeUnit.MINUTES.toMillis(60);
+    BackupOptions backup;
+
+    /** Parses optional flags such as "--interval-minutes=15" starting from the given index. */
+    static WatchOptions parse(String[] args, int from) {
+        WatchOptions options = new WatchOptions();
+        List<String> backupArgs = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "--interval-minutes":
+                    options.intervalMillis = TimeUnit.MINUTES.toMillis(BackupOptions.parsePositiveInt(key, value));
+                    break;
+                case "--rescan-minutes":
+                    options.rescanMillis = TimeUnit.MINUTES.toMillis(BackupOptions.parsePositiveInt(key, value));
+                    break;
+                default:
+                    backupArgs.add(arg);
+            }
+        }
+        options.backup = BackupOptions.parse(backupArgs.toArray(new String[0]), 0);
+        return options;
+    }
+}